@@ -1,24 +1,64 @@
 package network;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class AcknowledgmentBuffer {
+	private static final int[] NO_SEQUENCE_NUMBERS = new int[0];
+
 	private byte[][] buffer;
 	private int[] timesAccessed;
+	private long[] sendTimes;
 	private boolean[] isAcked;
+	private boolean[] isLost;
+	private TimingWheel.Timeout[] timeouts;
+	private CompletableFuture<?>[] completions;
 	private int capacity;
+	private final int maxCapacity;
+	private final int sequenceMask;
 	private int size = 0;
 	private int tailIndex = 0;
+	private int numNewlyAcked = 0;
+	//acknowledged data past the oldest unacknowledged data
+	private int numSelectivelyAcked = 0;
+	//completions of data the cumulative ack moved past, completed outside the lock by completeAcked()
+	private CompletableFuture<?>[] ackedCompletions = new CompletableFuture<?>[4];
+	private int numAckedCompletions = 0;
 
 	private int smallestSequenceNumber;
 
 	public AcknowledgmentBuffer(int capacity, int startingSequenceNumber) {
+		this(capacity, capacity, startingSequenceNumber);
+	}
+
+	/**
+	 * Creates a buffer that starts out holding the given capacity and doubles in size as needed, up to the maximum.
+	 */
+	public AcknowledgmentBuffer(int capacity, int maxCapacity, int startingSequenceNumber) {
+		this(capacity, maxCapacity, startingSequenceNumber, false);
+	}
+
+	/**
+	 * Creates a growable buffer for either 16-bit or 32-bit sequence numbers.
+	 */
+	public AcknowledgmentBuffer(int capacity, int maxCapacity, int startingSequenceNumber, boolean wideSequenceNumbers) {
+		if (capacity <= 0 || maxCapacity < capacity) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity + " for maximum capacity " + maxCapacity);
+		}
 		this.capacity = capacity;
+		this.maxCapacity = maxCapacity;
+		this.sequenceMask = wideSequenceNumbers ? PacketUtils.WIDE_SEQUENCE_MASK : PacketUtils.SEQUENCE_MASK;
 		buffer = new byte[capacity][];
 		timesAccessed = new int[capacity];
 		Arrays.fill(timesAccessed, 0);
+		sendTimes = new long[capacity];
 		isAcked = new boolean[capacity];
 		Arrays.fill(isAcked, false);
+		isLost = new boolean[capacity];
+		timeouts = new TimingWheel.Timeout[capacity];
+		completions = new CompletableFuture<?>[capacity];
 		this.smallestSequenceNumber = startingSequenceNumber;
 	}
 
@@ -31,40 +71,210 @@ public class AcknowledgmentBuffer {
 	}
 
 	public synchronized boolean isFull() {
-		return size == capacity;
+		return size == maxCapacity;
+	}
+
+	public int getMaxCapacity() {
+		return maxCapacity;
 	}
 
 	public synchronized void add(byte[] data) {
+		add(data, System.nanoTime());
+	}
+
+	/**
+	 * Adds data that was first sent at the given time, as given by System.nanoTime().
+	 */
+	public synchronized void add(byte[] data, long sendTimeNanos) {
 		int sequenceNumber = PacketUtils.getSeqNum(data);
 		int offset = getOffset(sequenceNumber);
-		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber)) {
+		if (offset >= maxCapacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask)) {
 			throw new IllegalArgumentException(
 				"Provided sequence number " + sequenceNumber + " is out of range for current " +
-				smallestSequenceNumber + " and capacity " + capacity);
+				smallestSequenceNumber + " and capacity " + maxCapacity);
+		}
+		if (offset >= capacity) {
+			grow(offset + 1);
 		}
 		int insertIndex = (tailIndex + offset) % capacity;
 		buffer[insertIndex] = data;
+		sendTimes[insertIndex] = sendTimeNanos;
+		timeouts[insertIndex] = null;
 		size++;
 	}
 
 	public synchronized void signalAck(int sequenceNumber) {
 		int offset = getOffset(sequenceNumber);
-		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber)) {
+		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask)) {
 			throw new IllegalArgumentException(
 				"Provided sequence number " + sequenceNumber + " is out of range for current " +
 				smallestSequenceNumber + " and capacity " + capacity);
 		}
 		int index = (tailIndex + offset) % capacity;
-		isAcked[index] = true;
+		if (!isAcked[index]) {
+			isAcked[index] = true;
+			numSelectivelyAcked++;
+		}
+		if (timeouts[index] != null) {
+			timeouts[index].cancel();
+			timeouts[index] = null;
+		}
+		slideTail();
+	}
+
+	/**
+	 * Acknowledges every sequence number up to and including the cumulative ack, and every sequence number
+	 * cumulativeAck + 2 + i for which bit i of the bitmap is set. Sequence numbers that are out of range or not in
+	 * flight are ignored.
+	 * Returns the send time of the latest newly acknowledged packet that was never retransmitted, or -1 if there is
+	 * none, so it can be used as a round trip time sample.
+	 */
+	public synchronized long signalAcks(int cumulativeAck, int ackBitmap) {
+		numNewlyAcked = 0;
+		int sampleOffset = -1;
+		int cumulativeOffset = getOffset(cumulativeAck);
+		if (cumulativeOffset < capacity && !PacketUtils.sequenceGreaterThan(smallestSequenceNumber, cumulativeAck, sequenceMask)) {
+			for (int offset = 0; offset <= cumulativeOffset; offset++) {
+				if (markAcked(offset)) {
+					sampleOffset = offset;
+				}
+			}
+		}
+		for (int i = 0; i < 32 && ackBitmap >>> i != 0; i++) {
+			if ((ackBitmap & (1 << i)) == 0) {
+				continue;
+			}
+			int sequenceNumber = (cumulativeAck + 2 + i) & sequenceMask;
+			int offset = getOffset(sequenceNumber);
+			if (offset < capacity && !PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask) && markAcked(offset)) {
+				sampleOffset = Math.max(sampleOffset, offset);
+			}
+		}
+		long sampleTime = sampleOffset < 0 ? -1 : sendTimes[(tailIndex + sampleOffset) % capacity];
+		slideTail();
+		return sampleTime;
+	}
+
+	/**
+	 * Removes acknowledged data from the tail until the oldest unacknowledged data.
+	 */
+	private void slideTail() {
+		for (; isAcked[tailIndex]; tailIndex = (tailIndex + 1) % capacity) {
+			isAcked[tailIndex] = false;
+			isLost[tailIndex] = false;
+			timesAccessed[tailIndex] = 0;
+			buffer[tailIndex] = null;
+			if (completions[tailIndex] != null) {
+				if (numAckedCompletions == ackedCompletions.length) {
+					ackedCompletions = Arrays.copyOf(ackedCompletions, numAckedCompletions * 2);
+				}
+				ackedCompletions[numAckedCompletions++] = completions[tailIndex];
+				completions[tailIndex] = null;
+			}
+			size--;
+			numSelectivelyAcked--;
+			smallestSequenceNumber = (smallestSequenceNumber + 1) & sequenceMask;
+		}
+	}
+
+	/**
+	 * Returns the sequence numbers of unacknowledged data that at least the given number of later data has been
+	 * acknowledged past, which is presumed lost rather than reordered. Each sequence number is only returned once.
+	 */
+	public synchronized int[] findLost(int threshold) {
+		if (numSelectivelyAcked < threshold) {
+			return NO_SEQUENCE_NUMBERS;
+		}
+		int[] lost = new int[4];
+		int numLost = 0;
+		int ackedAfter = numSelectivelyAcked;
+		for (int offset = 0; offset < size && ackedAfter >= threshold; offset++) {
+			int index = (tailIndex + offset) % capacity;
+			if (isAcked[index]) {
+				ackedAfter--;
+			}
+			else if (!isLost[index]) {
+				isLost[index] = true;
+				if (numLost == lost.length) {
+					lost = Arrays.copyOf(lost, numLost * 2);
+				}
+				lost[numLost++] = (smallestSequenceNumber + offset) & sequenceMask;
+			}
+		}
+		return Arrays.copyOf(lost, numLost);
+	}
 
-		if (index == tailIndex) {
-			for (; isAcked[tailIndex]; tailIndex = (tailIndex + 1) % capacity) {
-				isAcked[tailIndex] = false;
-				timesAccessed[tailIndex] = 0;
-				size--;
-				smallestSequenceNumber = (smallestSequenceNumber + 1) & 0xFFFF;
+	/**
+	 * Returns the most recently added data that has not been acknowledged, or null if there is none. Like findData,
+	 * this counts as an access of the data.
+	 */
+	public synchronized byte[] findNewestUnacked() {
+		for (int offset = size - 1; offset >= 0; offset--) {
+			int index = (tailIndex + offset) % capacity;
+			if (!isAcked[index]) {
+				timesAccessed[index]++;
+				return buffer[index];
 			}
 		}
+		return null;
+	}
+
+	/**
+	 * Returns the sequence number the next added data will have.
+	 */
+	public synchronized int getNextSequenceNumber() {
+		return (smallestSequenceNumber + size) & sequenceMask;
+	}
+
+	/**
+	 * Marks the data at the given offset as acknowledged. Returns true if it was in flight and never retransmitted.
+	 */
+	private boolean markAcked(int offset) {
+		int index = (tailIndex + offset) % capacity;
+		if (buffer[index] == null || isAcked[index]) {
+			return false;
+		}
+		isAcked[index] = true;
+		numNewlyAcked++;
+		numSelectivelyAcked++;
+		if (timeouts[index] != null) {
+			timeouts[index].cancel();
+			timeouts[index] = null;
+		}
+		return timesAccessed[index] == 0;
+	}
+
+	/**
+	 * Returns the number of packets newly acknowledged by the last call to signalAcks.
+	 */
+	public synchronized int getNumNewlyAcked() {
+		return numNewlyAcked;
+	}
+
+	private void grow(int minCapacity) {
+		int newCapacity = capacity;
+		while (newCapacity < minCapacity) {
+			newCapacity *= 2;
+		}
+		newCapacity = Math.min(newCapacity, maxCapacity);
+		buffer = (byte[][]) unroll(buffer, new byte[newCapacity][]);
+		timesAccessed = (int[]) unroll(timesAccessed, new int[newCapacity]);
+		sendTimes = (long[]) unroll(sendTimes, new long[newCapacity]);
+		isAcked = (boolean[]) unroll(isAcked, new boolean[newCapacity]);
+		isLost = (boolean[]) unroll(isLost, new boolean[newCapacity]);
+		timeouts = (TimingWheel.Timeout[]) unroll(timeouts, new TimingWheel.Timeout[newCapacity]);
+		completions = (CompletableFuture<?>[]) unroll(completions, new CompletableFuture<?>[newCapacity]);
+		tailIndex = 0;
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Copies the ring buffer into the start of the given array, with the tail moved to index 0.
+	 */
+	private Object unroll(Object src, Object dst) {
+		System.arraycopy(src, tailIndex, dst, 0, capacity - tailIndex);
+		System.arraycopy(src, 0, dst, capacity - tailIndex, tailIndex);
+		return dst;
 	}
 
 	public synchronized byte[] findData(int sequenceNumber) {
@@ -72,7 +282,7 @@ public class AcknowledgmentBuffer {
 			throw new IllegalArgumentException("Cannot find data in buffer of size 0.");
 		}
 		int offset = getOffset(sequenceNumber);
-		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber)) {
+		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask)) {
 			throw new IllegalArgumentException(
 				"Provided sequence number " + sequenceNumber + " is out of range for current " +
 				smallestSequenceNumber + " and capacity " + capacity);
@@ -91,7 +301,7 @@ public class AcknowledgmentBuffer {
 		}
 
 		int offset = getOffset(sequenceNumber);
-		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber)) {
+		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask)) {
 			throw new IllegalArgumentException(
 				"Provided sequence number " + sequenceNumber + " is out of range for current " +
 					smallestSequenceNumber + " and capacity " + capacity);
@@ -105,13 +315,28 @@ public class AcknowledgmentBuffer {
 		return timesAccessed[index];
 	}
 
+	public synchronized long getSendTime(int sequenceNumber) {
+		if (size == 0) {
+			throw new IllegalArgumentException("Cannot find data in buffer of size 0.");
+		}
+
+		int offset = getOffset(sequenceNumber);
+		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask)) {
+			throw new IllegalArgumentException(
+				"Provided sequence number " + sequenceNumber + " is out of range for current " +
+					smallestSequenceNumber + " and capacity " + capacity);
+		}
+
+		return sendTimes[(tailIndex + offset) % capacity];
+	}
+
 	public synchronized boolean isAcked(int sequenceNumber) {
 		if (size == 0) {
 			return true;
 		}
 
 		int offset = getOffset(sequenceNumber);
-		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber)) {
+		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask)) {
 			return true;
 		}
 
@@ -123,11 +348,85 @@ public class AcknowledgmentBuffer {
 		return isAcked[index];
 	}
 
+	/**
+	 * Associates the retransmission timeout of the data with the given sequence number, so it is cancelled as soon
+	 * as the data is acknowledged. The timeout is cancelled immediately if the data has already been acknowledged,
+	 * and any previous timeout of the data is cancelled.
+	 */
+	public synchronized void setTimeout(int sequenceNumber, TimingWheel.Timeout timeout) {
+		if (isAcked(sequenceNumber)) {
+			timeout.cancel();
+			return;
+		}
+		int index = (tailIndex + getOffset(sequenceNumber)) % capacity;
+		if (timeouts[index] != null && timeouts[index] != timeout) {
+			timeouts[index].cancel();
+		}
+		timeouts[index] = timeout;
+	}
+
+	/**
+	 * Cancels the retransmission timeouts of all unacknowledged data.
+	 */
+	public synchronized void cancelTimeouts() {
+		for (int i = 0; i < capacity; i++) {
+			if (timeouts[i] != null) {
+				timeouts[i].cancel();
+				timeouts[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Associates a completion with the data with the given sequence number, which is completed once that data and
+	 * everything before it has been acknowledged. Must be called before the data can be acknowledged.
+	 */
+	public synchronized void setCompletion(int sequenceNumber, CompletableFuture<?> completion) {
+		completions[(tailIndex + getOffset(sequenceNumber)) % capacity] = completion;
+	}
+
+	/**
+	 * Completes the completions of data that has been acknowledged along with everything before it since the last
+	 * call. They are completed without holding the lock on this buffer, since completing runs dependent actions.
+	 */
+	public void completeAcked() {
+		CompletableFuture<?>[] acked;
+		synchronized (this) {
+			if (numAckedCompletions == 0) {
+				return;
+			}
+			acked = Arrays.copyOf(ackedCompletions, numAckedCompletions);
+			Arrays.fill(ackedCompletions, 0, numAckedCompletions, null);
+			numAckedCompletions = 0;
+		}
+		for (int i = 0; i < acked.length; i++) {
+			acked[i].complete(null);
+		}
+	}
+
+	/**
+	 * Completes the completions of all unacknowledged data exceptionally with the given cause.
+	 */
+	public void failCompletions(Throwable cause) {
+		List<CompletableFuture<?>> pending = new ArrayList<>();
+		synchronized (this) {
+			for (int i = 0; i < capacity; i++) {
+				if (completions[i] != null) {
+					pending.add(completions[i]);
+					completions[i] = null;
+				}
+			}
+		}
+		for (CompletableFuture<?> completion : pending) {
+			completion.completeExceptionally(cause);
+		}
+	}
+
 	public synchronized int getExpectedSequenceNumber() {
 		return smallestSequenceNumber;
 	}
 
 	private int getOffset(int seqNum) {
-		return (seqNum - smallestSequenceNumber) & 0xFFFF;
+		return (seqNum - smallestSequenceNumber) & sequenceMask;
 	}
 }
@@ -0,0 +1,25 @@
+package network;
+
+/**
+ * The ordering state of one channel of a connection. Reliable messages of a channel other than the default one are
+ * numbered separately from the packets of the connection, so that a packet lost on one channel only holds back the
+ * messages of that channel. Sequenced unreliable messages are numbered per channel as well, including channel 0.
+ */
+public class ChannelInfo {
+	//the channel sequence number of the next message sent on the channel, guarded by the connection info
+	int localSequenceNumber = 0;
+	//buffers the messages received on the channel until every message before them has been delivered
+	final ReceiveBuffer receiveBuffer;
+	//the sequence number of the next sequenced unreliable message sent on the channel, guarded by the connection info
+	int localUnreliableSequenceNumber = 0;
+	//the newest sequenced unreliable message delivered from the channel, only accessed from the event loop
+	int remoteUnreliableSequenceNumber = -1;
+
+	/**
+	 * Creates a channel holding at most as many messages as the receive window of the connection, since no more
+	 * than that can be in flight.
+	 */
+	ChannelInfo(int receiveWindow, boolean isWide) {
+		this.receiveBuffer = new ReceiveBuffer(Math.min(PacketUtils.INITIAL_WINDOW_CAPACITY, receiveWindow), receiveWindow, 0, isWide);
+	}
+}
@@ -3,8 +3,15 @@ package network;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
-public class Client implements ConnectionNotifier, Closeable {
+public class Client implements ConnectionNotifier, PacketListener, Closeable {
 	private static final int STATE_SYN = 0;
 	private static final int STATE_SYN_ACK = 1;
 	private static final int STATE_ACK = 2;
@@ -14,8 +21,23 @@ public class Client implements ConnectionNotifier, Closeable {
 	boolean isOpen = false;
 	final Object isOpenLock = new Object();
 
+	DatagramChannel connectionChannel;
 	DatagramSocket connectionSocket;
 	ConnectionEndpoint endpoint;
+	EventLoop eventLoop;
+	boolean ownsEventLoop = false;
+	Supplier<CongestionControl> congestionControlFactory = NewRenoCongestionControl::new;
+	boolean requestWideSequenceNumbers = false;
+	boolean isWide = false;
+	int receiveWindow = Integer.MAX_VALUE;
+	int remoteWindow = -1;
+	boolean pacing = false;
+	long pacingRate = 0;
+	boolean pathMtuDiscovery = true;
+	int sendQueueLimit = SendQueue.DEFAULT_LIMIT_BYTES;
+	long coalescingDelayMicros = 0;
+	boolean pooledReceive = false;
+	int maxMessageSize = ConnectionEndpoint.DEFAULT_MAX_MESSAGE_SIZE;
 
 	ClientHandler handler;
 
@@ -42,29 +64,226 @@ public class Client implements ConnectionNotifier, Closeable {
 		this.handler.setClient(this);
 	}
 
+	/**
+	 * Sets the event loop the client socket is registered on once connected. If no event loop is set, the client
+	 * creates its own when connecting and closes it when the connection is closed.
+	 */
+	public void setEventLoop(EventLoop eventLoop) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change event loop while connection is open.");
+			}
+		}
+		this.eventLoop = eventLoop;
+		this.ownsEventLoop = false;
+	}
+
+	/**
+	 * Sets the congestion control algorithm used by the connection. The factory is called once per connection, and
+	 * defaults to NewRenoCongestionControl.
+	 */
+	public void setCongestionControl(Supplier<CongestionControl> congestionControlFactory) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change congestion control while connection is open.");
+			}
+		}
+		this.congestionControlFactory = congestionControlFactory;
+	}
+
+	/**
+	 * Sets whether to ask the server for 32-bit sequence numbers when connecting. They allow windows of far more
+	 * packets in flight at the cost of 4 more octets per packet, so they are only worth it for bulk transfers over
+	 * fast links.
+	 */
+	public void setWideSequenceNumbers(boolean wideSequenceNumbers) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change sequence numbers while connection is open.");
+			}
+		}
+		this.requestWideSequenceNumbers = wideSequenceNumbers;
+	}
+
+	/**
+	 * Returns whether the connection uses 32-bit sequence numbers, as negotiated with the server.
+	 */
+	public boolean isWide() {
+		return isWide;
+	}
+
+	/**
+	 * Sets the most packets the connection buffers while waiting for missing ones, which is advertised to the server as the
+	 * most packets it may have in flight. The buffer grows as needed up to this limit. Each acknowledgment advertises
+	 * what is left of it past the packets held there, so a gap shrinks the window until it is filled. Messages leave
+	 * the buffer once they are in order, so a slow handler holds back the sender by not reading rather than through
+	 * the window. Defaults to the most packets that can be in flight for the sequence number size.
+	 */
+	public void setReceiveWindow(int receiveWindow) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change receive window while connection is open.");
+			}
+		}
+		if (receiveWindow < 1) {
+			throw new IllegalArgumentException("Receive window must be positive, got " + receiveWindow);
+		}
+		this.receiveWindow = receiveWindow;
+	}
+
+	/**
+	 * Sets whether the connection paces the reliable packets it sends, spreading them over the round trip instead of
+	 * sending as many as the window allows at once. Bursts are what overflow the queues of switches and network
+	 * cards, so pacing trades a little latency for fewer losses. Defaults to false.
+	 */
+	public void setPacing(boolean pacing) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change pacing while connection is open.");
+			}
+		}
+		this.pacing = pacing;
+	}
+
+	/**
+	 * Sets the rate in bytes per second the connection is paced at if pacing is enabled. Defaults to 0, which paces
+	 * at a rate derived from the congestion window and the round trip time.
+	 */
+	public void setPacingRate(long rateBytesPerSecond) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change pacing rate while connection is open.");
+			}
+		}
+		if (rateBytesPerSecond < 0) {
+			throw new IllegalArgumentException("Pacing rate must not be negative, got " + rateBytesPerSecond);
+		}
+		this.pacingRate = rateBytesPerSecond;
+	}
+
+	/**
+	 * Sets whether the connection searches for the largest packet size the path to the server carries, by sending a few
+	 * padded probe packets after connecting. Large messages are then split into fewer, larger chunks. Packets are
+	 * kept at PacketUtils.MAX_PACKET_SIZE otherwise. Probes are never larger than the MTU of the local interface, since
+	 * the JDK cannot keep them from being fragmented. Defaults to true.
+	 */
+	public void setPathMtuDiscovery(boolean pathMtuDiscovery) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change path MTU discovery while connection is open.");
+			}
+		}
+		this.pathMtuDiscovery = pathMtuDiscovery;
+	}
+
+	/**
+	 * Sets the most bytes of reliable messages that may wait to be sent. Reliable sends fail with a
+	 * RejectedExecutionException while the queue is full, and the handler is told through onWritabilityChanged once
+	 * the queue is half full and once it has drained again. Defaults to 16 MB.
+	 */
+	public void setSendQueueLimit(int limitBytes) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change send queue limit while connection is open.");
+			}
+		}
+		if (limitBytes < 1) {
+			throw new IllegalArgumentException("Send queue limit must be positive, got " + limitBytes);
+		}
+		this.sendQueueLimit = limitBytes;
+	}
+
+	/**
+	 * Sets how long in microseconds small messages may wait to be coalesced with later ones into one packet, which
+	 * saves a packet, its header and its acknowledgment for every message that joins another. Messages are sent once
+	 * their packet is full, the delay has passed or flush() is called. The delay is rounded up to the resolution of
+	 * the event loop timer, and shorter delays send the messages once the event loop is done with its current work.
+	 * Defaults to 0, which sends every message in a packet of its own.
+	 */
+	public void setCoalescingDelay(long delayMicros) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change coalescing delay while connection is open.");
+			}
+		}
+		if (delayMicros < 0) {
+			throw new IllegalArgumentException("Coalescing delay must not be negative, got " + delayMicros);
+		}
+		this.coalescingDelayMicros = delayMicros;
+	}
+
+	/**
+	 * Sets whether received messages are handed to the handler's onReceive(SocketAddress, ByteBuffer) as read-only
+	 * views of a buffer that is reused for every message, instead of being copied into an array of their own each.
+	 * Handlers that parse messages in place then receive without allocating. Defaults to false.
+	 */
+	public void setPooledReceive(boolean pooledReceive) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change pooled receive while connection is open.");
+			}
+		}
+		this.pooledReceive = pooledReceive;
+	}
+
+	/**
+	 * Sets the size in bytes of the largest message the server may send. Room for a message sent in fragments is
+	 * allocated when its first fragment arrives, so the connection is closed if the server announces a larger one.
+	 * Defaults to 64 MiB.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change maximum message size while connection is open.");
+			}
+		}
+		if (maxMessageSize < 1) {
+			throw new IllegalArgumentException("Maximum message size must be positive, got " + maxMessageSize);
+		}
+		this.maxMessageSize = maxMessageSize;
+	}
+
 	public void connect() throws IOException {
 		if (handler == null) {
 			throw new IllegalStateException("No handler set.");
 		}
-		this.connectionSocket = new DatagramSocket();
+		//the handshake is done in blocking mode, the channel is handed to the event loop afterwards
+		this.connectionChannel = DatagramChannel.open();
+		this.connectionSocket = connectionChannel.socket();
 		connectionSocket.setSoTimeout((int) ConnectionEndpoint.RESEND_DELAY_MS);
 		int[] sequenceNumbers = new int[2]; //first index local sequence number to start, second index remote
 		boolean hasConnected = connectToRemote(sequenceNumbers);
 		if (!hasConnected) {
-			connectionSocket.close();
+			connectionChannel.close();
 			return;
 		}
 		connectionSocket.setSoTimeout(0);
+		//only the server is received from, which lets the event loop read without allocating the sender's address
+		connectionChannel.connect(address);
 
-		endpoint = new ConnectionEndpoint(connectionSocket, address, sequenceNumbers[0], sequenceNumbers[1], handler);
+		if (eventLoop == null || ownsEventLoop) {
+			eventLoop = new EventLoop();
+			ownsEventLoop = true;
+		}
+		endpoint = new ConnectionEndpoint(connectionChannel, eventLoop, address, sequenceNumbers[0], sequenceNumbers[1], isWide, receiveWindow, handler);
 		endpoint.setNotifier(this);
+		endpoint.setCongestionControl(congestionControlFactory.get());
+		endpoint.setSendQueueLimit(sendQueueLimit);
+		endpoint.setCoalescingDelay(coalescingDelayMicros);
+		endpoint.setPooledReceive(pooledReceive);
+		endpoint.setMaxMessageSize(maxMessageSize);
+		if (pacing) {
+			endpoint.setPacer(new Pacer(pacingRate));
+		}
+		endpoint.setRemoteWindow(remoteWindow);
 		isOpen = true;
 
-		Thread recvThread = new Thread(this::listen);
-		recvThread.setDaemon(true);
-		recvThread.start();
+		eventLoop.register(connectionChannel, this);
 
 		endpoint.startHeartbeat();
+		if (pathMtuDiscovery) {
+			endpoint.startPathMtuDiscovery();
+		}
 		handler.onConnect(address);
 	}
 
@@ -81,7 +300,10 @@ public class Client implements ConnectionNotifier, Closeable {
 					if (incorrectReceive >= ConnectionEndpoint.RESEND_COUNT) {
 						return false;
 					}
-					byte[] synPacket = PacketUtils.constructSYNPacket(localSequenceNumber);
+					//the window is capped by the receive buffer, which depends on the negotiated sequence number size
+					int maxPacketsInFlight = requestWideSequenceNumbers ? PacketUtils.MAX_WIDE_PACKETS_IN_FLIGHT : PacketUtils.MAX_PACKETS_IN_FLIGHT;
+					byte[] synPacket = PacketUtils.setWindow(PacketUtils.constructSYNPacket(localSequenceNumber, requestWideSequenceNumbers),
+						Math.min(receiveWindow, maxPacketsInFlight));
 					DatagramPacket connectionPacket = new DatagramPacket(synPacket, synPacket.length, address);
 					try {
 						connectionSocket.send(connectionPacket);
@@ -102,14 +324,17 @@ public class Client implements ConnectionNotifier, Closeable {
 					}
 					byte[] data = new byte[ackPacket.getLength()];
 					System.arraycopy(ackPacket.getData(), ackPacket.getOffset(), data, 0, data.length);
-					int seqNum = PacketUtils.getSeqNum(data);
-					int ackNum = PacketUtils.getAckNum(data);
-					if (data[0] == PacketUtils.VERSION_ID) {
+					if (PacketUtils.isValidPacket(data)) {
+						int seqNum = PacketUtils.getSeqNum(data);
+						int ackNum = PacketUtils.getAckNum(data);
 						if (PacketUtils.isSYNACK(data) &&
 							ackNum == localSequenceNumber) {
 							state = STATE_ACK;
 							localSequenceNumber++;
 							remoteSequenceNumber = seqNum;
+							//the server may not agree to wide sequence numbers
+							isWide = requestWideSequenceNumbers && PacketUtils.isWide(data);
+							remoteWindow = PacketUtils.getWindow(data);
 						}
 						else {
 							state = STATE_SYN;
@@ -118,7 +343,7 @@ public class Client implements ConnectionNotifier, Closeable {
 					}
 				}
 				case STATE_ACK -> {
-					byte[] ackPacket = PacketUtils.constructACKPacket(localSequenceNumber, remoteSequenceNumber);
+					byte[] ackPacket = PacketUtils.constructACKPacket(localSequenceNumber, remoteSequenceNumber, isWide);
 					DatagramPacket connectionPacket = new DatagramPacket(
 						ackPacket, ackPacket.length, address);
 					connectionSocket.send(connectionPacket);
@@ -134,51 +359,180 @@ public class Client implements ConnectionNotifier, Closeable {
 		return true;
 	}
 
-	private void listen() {
-		byte[] buffer = new byte[PacketUtils.MAX_PACKET_SIZE];
-		DatagramPacket recvPacket = new DatagramPacket(buffer, PacketUtils.MAX_PACKET_SIZE);
+	@Override
+	public void onPacket(SocketAddress recvAddress, byte[] data) {
+		endpoint.handlePacket(data);
+	}
 
-		while (true) {
-			synchronized (isOpenLock) {
-				if (!isOpen) {
-					break;
-				}
+	@Override
+	public void onReadComplete() {
+		endpoint.onReadComplete();
+	}
+
+	@Override
+	public void onClose() {
+		synchronized (isOpenLock) {
+			isOpen = false;
+		}
+	}
+
+	public CompletableFuture<Void> sendReliable(byte[] data) {
+		return sendReliable(0, data);
+	}
+
+	/**
+	 * Sends the data on the given channel, between 0 and PacketUtils.MAX_CHANNELS - 1. Each channel is ordered
+	 * separately, so a packet lost on one channel does not hold back the messages of other channels.
+	 */
+	public CompletableFuture<Void> sendReliable(int channel, byte[] data) {
+		return sendReliable(channel, data, Priority.NORMAL);
+	}
+
+	/**
+	 * Sends the data on the given channel. While the window is full, queued messages are sent in the order of their
+	 * priority classes. Returns a future that completes once the server acknowledged the message, or fails if the
+	 * send queue is full or the connection closes first.
+	 */
+	public CompletableFuture<Void> sendReliable(int channel, byte[] data, Priority priority) {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				throw new IllegalStateException("Connection is closed.");
 			}
-			try {
-				connectionSocket.receive(recvPacket);
-			} catch (SocketException e) {
-				synchronized (isOpenLock) {
-					isOpen = false;
-				}
-				break;
-			} catch (IOException e) {
-				e.printStackTrace();
-				synchronized (isOpenLock) {
-					isOpen = false;
-				}
-				break;
+		}
+		return endpoint.sendReliable(channel, data, priority);
+	}
+
+	/**
+	 * Sends the given length of the data starting at the offset, without copying the slice into an array of its own
+	 * first.
+	 */
+	public CompletableFuture<Void> sendReliable(byte[] data, int offset, int length) {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				throw new IllegalStateException("Connection is closed.");
+			}
+		}
+		return endpoint.sendReliable(0, data, offset, length, Priority.NORMAL);
+	}
+
+	public CompletableFuture<Void> sendReliable(ByteBuffer data) {
+		return sendReliable(0, data, Priority.NORMAL);
+	}
+
+	/**
+	 * Sends the bytes remaining in the buffer on the given channel, and moves its position up to its limit. The
+	 * buffer may be reused once this returns.
+	 */
+	public CompletableFuture<Void> sendReliable(int channel, ByteBuffer data, Priority priority) {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				throw new IllegalStateException("Connection is closed.");
+			}
+		}
+		return endpoint.sendReliable(channel, data, priority);
+	}
+
+	public CompletableFuture<Void> sendReliable(byte[][] messages) {
+		return sendReliable(Arrays.asList(messages));
+	}
+
+	public CompletableFuture<Void> sendReliable(List<byte[]> messages) {
+		return sendReliable(0, messages, Priority.NORMAL);
+	}
+
+	/**
+	 * Sends the messages on the given channel in the order they are given, queued at once so that they are sent
+	 * together with consecutive sequence numbers. This is cheaper than sending them one by one. Returns a future that
+	 * completes once the server acknowledged every message. If the send queue has no room for all of them, none of
+	 * them is sent.
+	 */
+	public CompletableFuture<Void> sendReliable(int channel, List<byte[]> messages, Priority priority) {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				throw new IllegalStateException("Connection is closed.");
 			}
-			byte[] data = new byte[recvPacket.getLength()];
-			System.arraycopy(recvPacket.getData(), recvPacket.getOffset(), data, 0, data.length);
-			endpoint.handlePacket(data);
 		}
+		return endpoint.sendReliable(channel, messages, priority);
+	}
+
+	/**
+	 * Sends the data reliably, to be delivered as soon as it arrives rather than after every message sent before it.
+	 */
+	public CompletableFuture<Void> sendReliableUnordered(byte[] data) {
+		return sendReliableUnordered(data, Priority.NORMAL);
 	}
 
-	public void sendReliable(byte[] data) {
+	public CompletableFuture<Void> sendReliableUnordered(byte[] data, Priority priority) {
 		synchronized (isOpenLock) {
 			if (!isOpen) {
 				throw new IllegalStateException("Connection is closed.");
 			}
 		}
-		endpoint.sendReliable(data);
+		return endpoint.sendReliableUnordered(data, priority);
 	}
 
 	public void sendRaw(byte[] data) {
-		byte[] header = PacketUtils.constructUnreliablePacket(data);
-		DatagramPacket packet = new DatagramPacket(header, header.length, address);
 		try {
-			endpoint.sendRaw(packet);
-		} catch (SocketException e) {
+			endpoint.sendUnreliable(data);
+		} catch (SocketException | ClosedChannelException e) {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Sends the given length of the data starting at the offset unreliably. The packet header and the slice are
+	 * written to the socket together, so the slice is not copied into a packet of its own.
+	 */
+	public void sendRaw(byte[] data, int offset, int length) {
+		try {
+			endpoint.sendUnreliable(data, offset, length);
+		} catch (SocketException | ClosedChannelException e) {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Sends the bytes remaining in the buffer unreliably, and moves its position up to its limit.
+	 */
+	public void sendRaw(ByteBuffer data) {
+		try {
+			endpoint.sendUnreliable(data);
+		} catch (SocketException | ClosedChannelException e) {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Sends the data unreliably as the next message of the sequenced stream of the given channel. The server drops
+	 * it if a newer message of the stream arrived before it.
+	 */
+	public void sendRawSequenced(int channel, byte[] data) {
+		try {
+			endpoint.sendRawSequenced(channel, data);
+		} catch (SocketException | ClosedChannelException e) {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Sends the small messages waiting to be coalesced with later ones right away.
+	 */
+	public void flush() {
+		try {
+			endpoint.flush();
+		} catch (SocketException | ClosedChannelException e) {
 			close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -190,6 +544,42 @@ public class Client implements ConnectionNotifier, Closeable {
 		endpoint.disconnect();
 	}
 
+	/**
+	 * Returns the smoothed round trip time to the server in milliseconds, or -1 if it has not been measured yet.
+	 */
+	public double getRoundTripTime() {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				throw new IllegalStateException("Connection is closed.");
+			}
+		}
+		return endpoint.getRoundTripTime();
+	}
+
+	/**
+	 * Returns the largest packet size known to reach the server.
+	 */
+	public int getMaxPacketSize() {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				throw new IllegalStateException("Connection is closed.");
+			}
+		}
+		return endpoint.getMaxPacketSize();
+	}
+
+	/**
+	 * Returns whether the send queue has room for more messages.
+	 */
+	public boolean isWritable() {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				throw new IllegalStateException("Connection is closed.");
+			}
+		}
+		return endpoint.isWritable();
+	}
+
 	public boolean isOpen() {
 		synchronized (isOpenLock) {
 			return isOpen;
@@ -198,10 +588,17 @@ public class Client implements ConnectionNotifier, Closeable {
 
 	@Override
 	public void onDisconnect(SocketAddress address) {
-		connectionSocket.close();
+		try {
+			connectionChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 		synchronized (isOpenLock) {
 			isOpen = false;
 		}
+		if (ownsEventLoop) {
+			eventLoop.shutdown();
+		}
 	}
 
 	@Override
@@ -215,6 +612,9 @@ public class Client implements ConnectionNotifier, Closeable {
 			endpoint.close();
 		}
 		onDisconnect(address);
+		if (ownsEventLoop) {
+			eventLoop.close();
+		}
 	}
 
 	public SocketAddress getLocalAddress() {
@@ -1,5 +1,9 @@
 package network;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public abstract class ClientHandler implements Handler {
 	Client client;
 
@@ -11,8 +15,68 @@ public abstract class ClientHandler implements Handler {
 		client.sendRaw(data);
 	}
 
-	public void sendReliable(byte[] data) {
-		client.sendReliable(data);
+	public void sendRaw(byte[] data, int offset, int length) {
+		client.sendRaw(data, offset, length);
+	}
+
+	public void sendRaw(ByteBuffer data) {
+		client.sendRaw(data);
+	}
+
+	public void sendRawSequenced(int channel, byte[] data) {
+		client.sendRawSequenced(channel, data);
+	}
+
+	public CompletableFuture<Void> sendReliable(byte[] data) {
+		return client.sendReliable(data);
+	}
+
+	public CompletableFuture<Void> sendReliable(int channel, byte[] data) {
+		return client.sendReliable(channel, data);
+	}
+
+	public CompletableFuture<Void> sendReliable(int channel, byte[] data, Priority priority) {
+		return client.sendReliable(channel, data, priority);
+	}
+
+	public CompletableFuture<Void> sendReliable(byte[] data, int offset, int length) {
+		return client.sendReliable(data, offset, length);
+	}
+
+	public CompletableFuture<Void> sendReliable(ByteBuffer data) {
+		return client.sendReliable(data);
+	}
+
+	public CompletableFuture<Void> sendReliable(int channel, ByteBuffer data, Priority priority) {
+		return client.sendReliable(channel, data, priority);
+	}
+
+	public CompletableFuture<Void> sendReliable(byte[][] messages) {
+		return client.sendReliable(messages);
+	}
+
+	public CompletableFuture<Void> sendReliable(List<byte[]> messages) {
+		return client.sendReliable(messages);
+	}
+
+	public CompletableFuture<Void> sendReliable(int channel, List<byte[]> messages, Priority priority) {
+		return client.sendReliable(channel, messages, priority);
+	}
+
+	public CompletableFuture<Void> sendReliableUnordered(byte[] data) {
+		return client.sendReliableUnordered(data);
+	}
+
+	public CompletableFuture<Void> sendReliableUnordered(byte[] data, Priority priority) {
+		return client.sendReliableUnordered(data, priority);
+	}
+
+	public boolean isWritable() {
+		return client.isWritable();
+	}
+
+	public void flush() {
+		client.flush();
 	}
 
 	public void disconnect() {
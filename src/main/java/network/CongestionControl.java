@@ -0,0 +1,28 @@
+package network;
+
+/**
+ * Decides how many reliable packets a connection may have in flight. Each connection gets its own instance, which
+ * is notified of acknowledgments from the event loop and may be queried for its window from any thread.
+ */
+public interface CongestionControl {
+	/**
+	 * Returns the number of unacknowledged packets that may be in flight.
+	 */
+	int getCongestionWindow();
+
+	/**
+	 * Called when packets are newly acknowledged. The smoothed round trip time is -1 if it has not been measured yet.
+	 */
+	void onAck(int numAcked, long smoothedRttNanos, long currentTimeNanos);
+
+	/**
+	 * Called when the oldest packet in flight timed out.
+	 */
+	void onTimeout();
+
+	/**
+	 * Called when a packet was found lost through the acknowledgments of later packets and was retransmitted right
+	 * away. Called at most once per window of packets in flight.
+	 */
+	void onLoss(long currentTimeNanos);
+}
@@ -3,95 +3,478 @@ package network;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 class ConnectionEndpoint implements Closeable {
-	static final long RESEND_DELAY_MS = 500; // 0.5 seconds
+	static final long RESEND_DELAY_MS = 500; // 0.5 seconds, until the round trip time has been measured
 	static final int RESEND_COUNT = 4;
+	static final long CONNECTION_TIMEOUT_MS = 5000; // 5 seconds
 	private static final long HEARTBEAT_RESEND_DELAY_MS = 3000; // 3 seconds
+	static final long DELAYED_ACK_MS = 10;
+	static final int ACK_EVERY_N_PACKETS = 2;
+	//packets acknowledged past a missing one before it is retransmitted without waiting for its timeout
+	static final int FAST_RETRANSMIT_THRESHOLD = 3;
+	static final long MIN_PROBE_TIMEOUT_MS = 10;
+	static final int BLACK_HOLE_RESEND_COUNT = 2;
+	static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+	private static final byte[] UNRELIABLE_HEADER = PacketUtils.constructUnreliablePacket(new byte[0]);
 
 	private SocketAddress address;
 	private final ConnectionInfo info;
 	private Handler handler;
-	private Queue<byte[]> sendQueue = new ConcurrentLinkedQueue<>();
+	private final SendQueue sendQueue = new SendQueue();
+	//guarded by info
+	private int nextMessageId = 0;
 
-	private final DatagramSocket socket;
+	private final DatagramChannel channel;
+	//no other lock is taken while holding isOpenLock, so it may be taken while holding any of them
 	private boolean isOpen = true;
 	private final Object isOpenLock = new Object();
 
 	private byte[][] chunkedMessageBuffer = new byte[PacketUtils.MAX_NUM_CHUNKS][];
 	private int expectedNumChunks = 0;
 	private int numChunksReceived = 0;
+	//messages being reassembled from fragments by message id, only accessed from the event loop
+	private final Map<Integer, PartialMessage> partialMessages = new HashMap<>();
+	private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+	//packets being put back together from pieces by sequence number, only accessed from the event loop
+	private final Map<Integer, PartialMessage> partialPackets = new HashMap<>();
+	//messages received in the current batch of packets that the handler has not been given yet
+	private final ReceivedMessages received = new ReceivedMessages();
+	//packets flushed from a receive buffer, reused for every flush and only accessed from the event loop
+	private final List<byte[]> flushed = new ArrayList<>();
 
 	private ConnectionNotifier notifier;
 
-	private final Timer timer = new Timer();
+	//guarded by info, acknowledgments owed to the remote endpoint that have not been sent or piggybacked yet
+	private int numUnacknowledged = 0;
+	private boolean isAckUrgent = false;
+	private TimingWheel.Timeout delayedAckTimeout;
+	//only accessed from the event loop
+	private boolean isAckPending = false;
 
-	ConnectionEndpoint(DatagramSocket socket, SocketAddress address, int localSeqNum, int remoteSeqNum, Handler handler) {
-		this(socket, address, new ConnectionInfo(localSeqNum, remoteSeqNum), handler);
+	//only accessed from the event loop, losses of packets before this sequence number do not reduce the window again
+	private int recoveryPoint;
+	//guarded by this, the tail loss probe is sent once no packet was sent or acknowledged for the probe timeout
+	private TimingWheel.Timeout probeTimeout;
+	private long lastProgressNanos;
+	//null if packets are sent as soon as the window allows, the timeout is guarded by this
+	private Pacer pacer;
+	private TimingWheel.Timeout pacingTimeout;
+	//guarded by this, the probe is presumed lost if it is still pending
+	private TimingWheel.Timeout mtuProbeTimeout;
+	//0 if every message is sent in a packet of its own, the bundles of small messages waiting to be sent are guarded
+	//by this
+	private long coalescingDelayMicros = 0;
+	private MessageBundle reliableBundle;
+	private MessageBundle unreliableBundle;
+	private boolean isBundleFlushScheduled = false;
+
+	private final EventLoop eventLoop;
+	private TimingWheel.Timeout heartbeatTimeout;
+
+	ConnectionEndpoint(DatagramChannel channel, EventLoop eventLoop, SocketAddress address, int localSeqNum, int remoteSeqNum, Handler handler) {
+		this(channel, eventLoop, address, new ConnectionInfo(localSeqNum, remoteSeqNum), handler);
+	}
+
+	ConnectionEndpoint(DatagramChannel channel, EventLoop eventLoop, SocketAddress address, int localSeqNum, int remoteSeqNum,
+					   boolean isWide, int receiveWindow, Handler handler) {
+		this(channel, eventLoop, address, new ConnectionInfo(localSeqNum, remoteSeqNum, isWide, receiveWindow), handler);
 	}
 
-	public ConnectionEndpoint(DatagramSocket socket, SocketAddress address, ConnectionInfo info, Handler handler) {
-		this.socket = socket;
+	public ConnectionEndpoint(DatagramChannel channel, EventLoop eventLoop, SocketAddress address, ConnectionInfo info, Handler handler) {
+		this.channel = channel;
+		this.eventLoop = eventLoop;
 		this.address = address;
 		this.info = info;
 		this.handler = handler;
+		this.recoveryPoint = info.localSequenceNumber;
 	}
 
 	void setNotifier(ConnectionNotifier notifier) {
 		this.notifier = notifier;
 	}
 
-	void sendReliable(byte[] data) {
+	/**
+	 * Sets the receive window advertised by the remote endpoint, if the packet carries one.
+	 */
+	void updateRemoteWindow(byte[] data) {
+		setRemoteWindow(PacketUtils.getWindow(data));
+	}
+
+	void setRemoteWindow(int window) {
+		if (window > 0) {
+			synchronized (info) {
+				info.remoteWindow = window;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of packets past the cumulative ack this endpoint can still buffer, which is its capacity less
+	 * the packets held there until the ones missing before them arrive.
+	 */
+	int getReceiveWindow() {
+		return info.receiveBuffer.getMaxCapacity() - info.receiveBuffer.size();
+	}
+
+	/**
+	 * Sets the congestion control of the connection. Should be called before anything is sent.
+	 */
+	void setCongestionControl(CongestionControl congestionControl) {
+		info.congestionControl = congestionControl;
+	}
+
+	/**
+	 * Sets the pacer that spreads out the reliable packets sent, or null to send them as soon as the window allows.
+	 * Should be called before anything is sent.
+	 */
+	void setPacer(Pacer pacer) {
+		this.pacer = pacer;
+	}
+
+	/**
+	 * Sets whether received messages are handed to the handler as read-only views of a buffer that is reused for every
+	 * message rather than copied into arrays of their own. Should be called before anything is received.
+	 */
+	void setPooledReceive(boolean pooledReceive) {
+		received.setPooled(pooledReceive);
+	}
+
+	/**
+	 * Sets how long small messages may wait to be coalesced with later ones into one packet, or 0 to send every
+	 * message in a packet of its own. Should be called before anything is sent.
+	 */
+	void setCoalescingDelay(long delayMicros) {
+		this.coalescingDelayMicros = delayMicros;
+	}
+
+	/**
+	 * Sets the size of the largest message the remote endpoint may send in fragments. The connection is closed if a
+	 * fragment of a larger one arrives. Should be called before anything is received.
+	 */
+	void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Sets the most bytes of reliable messages that may wait to be sent before further ones are rejected.
+	 */
+	void setSendQueueLimit(int limitBytes) {
+		sendQueue.setLimit(limitBytes);
+	}
+
+	/**
+	 * Returns whether the send queue has room for more messages, see Handler.onWritabilityChanged.
+	 */
+	boolean isWritable() {
+		return sendQueue.isWritable();
+	}
+
+	CompletableFuture<Void> sendReliable(byte[] data) {
+		return sendReliable(0, data);
+	}
+
+	/**
+	 * Sends the data on the given channel. Messages are delivered in the order they were sent on their channel, and
+	 * a packet lost on one channel does not hold back the messages of other channels.
+	 */
+	CompletableFuture<Void> sendReliable(int channel, byte[] data) {
+		return sendReliable(channel, data, Priority.NORMAL);
+	}
+
+	/**
+	 * Sends the data on the given channel, ahead of queued messages of lower priority classes. Returns a future that
+	 * completes once the remote endpoint acknowledged the message. It fails with a RejectedExecutionException if the
+	 * send queue is full, and with an IllegalStateException if the connection is or gets closed first.
+	 */
+	CompletableFuture<Void> sendReliable(int channel, byte[] data, Priority priority) {
+		return sendReliable(channel, data, 0, data.length, priority);
+	}
+
+	/**
+	 * Sends the given length of the data starting at the offset on the given channel. The slice is copied straight
+	 * into the packets that carry it, so the caller does not need to copy it into an array of its own first.
+	 */
+	CompletableFuture<Void> sendReliable(int channel, byte[] data, int offset, int length, Priority priority) {
+		PacketUtils.checkChannel(channel);
+		PacketUtils.checkSlice(data, offset, length);
+		return queueReliable(channel, data, offset, length, priority);
+	}
+
+	/**
+	 * Sends the bytes remaining in the buffer on the given channel, and moves its position up to its limit.
+	 */
+	CompletableFuture<Void> sendReliable(int channel, ByteBuffer data, Priority priority) {
+		int length = data.remaining();
+		if (data.hasArray()) {
+			CompletableFuture<Void> completion = sendReliable(channel, data.array(), data.arrayOffset() + data.position(), length, priority);
+			data.position(data.limit());
+			return completion;
+		}
+		//the packets must outlive the buffer, since they are retransmitted until acknowledged
+		byte[] copy = new byte[length];
+		data.get(copy);
+		return sendReliable(channel, copy, 0, length, priority);
+	}
+
+	/**
+	 * Sends the data reliably, to be delivered as soon as it arrives rather than after every message sent before it.
+	 */
+	CompletableFuture<Void> sendReliableUnordered(byte[] data, Priority priority) {
+		return queueReliable(PacketUtils.UNORDERED_CHANNEL, data, 0, data.length, priority);
+	}
+
+	/**
+	 * Sends the messages on the given channel in the order they are given. They are built under one lock and queued
+	 * at once, so that they are sent in one pass with consecutive sequence numbers as far as the window allows.
+	 * Returns a future that completes once every message was acknowledged. If the send queue has no room for all of
+	 * them, none of them is sent and the future fails with a RejectedExecutionException.
+	 */
+	CompletableFuture<Void> sendReliable(int channel, List<byte[]> messages, Priority priority) {
+		PacketUtils.checkChannel(channel);
 		synchronized (isOpenLock) {
 			if (!isOpen) {
-				return;
+				return CompletableFuture.failedFuture(new IllegalStateException("Connection is closed."));
 			}
 		}
-		if (data.length > PacketUtils.MAX_DATA_PER_CHUNK) {
-			if (data.length > PacketUtils.MAX_PAYLOAD_SIZE) {
-				throw new IllegalArgumentException("Payload size " + data.length + " is too large to be sent.");
-			}
-			byte[][] payloads;
-			synchronized (info) {
-				payloads = PacketUtils.constructReliableChunkedPackets(data, info.localSequenceNumber);
-				info.localSequenceNumber += payloads.length;
-			}
-			for (int i = 0; i < payloads.length; i++) {
-				queueMessage(payloads[i]);
+		CompletableFuture<?>[] completions = new CompletableFuture<?>[messages.size()];
+		if (coalescingDelayMicros > 0) {
+			//the messages join bundles one by one, which are queued as they fill up
+			synchronized (this) {
+				for (int i = 0; i < completions.length; i++) {
+					byte[] message = messages.get(i);
+					completions[i] = queueReliableNoOpenCheck(channel, message, 0, message.length, priority);
+				}
 			}
+			return CompletableFuture.allOf(completions);
 		}
-		else {
-			byte[] payload;
-			synchronized (info) {
-				payload = PacketUtils.constructReliablePacket(data, info.localSequenceNumber, info.remoteSequenceNumber);
-				info.localSequenceNumber++;
+		List<OutgoingMessage> batch = new ArrayList<>(messages.size());
+		int maxPayloadSize = info.pathMtu.getPacketSize() - PacketUtils.getReliableHeaderSize(info.isWide, channel);
+		synchronized (info) {
+			for (int i = 0; i < messages.size(); i++) {
+				byte[] message = messages.get(i);
+				batch.add(newMessage(channel, message, 0, message.length, maxPayloadSize));
 			}
-			queueMessage(payload);
 		}
+		if (!sendQueue.offerAll(batch, priority)) {
+			return CompletableFuture.failedFuture(sendQueue.isClosed() ?
+				new IllegalStateException("Connection is closed.") : new RejectedExecutionException("Send queue is full."));
+		}
+		drainSendQueue();
+		for (int i = 0; i < completions.length; i++) {
+			completions[i] = batch.get(i).getCompletion();
+		}
+		return CompletableFuture.allOf(completions);
 	}
 
-	void sendReliablePayload(byte[] payload) {
+	private CompletableFuture<Void> queueReliable(int channel, byte[] data, int offset, int length, Priority priority) {
 		synchronized (isOpenLock) {
 			if (!isOpen) {
-				return;
+				return CompletableFuture.failedFuture(new IllegalStateException("Connection is closed."));
+			}
+		}
+		return queueReliableNoOpenCheck(channel, data, offset, length, priority);
+	}
+
+	/**
+	 * Queues the message without checking whether the connection is open, which the caller has done. If it closes in
+	 * the meantime, the send queue rejects the message.
+	 */
+	private CompletableFuture<Void> queueReliableNoOpenCheck(int channel, byte[] data, int offset, int length, Priority priority) {
+		if (coalescingDelayMicros > 0) {
+			synchronized (this) {
+				CompletableFuture<Void> completion = coalesceReliable(channel, data, offset, length, priority);
+				if (completion != null) {
+					return completion;
+				}
+				//a message sent on its own must not overtake the messages waiting in the bundle
+				flushReliableBundle();
 			}
 		}
+		int maxPayloadSize = info.pathMtu.getPacketSize() - PacketUtils.getReliableHeaderSize(info.isWide, channel);
+		OutgoingMessage message;
 		synchronized (info) {
-			info.localSequenceNumber++;
+			message = newMessage(channel, data, offset, length, maxPayloadSize);
+		}
+		return offerMessage(message, priority);
+	}
+
+	/**
+	 * Returns a message sending the given slice of the data on the given channel, in one packet if it fits in the
+	 * given payload size. Must hold the info lock.
+	 */
+	private OutgoingMessage newMessage(int channel, byte[] data, int offset, int length, int maxPayloadSize) {
+		if (length > maxPayloadSize) {
+			//messages of any size are cut into fragments as they are sent, so the data is copied only once
+			return OutgoingMessage.ofFragments(Arrays.copyOfRange(data, offset, offset + length), nextMessageId++, channel);
+		}
+		return OutgoingMessage.ofPacket(PacketUtils.constructReliablePacket(data, offset, length, 0, info.remoteSequenceNumber, info.isWide, channel));
+	}
+
+	/**
+	 * Adds the message to the bundle of reliable messages, which is sent once it is full or the coalescing delay has
+	 * passed. A bundle only holds messages of one channel and priority class, so the bundle is sent first if the
+	 * message belongs to another one. Returns null if the message is too large to be bundled. Must hold the lock on
+	 * this.
+	 */
+	private CompletableFuture<Void> coalesceReliable(int channel, byte[] data, int offset, int length, Priority priority) {
+		int capacity = info.pathMtu.getPacketSize() - PacketUtils.getBundleHeaderSize(info.isWide, channel);
+		if (!MessageBundle.fits(length, capacity)) {
+			return null;
+		}
+		if (reliableBundle != null && !reliableBundle.canAdd(length, channel, priority)) {
+			flushReliableBundle();
+		}
+		if (reliableBundle == null) {
+			reliableBundle = new MessageBundle(capacity, channel, priority);
+		}
+		CompletableFuture<Void> completion = new CompletableFuture<>();
+		reliableBundle.add(data, offset, length, completion);
+		if (reliableBundle.isFull()) {
+			flushReliableBundle();
+		}
+		else {
+			scheduleBundleFlush();
 		}
-		queueMessage(payload);
+		return completion;
 	}
 
-	private void queueMessage(byte[] payload) {
-		if (info.ackBuffer.isFull() || !sendQueue.isEmpty()) {
-			sendQueue.add(payload);
+	/**
+	 * Queues the bundle of reliable messages, if there is one. Must hold the lock on this.
+	 */
+	private void flushReliableBundle() {
+		MessageBundle bundle = reliableBundle;
+		if (bundle == null) {
 			return;
 		}
+		reliableBundle = null;
+		byte[] payload;
+		synchronized (info) {
+			payload = PacketUtils.constructReliableBundlePacket(bundle.toByteArray(), 0, info.remoteSequenceNumber, info.isWide, bundle.getChannel());
+		}
+		bundle.completeWith(offerMessage(OutgoingMessage.ofPacket(payload), bundle.getPriority()));
+	}
+
+	/**
+	 * Sends the data unreliably, coalesced with other small unreliable messages into one packet if coalescing is
+	 * enabled.
+	 */
+	void sendUnreliable(byte[] data) throws IOException {
+		sendUnreliable(data, 0, data.length);
+	}
+
+	/**
+	 * Sends the given length of the data starting at the offset unreliably.
+	 */
+	void sendUnreliable(byte[] data, int offset, int length) throws IOException {
+		PacketUtils.checkSlice(data, offset, length);
+		if (coalescingDelayMicros > 0) {
+			synchronized (this) {
+				int capacity = info.pathMtu.getPacketSize() - PacketUtils.getBundleHeaderSize(false, 0);
+				if (MessageBundle.fits(length, capacity)) {
+					if (unreliableBundle != null && !unreliableBundle.canAdd(length, 0, null)) {
+						flushUnreliableBundle();
+					}
+					if (unreliableBundle == null) {
+						unreliableBundle = new MessageBundle(capacity, 0, null);
+					}
+					unreliableBundle.add(data, offset, length, null);
+					if (unreliableBundle.isFull()) {
+						flushUnreliableBundle();
+					}
+					else {
+						scheduleBundleFlush();
+					}
+					return;
+				}
+				flushUnreliableBundle();
+			}
+		}
+		if (channel.isConnected()) {
+			writeUnreliable(ByteBuffer.wrap(data, offset, length));
+		}
+		else {
+			sendRaw(PacketUtils.constructUnreliablePacket(data, offset, length));
+		}
+	}
+
+	/**
+	 * Sends the bytes remaining in the buffer unreliably, and moves its position up to its limit.
+	 */
+	void sendUnreliable(ByteBuffer data) throws IOException {
+		if (data.hasArray()) {
+			sendUnreliable(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.limit());
+		}
+		else if (coalescingDelayMicros == 0 && channel.isConnected()) {
+			writeUnreliable(data);
+		}
+		else {
+			byte[] copy = new byte[data.remaining()];
+			data.get(copy);
+			sendUnreliable(copy, 0, copy.length);
+		}
+	}
+
+	/**
+	 * Writes the payload behind the header of an unreliable packet with a gathering write, so that the payload is
+	 * not copied into a packet of its own. The channel must be connected to the remote endpoint.
+	 */
+	private void writeUnreliable(ByteBuffer payload) throws IOException {
+		channel.write(new ByteBuffer[]{ByteBuffer.wrap(UNRELIABLE_HEADER), payload});
+	}
+
+	/**
+	 * Sends the bundle of unreliable messages, if there is one. Must hold the lock on this.
+	 */
+	private void flushUnreliableBundle() throws IOException {
+		MessageBundle bundle = unreliableBundle;
+		if (bundle == null) {
+			return;
+		}
+		unreliableBundle = null;
+		sendRaw(PacketUtils.constructUnreliableBundlePacket(bundle.toByteArray()));
+	}
+
+	/**
+	 * Sends the small messages waiting to be coalesced with later ones right away.
+	 */
+	synchronized void flush() throws IOException {
+		flushReliableBundle();
+		flushUnreliableBundle();
+	}
+
+	/**
+	 * Makes sure the bundles are flushed once the coalescing delay has passed. Delays shorter than a tick of the
+	 * event loop timer flush once the loop has handled what it is currently busy with, which still coalesces the
+	 * messages sent while handling one batch of packets. Must hold the lock on this.
+	 */
+	private void scheduleBundleFlush() {
+		if (isBundleFlushScheduled) {
+			return;
+		}
+		isBundleFlushScheduled = true;
+		if (coalescingDelayMicros < EventLoop.TIMER_TICK_MS * 1000) {
+			eventLoop.execute(this::flushOnDeadline);
+		}
+		else {
+			eventLoop.schedule(this::flushOnDeadline, (coalescingDelayMicros + 999) / 1000);
+		}
+	}
+
+	private void flushOnDeadline() {
+		synchronized (this) {
+			isBundleFlushScheduled = false;
+		}
 		try {
-			sendReliableNoBufferCheck(payload);
-		} catch (SocketException e) {
+			flush();
+		} catch (SocketException | ClosedChannelException e) {
 			close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -99,20 +482,90 @@ class ConnectionEndpoint implements Closeable {
 		}
 	}
 
-	void handlePacket(byte[] data) {
+	/**
+	 * Queues a reliable packet built by the caller. Its sequence number is overwritten when it is sent.
+	 */
+	void sendReliablePayload(byte[] payload) {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				return;
+			}
+		}
+		queueMessage(OutgoingMessage.ofPacket(payload), Priority.NORMAL);
+	}
+
+	private void queueMessage(OutgoingMessage message, Priority priority) {
+		sendQueue.add(message, priority);
+		drainSendQueue();
+	}
+
+	/**
+	 * Queues the message unless the send queue is full or closed, and returns its completion.
+	 */
+	private CompletableFuture<Void> offerMessage(OutgoingMessage message, Priority priority) {
+		if (!sendQueue.offer(message, priority)) {
+			return CompletableFuture.failedFuture(sendQueue.isClosed() ?
+				new IllegalStateException("Connection is closed.") : new RejectedExecutionException("Send queue is full."));
+		}
+		drainSendQueue();
+		return message.getCompletion();
+	}
+
+	/**
+	 * Handles a packet received from the remote endpoint. The messages it carries are collected and handed to the
+	 * handler together with the rest of the batch, and acknowledgments for received reliable packets are not sent
+	 * right away, so that one ACK can cover every packet of a batch or be piggybacked on outgoing data. Returns true
+	 * if the packet left messages or an acknowledgment pending where none were before, in which case onReadComplete()
+	 * should be called once the current batch of packets has been handled.
+	 */
+	boolean handlePacket(byte[] data) {
+		boolean wasPending = isAckPending || !received.isEmpty();
+		dispatchPacket(data);
+		return (isAckPending || !received.isEmpty()) && !wasPending;
+	}
+
+	/**
+	 * Hands the messages received in the current batch of packets to the handler, then acknowledges the packets
+	 * unless a reply sent by the handler already did.
+	 */
+	void onReadComplete() {
+		try {
+			deliverReceived();
+		} finally {
+			flushAck();
+		}
+	}
+
+	/**
+	 * Hands the messages received so far to the handler.
+	 */
+	private void deliverReceived() {
+		if (!received.isEmpty()) {
+			received.deliver(handler, address);
+		}
+	}
+
+	private void dispatchPacket(byte[] data) {
 		if (!PacketUtils.isValidPacket(data)) {
 			return;
 		}
 		byte flags = PacketUtils.getFlags(data);
-		if ((flags & PacketUtils.SYN_MASK) == PacketUtils.SYN_MASK ||
+		if ((flags & (PacketUtils.RELIABLE_MASK | PacketUtils.HEARTBEAT_MASK)) == PacketUtils.HEARTBEAT_MASK) {
+			handleProbe(data);
+		}
+		else if ((flags & PacketUtils.SYN_MASK) == PacketUtils.SYN_MASK ||
 			(flags & (PacketUtils.SYN_MASK | PacketUtils.ACK_MASK)) == (PacketUtils.SYN_MASK | PacketUtils.ACK_MASK)) {
 			return;
 		}
 		else if ((flags & (PacketUtils.SYN_MASK | PacketUtils.ACK_MASK)) == (PacketUtils.ACK_MASK)) {
 			handleAck(data);
+			//reliable data with a piggybacked acknowledgment
+			if ((flags & (PacketUtils.RELIABLE_MASK | PacketUtils.FIN_MASK)) == PacketUtils.RELIABLE_MASK) {
+				processReliablePacket(data);
+			}
 		}
 		else if ((flags & (PacketUtils.ACK_MASK | PacketUtils.RELIABLE_MASK)) == 0) {
-			processRawPacket(data);
+			processUnreliablePacket(data);
 		}
 		else {
 			processReliablePacket(data);
@@ -121,28 +574,196 @@ class ConnectionEndpoint implements Closeable {
 
 	private void handleAck(byte[] data) {
 		if (PacketUtils.isFINACK(data)) {
+			deliverReceived();
 			close();
 		}
+		updateRemoteWindow(data);
 		int ackNumber = PacketUtils.getAckNum(data);
-		if (!info.ackBuffer.isAcked(ackNumber)) {
-			info.ackBuffer.signalAck(ackNumber);
+		long sendTime = info.ackBuffer.signalAcks(ackNumber, PacketUtils.getAckBitmap(data));
+		long currentTime = System.nanoTime();
+		//only packets that were sent once give an unambiguous sample
+		if (sendTime >= 0) {
+			info.rttEstimator.addSample(currentTime - sendTime);
+		}
+		info.ackBuffer.completeAcked();
+		int numAcked = info.ackBuffer.getNumNewlyAcked();
+		if (numAcked > 0) {
+			info.congestionControl.onAck(numAcked, info.rttEstimator.getSmoothedRttNanos(), currentTime);
+			if (pacer != null) {
+				pacer.updateRate(info.congestionControl.getCongestionWindow(), info.pathMtu.getPacketSize(), info.rttEstimator.getSmoothedRttNanos());
+			}
+			//with only a few packets in flight and nothing more to send, there may never be enough later packets
+			int threshold = FAST_RETRANSMIT_THRESHOLD;
+			if (sendQueue.isEmpty()) {
+				threshold = Math.max(1, Math.min(threshold, info.ackBuffer.size() - 1));
+			}
+			int[] lost = info.ackBuffer.findLost(threshold);
+			for (int i = 0; i < lost.length; i++) {
+				fastRetransmit(lost[i], currentTime);
+			}
+			if (!info.ackBuffer.isEmpty()) {
+				synchronized (this) {
+					armProbe();
+				}
+			}
 		}
 		//if there is more data to be sent in the send queue, do it
-		while (!sendQueue.isEmpty() && !info.ackBuffer.isFull()) {
-			byte[] next = sendQueue.poll();
+		drainSendQueue();
+	}
+
+	/**
+	 * Sends queued packets while the window allows it. If the pacer holds a packet back, the rest is sent from a
+	 * timer once it allows another one. Sending is serialized so that packets are numbered in the order they are
+	 * sent.
+	 */
+	private void drainSendQueue() {
+		long pacingDelayNanos = sendQueuedPackets();
+		if (pacingDelayNanos > 0) {
+			schedulePacing(pacingDelayNanos);
+		}
+		updateWritability();
+	}
+
+	/**
+	 * Sends queued packets while the window allows it. Returns how many nanoseconds to wait if the pacer held a
+	 * packet back, or 0 otherwise.
+	 */
+	private synchronized long sendQueuedPackets() {
+		OutgoingMessage next;
+		while (canSend() && (next = sendQueue.peek()) != null) {
+			int packetSize = info.pathMtu.getPacketSize();
+			long pacingDelayNanos = getPacingDelayNanos(next.getNextPacketSize(packetSize, info.isWide));
+			if (pacingDelayNanos > 0) {
+				return pacingDelayNanos;
+			}
+			int remainingBytes = next.getRemainingBytes();
+			byte[] packet = next.nextPacket(packetSize, info.isWide);
+			sendQueue.onPacketTaken(next, remainingBytes - next.getRemainingBytes());
 			try {
-				sendReliableNoBufferCheck(next);
+				sendReliableNoBufferCheck(packet, next.isDone() ? next.getCompletion() : null);
+			} catch (SocketException | ClosedChannelException e) {
+				close();
+				return 0;
 			} catch (IOException e) {
 				e.printStackTrace();
 				close();
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Tells the handler if the send queue filled up or drained. The change is handed to the event loop while holding
+	 * the lock on the queue, so that the handler sees the changes in the order they happened.
+	 */
+	private void updateWritability() {
+		synchronized (sendQueue) {
+			if (sendQueue.updateWritability()) {
+				boolean isWritable = sendQueue.isWritable();
+				eventLoop.execute(() -> handler.onWritabilityChanged(address, isWritable));
+			}
+		}
+	}
+
+	/**
+	 * Returns 0 if a packet of the given size may be sent now, or how many nanoseconds to wait otherwise.
+	 */
+	private long getPacingDelayNanos(int size) {
+		return pacer == null ? 0 : pacer.acquire(size, System.nanoTime());
+	}
+
+	private void schedulePacing(long delayNanos) {
+		if (!isOpen()) {
+			return;
+		}
+		synchronized (this) {
+			if (pacingTimeout != null && pacingTimeout.isPending()) {
+				return;
 			}
+			long delayMs = Math.max(1, (delayNanos + 999_999) / 1_000_000);
+			pacingTimeout = eventLoop.schedule(this::drainSendQueue, delayMs);
+		}
+	}
+
+	/**
+	 * Answers a path MTU probe with the size it arrived with, or moves on to the next probe size if the probe was
+	 * acknowledged at the size it was sent with.
+	 */
+	private void handleProbe(byte[] data) {
+		if ((PacketUtils.getFlags(data) & PacketUtils.ACK_MASK) == 0) {
+			sendAck(PacketUtils.constructProbeACKPacket(data.length));
+			return;
 		}
+		if (info.pathMtu.onProbeAcked(PacketUtils.getSeqNum(data))) {
+			synchronized (this) {
+				if (mtuProbeTimeout != null) {
+					mtuProbeTimeout.cancel();
+				}
+			}
+			sendMtuProbe();
+		}
+	}
+
+	/**
+	 * Starts searching for the largest packet size the path to the remote endpoint carries.
+	 */
+	void startPathMtuDiscovery() {
+		info.pathMtu.setMaxPacketSize(PathMtu.getInterfacePacketSize(address));
+		sendMtuProbe();
+	}
+
+	/**
+	 * Sends a probe of the next size to try, and tries again once it is presumed lost.
+	 */
+	private void sendMtuProbe() {
+		if (!isOpen()) {
+			return;
+		}
+		synchronized (this) {
+			int size = info.pathMtu.nextProbe();
+			if (size < 0) {
+				return;
+			}
+			try {
+				sendRaw(PacketUtils.constructProbePacket(size));
+			} catch (ClosedChannelException e) {
+				close();
+				return;
+			} catch (IOException e) {
+				//a probe too large to leave this host counts as lost
+			}
+			mtuProbeTimeout = eventLoop.schedule(this::sendMtuProbe, info.rttEstimator.getRetransmissionTimeoutMs());
+		}
+	}
+
+	/**
+	 * Delivers an unreliable packet, unless it is sequenced and not newer than the newest one delivered from its
+	 * stream, in which case it is dropped before its data is copied.
+	 */
+	private void processUnreliablePacket(byte[] data) {
+		if (PacketUtils.hasExtension(data, PacketUtils.CHANNEL_EXT_MASK)) {
+			ChannelInfo channel = info.getChannel(PacketUtils.getChannel(data));
+			int channelSeqNum = PacketUtils.getChannelSeqNum(data);
+			if (!PacketUtils.sequenceGreaterThan(channelSeqNum, channel.remoteUnreliableSequenceNumber, PacketUtils.WIDE_SEQUENCE_MASK)) {
+				return;
+			}
+			channel.remoteUnreliableSequenceNumber = channelSeqNum;
+		}
+		processRawPacket(data);
 	}
 
 	private void processRawPacket(byte[] data) {
-		byte[] userData = new byte[data.length - PacketUtils.HEADER_SIZE];
-		System.arraycopy(data, PacketUtils.HEADER_SIZE, userData, 0, userData.length);
-		handler.onReceive(address, userData);
+		int headerSize = PacketUtils.getHeaderSize(data);
+		if (PacketUtils.isBundle(data)) {
+			int length;
+			for (int offset = headerSize; (length = PacketUtils.getBundledMessageLength(data, offset)) >= 0; offset += PacketUtils.BUNDLE_LENGTH_SIZE + length) {
+				received.add(data, offset + PacketUtils.BUNDLE_LENGTH_SIZE, length);
+			}
+			return;
+		}
+		//the packet is not modified once received, so the message is only copied when it is delivered
+		received.add(data, headerSize, data.length - headerSize);
 	}
 
 	private void processFragmentedPacket(byte[] data) {
@@ -163,45 +784,277 @@ class ConnectionEndpoint implements Closeable {
 
 		if (numChunksReceived == expectedNumChunks) {
 			byte[] userData = PacketUtils.assembleDataFromChunks(chunkedMessageBuffer, expectedNumChunks);
-			handler.onReceive(address, userData);
+			received.add(userData);
 		}
 	}
 
+	/**
+	 * Copies a fragment straight into the message it is part of, which is allocated in full when its first fragment
+	 * arrives, and delivers the message once every fragment has arrived. Fragments of different messages may be
+	 * interleaved, so messages are delivered in the order they are completed.
+	 */
+	private void processFragment(byte[] data) {
+		int messageId = PacketUtils.getMessageId(data);
+		int messageLength = PacketUtils.getMessageLength(data);
+		int offset = PacketUtils.getFragmentOffset(data);
+		int headerSize = PacketUtils.getHeaderSize(data);
+		int fragmentLength = data.length - headerSize;
+		if (messageLength < 0 || offset < 0 || fragmentLength > messageLength - offset) {
+			return;
+		}
+		//the message is allocated in full when its first fragment arrives, so its size comes from the remote endpoint
+		if (messageLength > maxMessageSize) {
+			close();
+			return;
+		}
+		PartialMessage message = partialMessages.get(messageId);
+		if (message == null) {
+			//a sender has at most MAX_ACTIVE_MESSAGES messages under way per priority class, and beyond those only
+			//messages missing fragments still in flight, of which there are no more than the receive window holds
+			if (partialMessages.size() >= Priority.values().length * SendQueue.MAX_ACTIVE_MESSAGES + info.receiveBuffer.getMaxCapacity()) {
+				close();
+				return;
+			}
+			message = new PartialMessage(messageLength);
+			partialMessages.put(messageId, message);
+		}
+		else if (message.data.length != messageLength) {
+			close();
+			return;
+		}
+		if (message.add(data, headerSize, offset, fragmentLength)) {
+			partialMessages.remove(messageId);
+			received.add(message.data);
+		}
+	}
+
+	/**
+	 * Collects a piece of a packet that was resent in pieces once the path stopped carrying its size. Returns the
+	 * packet once every piece of it has arrived, the piece itself if the packet already arrived so that it counts as
+	 * a duplicate, or null if pieces are still missing or the piece is invalid.
+	 */
+	private byte[] processPiece(byte[] data) {
+		int seqNum = PacketUtils.getSeqNum(data);
+		if (!info.receiveBuffer.inRange(seqNum) || info.receiveBuffer.isOccupied(seqNum)) {
+			return data;
+		}
+		int packetLength = PacketUtils.getPacketLength(data);
+		int offset = PacketUtils.getPieceOffset(data);
+		int headerSize = PacketUtils.getHeaderSize(data);
+		int pieceLength = data.length - headerSize;
+		if (packetLength > PacketUtils.MAX_PROBE_PACKET_SIZE || offset < 0 || pieceLength > packetLength - offset) {
+			return null;
+		}
+		//there is at most one packet per sequence number in the receive window
+		PartialMessage packet = partialPackets.get(seqNum);
+		if (packet == null) {
+			packet = new PartialMessage(packetLength);
+			partialPackets.put(seqNum, packet);
+		}
+		else if (packet.data.length != packetLength) {
+			close();
+			return null;
+		}
+		if (!packet.add(data, headerSize, offset, pieceLength)) {
+			return null;
+		}
+		partialPackets.remove(seqNum);
+		if (!PacketUtils.isValidPacket(packet.data) || !PacketUtils.isReliable(packet.data) || PacketUtils.isPiece(packet.data) ||
+			PacketUtils.getSeqNum(packet.data) != seqNum) {
+			close();
+			return null;
+		}
+		return packet.data;
+	}
+
 	private void processReliablePacket(byte[] data) {
+		if (PacketUtils.isPiece(data)) {
+			data = processPiece(data);
+			if (data == null) {
+				return;
+			}
+		}
 		int seqNum = PacketUtils.getSeqNum(data);
-		if (info.receiveBuffer.inRange(seqNum) && !info.receiveBuffer.isOccupied(seqNum)) {
+		boolean isNew = info.receiveBuffer.inRange(seqNum) && !info.receiveBuffer.isOccupied(seqNum);
+		if (isNew) {
 			info.receiveBuffer.add(data);
+			//pieces of an earlier copy that did not all arrive
+			partialPackets.remove(seqNum);
+			//messages of other channels do not wait for packets missing on the connection
+			int channel = PacketUtils.getChannel(data);
+			if (channel == PacketUtils.UNORDERED_CHANNEL) {
+				deliver(data);
+			}
+			else if (channel != 0) {
+				processChannelPacket(info.getChannel(channel), data);
+			}
 		}
-		if (!PacketUtils.sequenceGreaterThan(seqNum, info.receiveBuffer.getMaxExpectedSequenceNumber()) && !PacketUtils.isFIN(data)) {
-			ackRemotePacket(seqNum);
+		if (!PacketUtils.sequenceGreaterThan(seqNum, info.receiveBuffer.getMaxExpectedSequenceNumber(), info.sequenceMask) && !PacketUtils.isFIN(data)) {
+			synchronized (info) {
+				numUnacknowledged++;
+				//a duplicate means our acknowledgment was lost, so the sender is already retransmitting
+				isAckUrgent |= !isNew;
+			}
+			isAckPending = true;
 		}
 		if (seqNum == info.receiveBuffer.getExpectedSequenceNumber()) {
-			byte[][] bufferedData = info.receiveBuffer.flush();
-			for (int i = 0; i < bufferedData.length; i++) {
-				byte flags = PacketUtils.getFlags(bufferedData[i]);
+			//cleared first in case handling the previous flush threw
+			flushed.clear();
+			info.receiveBuffer.flush(flushed);
+			for (int i = 0; i < flushed.size(); i++) {
+				byte[] bufferedData = flushed.get(i);
+				byte flags = PacketUtils.getFlags(bufferedData);
 				if ((flags & (PacketUtils.RELIABLE_MASK | PacketUtils.FIN_MASK)) == (PacketUtils.RELIABLE_MASK | PacketUtils.FIN_MASK)) {
-					sendFINACK(bufferedData[i]);
+					sendFINACK(bufferedData);
 					break;
 				}
 				if ((flags & (PacketUtils.RELIABLE_MASK | PacketUtils.HEARTBEAT_MASK)) == (PacketUtils.RELIABLE_MASK | PacketUtils.HEARTBEAT_MASK)) {
 					continue;
 				}
-				if ((flags & (PacketUtils.CHUNKED_MASK)) == PacketUtils.CHUNKED_MASK) {
-					processFragmentedPacket(bufferedData[i]);
-				}
-				else {
-					processRawPacket(bufferedData[i]);
+				//already delivered when it arrived, or in the order of its channel
+				if (PacketUtils.getChannel(bufferedData) != 0) {
+					continue;
 				}
+				deliver(bufferedData);
+			}
+			flushed.clear();
+		}
+	}
+
+	/**
+	 * Buffers a new packet of a channel until every packet sent before it on the channel has arrived, and delivers
+	 * the packets of the channel that are in order.
+	 */
+	private void processChannelPacket(ChannelInfo channel, byte[] data) {
+		int channelSeqNum = PacketUtils.getChannelSeqNum(data) & info.sequenceMask;
+		if (!channel.receiveBuffer.inRange(channelSeqNum) || channel.receiveBuffer.isOccupied(channelSeqNum)) {
+			return;
+		}
+		channel.receiveBuffer.add(channelSeqNum, data);
+		if (channelSeqNum == channel.receiveBuffer.getExpectedSequenceNumber()) {
+			//cleared first in case handling the previous flush threw
+			flushed.clear();
+			channel.receiveBuffer.flush(flushed);
+			for (int i = 0; i < flushed.size(); i++) {
+				deliver(flushed.get(i));
+			}
+			flushed.clear();
+		}
+	}
+
+	private void deliver(byte[] data) {
+		if (PacketUtils.isFragment(data)) {
+			processFragment(data);
+		}
+		else if ((PacketUtils.getFlags(data) & PacketUtils.CHUNKED_MASK) == PacketUtils.CHUNKED_MASK) {
+			processFragmentedPacket(data);
+		}
+		else {
+			processRawPacket(data);
+		}
+	}
+
+	/**
+	 * Acknowledges every reliable packet received since the last acknowledgment. The ACK is sent right away if packets
+	 * arrived out of order, were duplicated or enough of them are unacknowledged, otherwise it is delayed for a short
+	 * while so that it can be piggybacked on data sent in response.
+	 */
+	void flushAck() {
+		if (!isAckPending) {
+			return;
+		}
+		isAckPending = false;
+		if (!isOpen()) {
+			return;
+		}
+		byte[] ackData = null;
+		synchronized (info) {
+			if (numUnacknowledged == 0) {
+				return;
+			}
+			int ackBitmap = info.receiveBuffer.getAckBitmap();
+			if (isAckUrgent || ackBitmap != 0 || numUnacknowledged >= ACK_EVERY_N_PACKETS) {
+				ackData = constructAck(ackBitmap);
+			}
+			else if (delayedAckTimeout == null || !delayedAckTimeout.isPending()) {
+				delayedAckTimeout = eventLoop.schedule(this::sendDelayedAck, DELAYED_ACK_MS);
+			}
+		}
+		if (ackData != null) {
+			sendAck(ackData);
+		}
+	}
+
+	private void sendDelayedAck() {
+		if (!isOpen()) {
+			return;
+		}
+		byte[] ackData;
+		synchronized (info) {
+			if (numUnacknowledged == 0) {
+				return;
+			}
+			ackData = constructAck(info.receiveBuffer.getAckBitmap());
+		}
+		sendAck(ackData);
+	}
+
+	//must hold the info lock
+	private byte[] constructAck(int ackBitmap) {
+		clearPendingAck();
+		byte[] ackData = PacketUtils.constructACKPacket(info.localSequenceNumber, info.receiveBuffer.getCumulativeAck(), ackBitmap, info.isWide);
+		return PacketUtils.setWindow(ackData, getReceiveWindow());
+	}
+
+	//must hold the info lock
+	private void clearPendingAck() {
+		numUnacknowledged = 0;
+		isAckUrgent = false;
+		if (delayedAckTimeout != null) {
+			delayedAckTimeout.cancel();
+			delayedAckTimeout = null;
+		}
+	}
+
+	/**
+	 * Writes the current cumulative ack into an outgoing reliable packet. If nothing is missing past it, this
+	 * acknowledges everything received so far and no separate ACK needs to be sent. Must hold the lock on this, since
+	 * the packet is written in place and retransmissions of it are sent from the event loop.
+	 */
+	private void piggybackAck(byte[] payload) {
+		if (!PacketUtils.canPiggybackAck(payload)) {
+			return;
+		}
+		synchronized (info) {
+			PacketUtils.setPiggybackedAck(payload, info.receiveBuffer.getCumulativeAck());
+			if (numUnacknowledged > 0 && info.receiveBuffer.getAckBitmap() == 0) {
+				clearPendingAck();
 			}
 		}
 	}
 
-	private void ackRemotePacket(int seqNum) {
-		byte[] ackData = PacketUtils.constructACKPacket(info.localSequenceNumber, seqNum);
-		DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, address);
+	/**
+	 * Sends a packet from the acknowledgment buffer with the current cumulative ack. A packet built before the path
+	 * stopped carrying its size is sent in pieces under its own sequence number, so that the receiver handles it the
+	 * same whether an earlier copy arrived or not. Must hold the lock on this.
+	 */
+	private void sendBuffered(byte[] payload) throws IOException {
+		piggybackAck(payload);
+		int packetSize = info.pathMtu.getPacketSize();
+		if (payload.length <= packetSize) {
+			sendRaw(payload);
+			return;
+		}
+		byte[][] pieces = PacketUtils.cutIntoPieces(payload, packetSize);
+		for (int i = 0; i < pieces.length; i++) {
+			sendRaw(pieces[i]);
+		}
+	}
+
+	private void sendAck(byte[] ackData) {
 		try {
-			sendRaw(ackPacket);
-		} catch (SocketException e) {
+			sendRaw(ackData);
+		} catch (SocketException | ClosedChannelException e) {
 			close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -210,91 +1063,236 @@ class ConnectionEndpoint implements Closeable {
 	}
 
 	private void sendFINACK(byte[] data) {
+		//everything sent before the FIN is delivered before the disconnect
+		deliverReceived();
 		int finSeqNum = PacketUtils.getSeqNum(data);
-		byte[] finAckData = PacketUtils.constructFINACKPacket(info.localSequenceNumber, finSeqNum);
-		DatagramPacket finAckPacket = new DatagramPacket(finAckData, finAckData.length, address);
+		byte[] finAckData = PacketUtils.constructFINACKPacket(info.localSequenceNumber, finSeqNum, info.isWide);
 		try {
-			sendRaw(finAckPacket);
+			sendRaw(finAckData);
 		} catch (IOException e) {
 			close();
 		}
 		close();
 	}
 
-	private synchronized void sendReliableNoBufferCheck(byte[] payload) throws IOException {
-		int seqNum = PacketUtils.getSeqNum(payload);
+	/**
+	 * Numbers and sends a packet, which is retransmitted until acknowledged. The completion, if any, is completed once
+	 * the packet and everything sent before it was acknowledged.
+	 */
+	private synchronized void sendReliableNoBufferCheck(byte[] payload, CompletableFuture<Void> completion) throws IOException {
+		int seqNum;
+		synchronized (info) {
+			seqNum = info.localSequenceNumber;
+			info.localSequenceNumber = (info.localSequenceNumber + 1) & info.sequenceMask;
+			int channel = PacketUtils.getChannel(payload);
+			if (channel > 0) {
+				ChannelInfo channelInfo = info.getChannel(channel);
+				PacketUtils.setChannelSeqNum(payload, channelInfo.localSequenceNumber);
+				channelInfo.localSequenceNumber = (channelInfo.localSequenceNumber + 1) & info.sequenceMask;
+			}
+		}
+		PacketUtils.setSeqNum(payload, seqNum);
 		info.ackBuffer.add(payload);
+		if (completion != null) {
+			info.ackBuffer.setCompletion(seqNum, completion);
+		}
+		//the timeout is attached before sending so that an acknowledgment can always cancel it
+		info.ackBuffer.setTimeout(seqNum, eventLoop.schedule(ackTimeout(seqNum), info.rttEstimator.getRetransmissionTimeoutMs()));
+		armProbe();
+		sendBuffered(payload);
+	}
 
-		DatagramPacket packet = new DatagramPacket(payload, payload.length, address);
-		sendRaw(packet);
+	/**
+	 * Retransmits a packet that later packets were acknowledged past, and restarts its retransmission timeout. The
+	 * window is reduced for the first such loss of each window of packets in flight.
+	 */
+	private synchronized void fastRetransmit(int seqNum, long currentTime) {
+		if (!PacketUtils.sequenceGreaterThan(recoveryPoint, seqNum, info.sequenceMask)) {
+			info.congestionControl.onLoss(currentTime);
+			recoveryPoint = info.ackBuffer.getNextSequenceNumber();
+		}
+		byte[] payload = info.ackBuffer.findData(seqNum);
+		try {
+			info.ackBuffer.setTimeout(seqNum, eventLoop.schedule(ackTimeout(seqNum), info.rttEstimator.getRetransmissionTimeoutMs()));
+			sendBuffered(payload);
+		} catch (SocketException | ClosedChannelException e) {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
 
-		synchronized (timer) {
-			timer.schedule(ackTimeout(seqNum), RESEND_DELAY_MS);
+	/**
+	 * Restarts the wait for the tail loss probe. Must hold the lock on this.
+	 */
+	private void armProbe() {
+		lastProgressNanos = System.nanoTime();
+		if (probeTimeout != null && probeTimeout.isPending()) {
+			return;
+		}
+		long probeTimeoutMs = getProbeTimeoutMs();
+		if (probeTimeoutMs >= 0) {
+			probeTimeout = eventLoop.schedule(this::sendProbe, probeTimeoutMs);
 		}
 	}
 
-	private TimerTask ackTimeout(int seqNum) {
-		return new TimerTask() {
-			@Override
-			public void run() {
-				synchronized (isOpenLock) {
-					if (!isOpen) {
-						return;
-					}
-					if (info.ackBuffer.isAcked(seqNum)) {
-						return;
-					}
-					if (info.ackBuffer.getTimesAccessed(seqNum) > RESEND_COUNT) {
-						close();
-					}
-					byte[] payload = info.ackBuffer.findData(seqNum);
-					DatagramPacket packet = new DatagramPacket(payload, payload.length, address);
-					try {
-						sendRaw(packet);
-						if (isOpen) {
-							synchronized (timer) {
-								timer.schedule(ackTimeout(seqNum), RESEND_DELAY_MS);
-							}
-						}
-					} catch (SocketException e) {
-						close();
-					} catch (IOException e) {
-						e.printStackTrace();
-						close();
-					}
+	/**
+	 * Returns how long to wait for an acknowledgment before probing, or -1 if the retransmission timeout would
+	 * expire first or the round trip time has not been measured yet.
+	 */
+	private long getProbeTimeoutMs() {
+		long rttNanos = info.rttEstimator.getSmoothedRttNanos();
+		if (rttNanos < 0) {
+			return -1;
+		}
+		//leave room for the remote endpoint to delay its acknowledgment
+		long probeTimeoutMs = Math.max(MIN_PROBE_TIMEOUT_MS, 2 * rttNanos / 1_000_000 + DELAYED_ACK_MS);
+		return probeTimeoutMs < info.rttEstimator.getRetransmissionTimeoutMs() ? probeTimeoutMs : -1;
+	}
+
+	/**
+	 * Retransmits the newest unacknowledged packet if nothing was acknowledged for the probe timeout. If the last
+	 * packets of a burst were lost, no later packets would be acknowledged to detect it, so the acknowledgment of
+	 * the probe tells which of them are missing and lets them be retransmitted without waiting for their timeouts.
+	 */
+	private void sendProbe() {
+		if (!isOpen()) {
+			return;
+		}
+		synchronized (this) {
+			probeTimeout = null;
+			long probeTimeoutMs = getProbeTimeoutMs();
+			if (probeTimeoutMs < 0) {
+				return;
+			}
+			//the timeout is only started once per burst, and waits out the rest if packets were sent since
+			long remainingMs = probeTimeoutMs - (System.nanoTime() - lastProgressNanos) / 1_000_000;
+			if (remainingMs > 0) {
+				probeTimeout = eventLoop.schedule(this::sendProbe, remainingMs);
+				return;
+			}
+			byte[] payload = info.ackBuffer.findNewestUnacked();
+			if (payload == null) {
+				return;
+			}
+			try {
+				sendBuffered(payload);
+			} catch (SocketException | ClosedChannelException e) {
+				close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				close();
+			}
+		}
+	}
+
+	private Runnable ackTimeout(int seqNum) {
+		return () -> {
+			if (!isOpen() || info.ackBuffer.isAcked(seqNum)) {
+				return;
+			}
+			long unackedMs = (System.nanoTime() - info.ackBuffer.getSendTime(seqNum)) / 1_000_000;
+			if (info.ackBuffer.getTimesAccessed(seqNum) > RESEND_COUNT && unackedMs >= CONNECTION_TIMEOUT_MS) {
+				close();
+				return;
+			}
+			//back off once per timeout of the oldest packet rather than once per packet in flight
+			if (seqNum == info.ackBuffer.getExpectedSequenceNumber()) {
+				info.rttEstimator.backOff();
+				info.congestionControl.onTimeout();
+				recoveryPoint = info.ackBuffer.getNextSequenceNumber();
+			}
+			synchronized (this) {
+				byte[] payload = info.ackBuffer.findData(seqNum);
+				//packets that used to fit keep getting lost, so the path may no longer carry them
+				if (payload.length > PacketUtils.MAX_PACKET_SIZE && payload.length <= info.pathMtu.getPacketSize() &&
+					info.ackBuffer.getTimesAccessed(seqNum) > BLACK_HOLE_RESEND_COUNT) {
+					info.pathMtu.onBlackHole();
+				}
+				try {
+					info.ackBuffer.setTimeout(seqNum, eventLoop.schedule(ackTimeout(seqNum), info.rttEstimator.getRetransmissionTimeoutMs()));
+					sendBuffered(payload);
+				} catch (SocketException | ClosedChannelException e) {
+					close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					close();
 				}
 			}
 		};
 	}
 
+	/**
+	 * Returns whether another reliable packet fits in the congestion window, the send buffer and the window the
+	 * remote endpoint advertised.
+	 */
+	private boolean canSend() {
+		int remoteWindow;
+		synchronized (info) {
+			remoteWindow = info.remoteWindow;
+		}
+		int window = Math.min(info.congestionControl.getCongestionWindow(), Math.min(info.ackBuffer.getMaxCapacity(), remoteWindow));
+		return info.ackBuffer.size() < window;
+	}
+
 	void startHeartbeat() {
-		synchronized (timer) {
-			timer.schedule(new TimerTask() {
-				@Override
-				public void run() {
-					synchronized (isOpenLock) {
-						if (!isOpen) {
-							return;
-						}
-						sendHeartbeat();
-					}
+		scheduleHeartbeat(0);
+	}
+
+	private void scheduleHeartbeat(long delayMs) {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				return;
+			}
+			heartbeatTimeout = eventLoop.schedule(() -> {
+				if (!isOpen()) {
+					return;
 				}
-			}, 0, HEARTBEAT_RESEND_DELAY_MS);
+				sendHeartbeat();
+				scheduleHeartbeat(HEARTBEAT_RESEND_DELAY_MS);
+			}, delayMs);
 		}
 	}
 
 	private void sendHeartbeat() {
 		byte[] packet;
 		synchronized (info) {
-			packet = PacketUtils.constructHeartbeatPacket(info.localSequenceNumber, info.remoteSequenceNumber);
+			packet = PacketUtils.constructHeartbeatPacket(0, info.remoteSequenceNumber, info.isWide);
 		}
 		sendReliablePayload(packet);
 	}
 
-	void sendRaw(DatagramPacket packet) throws IOException {
-		synchronized (socket) {
-			socket.send(packet);
+	/**
+	 * Sends the data unreliably as the next message of the sequenced stream of the given channel.
+	 */
+	void sendRawSequenced(int channel, byte[] data) throws IOException {
+		PacketUtils.checkChannel(channel);
+		byte[] packet;
+		synchronized (info) {
+			ChannelInfo channelInfo = info.getChannel(channel);
+			packet = PacketUtils.constructSequencedPacket(data, channel, channelInfo.localUnreliableSequenceNumber++);
 		}
+		sendRaw(packet);
+	}
+
+	void sendRaw(byte[] packet) throws IOException {
+		channel.send(ByteBuffer.wrap(packet), address);
+	}
+
+	/**
+	 * Returns the largest packet size known to reach the remote endpoint.
+	 */
+	int getMaxPacketSize() {
+		return info.pathMtu.getPacketSize();
+	}
+
+	/**
+	 * Returns the smoothed round trip time in milliseconds, or -1 if it has not been measured yet.
+	 */
+	double getRoundTripTime() {
+		long rttNanos = info.rttEstimator.getSmoothedRttNanos();
+		return rttNanos < 0 ? -1 : rttNanos / 1_000_000.0;
 	}
 
 	int getExpectedSequenceNumber() {
@@ -308,23 +1306,53 @@ class ConnectionEndpoint implements Closeable {
 	}
 
 	void disconnect() {
+		//the FIN is queued after every message sent before it
+		synchronized (this) {
+			flushReliableBundle();
+		}
 		byte[] finPacket;
 		synchronized (info) {
-			finPacket = PacketUtils.constructFINPacket(info.localSequenceNumber, info.remoteSequenceNumber);
-			info.localSequenceNumber++;
+			finPacket = PacketUtils.constructFINPacket(0, info.remoteSequenceNumber, info.isWide);
 		}
-		queueMessage(finPacket);
+		queueMessage(OutgoingMessage.ofPacket(finPacket), Priority.NORMAL);
 	}
 
+	/**
+	 * Closes the connection. It is marked closed before the lock on this is taken, so that nothing else is locked
+	 * while holding isOpenLock.
+	 */
 	@Override
-	public synchronized void close() {
+	public void close() {
 		synchronized (isOpenLock) {
 			if (!isOpen) {
 				return;
 			}
 			isOpen = false;
-			synchronized (timer) {
-				timer.cancel();
+		}
+		synchronized (this) {
+			if (heartbeatTimeout != null) {
+				heartbeatTimeout.cancel();
+			}
+			if (probeTimeout != null) {
+				probeTimeout.cancel();
+			}
+			if (pacingTimeout != null) {
+				pacingTimeout.cancel();
+			}
+			if (mtuProbeTimeout != null) {
+				mtuProbeTimeout.cancel();
+			}
+			info.ackBuffer.cancelTimeouts();
+			IllegalStateException closed = new IllegalStateException("Connection is closed.");
+			sendQueue.close(closed);
+			if (reliableBundle != null) {
+				reliableBundle.fail(closed);
+				reliableBundle = null;
+			}
+			unreliableBundle = null;
+			info.ackBuffer.failCompletions(closed);
+			synchronized (info) {
+				clearPendingAck();
 			}
 			if (notifier != null) {
 				notifier.onDisconnect(address);
@@ -342,4 +1370,38 @@ class ConnectionEndpoint implements Closeable {
 	public SocketAddress getAddress() {
 		return this.address;
 	}
+
+	/**
+	 * A message or packet being put back together from parts that may arrive in any order, more than once, or cut
+	 * differently. The byte ranges received so far are kept merged, by the offset they start at.
+	 */
+	private static class PartialMessage {
+		final byte[] data;
+		private final TreeMap<Integer, Integer> ranges = new TreeMap<>();
+
+		PartialMessage(int length) {
+			this.data = new byte[length];
+		}
+
+		/**
+		 * Copies the part into place and returns whether every byte has been received.
+		 */
+		boolean add(byte[] src, int srcOffset, int offset, int length) {
+			System.arraycopy(src, srcOffset, data, offset, length);
+			int start = offset;
+			int end = offset + length;
+			Map.Entry<Integer, Integer> before = ranges.floorEntry(start);
+			if (before != null && before.getValue() >= start) {
+				start = before.getKey();
+				end = Math.max(end, before.getValue());
+			}
+			Map.Entry<Integer, Integer> after;
+			while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+				end = Math.max(end, after.getValue());
+				ranges.remove(after.getKey());
+			}
+			ranges.put(start, end);
+			return start == 0 && end == data.length;
+		}
+	}
 }
@@ -5,11 +5,43 @@ public class ConnectionInfo {
 	int remoteSequenceNumber;
 	AcknowledgmentBuffer ackBuffer;
 	ReceiveBuffer receiveBuffer;
+	RttEstimator rttEstimator;
+	CongestionControl congestionControl;
+	PathMtu pathMtu = new PathMtu();
+	//the number of packets past its cumulative ack the remote endpoint will buffer, guarded by this
+	int remoteWindow = PacketUtils.INITIAL_WINDOW_CAPACITY;
+	final boolean isWide;
+	final int sequenceMask;
+	//channels other than the default one, created when first used
+	private final ChannelInfo[] channels = new ChannelInfo[PacketUtils.MAX_CHANNELS];
 
 	ConnectionInfo(int localSequenceNumber, int remoteSequenceNumber) {
+		this(localSequenceNumber, remoteSequenceNumber, false, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * The receive window is capped at the most packets that can be in flight for the sequence number size.
+	 */
+	ConnectionInfo(int localSequenceNumber, int remoteSequenceNumber, boolean isWide, int receiveWindow) {
 		this.localSequenceNumber = localSequenceNumber;
 		this.remoteSequenceNumber = remoteSequenceNumber;
-		this.ackBuffer = new AcknowledgmentBuffer(PacketUtils.MAX_PACKETS_IN_FLIGHT, localSequenceNumber);
-		this.receiveBuffer = new ReceiveBuffer(PacketUtils.MAX_PACKETS_IN_FLIGHT, remoteSequenceNumber);
+		this.isWide = isWide;
+		this.sequenceMask = isWide ? PacketUtils.WIDE_SEQUENCE_MASK : PacketUtils.SEQUENCE_MASK;
+		int maxPacketsInFlight = isWide ? PacketUtils.MAX_WIDE_PACKETS_IN_FLIGHT : PacketUtils.MAX_PACKETS_IN_FLIGHT;
+		this.ackBuffer = new AcknowledgmentBuffer(PacketUtils.INITIAL_WINDOW_CAPACITY, maxPacketsInFlight, localSequenceNumber, isWide);
+		int receiveCapacity = Math.min(receiveWindow, maxPacketsInFlight);
+		this.receiveBuffer = new ReceiveBuffer(Math.min(PacketUtils.INITIAL_WINDOW_CAPACITY, receiveCapacity), receiveCapacity, remoteSequenceNumber, isWide);
+		this.rttEstimator = new RttEstimator(ConnectionEndpoint.RESEND_DELAY_MS);
+		this.congestionControl = new NewRenoCongestionControl();
+	}
+
+	/**
+	 * Returns the state of the given channel. Only sequenced unreliable messages use the state of channel 0.
+	 */
+	synchronized ChannelInfo getChannel(int channel) {
+		if (channels[channel] == null) {
+			channels[channel] = new ChannelInfo(receiveBuffer.getMaxCapacity(), isWide);
+		}
+		return channels[channel];
 	}
 }
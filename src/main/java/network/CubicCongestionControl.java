@@ -0,0 +1,82 @@
+package network;
+
+/**
+ * CUBIC congestion control (RFC 8312). After a reduction the window grows along a cubic function of the time since
+ * the reduction, flattening out around the window the loss happened at and probing past it afterwards, which makes
+ * its growth independent of the round trip time. The window never grows slower than an AIMD flow would.
+ */
+public class CubicCongestionControl implements CongestionControl {
+	static final int INITIAL_WINDOW = 10;
+	static final int MIN_WINDOW = 2;
+	private static final double C = 0.4;
+	private static final double BETA = 0.7;
+
+	private double window = INITIAL_WINDOW;
+	private double slowStartThreshold = PacketUtils.MAX_WIDE_PACKETS_IN_FLIGHT;
+	private double maxWindow = 0;
+	private double renoWindow = 0;
+	private double k = 0;
+	private long epochStartNanos = -1;
+
+	@Override
+	public synchronized int getCongestionWindow() {
+		return Math.max(1, (int) window);
+	}
+
+	@Override
+	public synchronized void onAck(int numAcked, long smoothedRttNanos, long currentTimeNanos) {
+		if (window < slowStartThreshold) {
+			window = Math.min(window + numAcked, PacketUtils.MAX_WIDE_PACKETS_IN_FLIGHT);
+			return;
+		}
+		if (epochStartNanos < 0) {
+			epochStartNanos = currentTimeNanos;
+			if (window < maxWindow) {
+				k = Math.cbrt((maxWindow - window) / C);
+			}
+			else {
+				k = 0;
+				maxWindow = window;
+			}
+			renoWindow = window;
+		}
+		//aim for where the cubic function will be one round trip from now
+		double rttSeconds = Math.max(smoothedRttNanos, 0) / 1e9;
+		double t = (currentTimeNanos - epochStartNanos) / 1e9 + rttSeconds;
+		double target = C * (t - k) * (t - k) * (t - k) + maxWindow;
+		if (target > window) {
+			window += Math.min(target - window, window / 2) * numAcked / window;
+		}
+		else {
+			window += 0.01 * numAcked / window;
+		}
+
+		//an AIMD flow with the same decrease factor gains 3(1 - beta) / (1 + beta) packets per round trip
+		renoWindow += 3 * (1 - BETA) / (1 + BETA) * numAcked / renoWindow;
+		window = Math.min(Math.max(window, renoWindow), PacketUtils.MAX_WIDE_PACKETS_IN_FLIGHT);
+	}
+
+	@Override
+	public synchronized void onTimeout() {
+		reduce();
+		window = 1;
+	}
+
+	@Override
+	public synchronized void onLoss(long currentTimeNanos) {
+		reduce();
+		window = slowStartThreshold;
+	}
+
+	private void reduce() {
+		//release bandwidth to newer flows if the window did not recover since the last reduction
+		if (window < maxWindow) {
+			maxWindow = window * (1 + BETA) / 2;
+		}
+		else {
+			maxWindow = window;
+		}
+		slowStartThreshold = Math.max(window * BETA, MIN_WINDOW);
+		epochStartNanos = -1;
+	}
+}
@@ -0,0 +1,202 @@
+package network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread multiplexing any number of non-blocking datagram channels through a Selector, and running the
+ * timers of every connection registered on it from one TimingWheel.
+ * A Server and any number of Clients may share one EventLoop, so the number of threads depends on how many loops
+ * are created rather than on how many connections are open.
+ */
+public class EventLoop implements Closeable {
+	private static final int MAX_READS_PER_KEY = 64;
+	private static final int TIMER_NUM_BUCKETS = 512;
+	static final long TIMER_TICK_MS = 5;
+
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final TimingWheel timer = new TimingWheel(TIMER_NUM_BUCKETS, TIMER_TICK_MS, currentTimeMs());
+	//large enough for the largest packet path MTU discovery may settle on
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(PacketUtils.MAX_PROBE_PACKET_SIZE);
+
+	private boolean isOpen = true;
+	private final Object isOpenLock = new Object();
+
+	public EventLoop() throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this::run, "EventLoop");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	void register(DatagramChannel channel, PacketListener listener) {
+		execute(() -> {
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, listener);
+			} catch (ClosedChannelException e) {
+				//the owner closed the channel before it could be registered
+				listener.onClose();
+			} catch (IOException e) {
+				e.printStackTrace();
+				listener.onClose();
+			}
+		});
+	}
+
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs the task on this loop once the delay has passed. The task can be cancelled through the returned timeout.
+	 */
+	TimingWheel.Timeout schedule(Runnable task, long delayMs) {
+		TimingWheel.Timeout timeout;
+		boolean wasEmpty;
+		synchronized (timer) {
+			wasEmpty = timer.isEmpty();
+			timeout = timer.schedule(task, delayMs, currentTimeMs());
+		}
+		//the loop may be blocked without a select timeout if the wheel was empty
+		if (wasEmpty && !inEventLoop()) {
+			selector.wakeup();
+		}
+		return timeout;
+	}
+
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	static long currentTimeMs() {
+		return System.nanoTime() / 1_000_000;
+	}
+
+	private void run() {
+		while (isOpen()) {
+			try {
+				selector.select(timer.getDelayUntilNextTick(currentTimeMs()));
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			runTasks();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid() && key.isReadable()) {
+					read(key);
+				}
+			}
+			timer.advance(currentTimeMs());
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void read(SelectionKey key) {
+		DatagramChannel channel = (DatagramChannel) key.channel();
+		PacketListener listener = (PacketListener) key.attachment();
+		for (int i = 0; i < MAX_READS_PER_KEY; i++) {
+			SocketAddress address;
+			receiveBuffer.clear();
+			try {
+				if (channel.isConnected()) {
+					//a connected channel only receives from its peer, so its address need not be allocated per datagram
+					address = channel.read(receiveBuffer) > 0 ? channel.getRemoteAddress() : null;
+				}
+				else {
+					address = channel.receive(receiveBuffer);
+				}
+			} catch (PortUnreachableException e) {
+				//a datagram sent earlier was refused, which the connection finds out about through its timeouts
+				continue;
+			} catch (IOException e) {
+				//the channel was closed by its owner, which is expected behaviour
+				if (!(e instanceof ClosedChannelException)) {
+					e.printStackTrace();
+				}
+				key.cancel();
+				listener.onClose();
+				return;
+			}
+			if (address == null) {
+				break;
+			}
+			receiveBuffer.flip();
+			byte[] data = new byte[receiveBuffer.remaining()];
+			receiveBuffer.get(data);
+			try {
+				listener.onPacket(address, data);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			listener.onReadComplete();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public boolean isOpen() {
+		synchronized (isOpenLock) {
+			return isOpen;
+		}
+	}
+
+	/**
+	 * Stops the loop without waiting for it to finish.
+	 */
+	void shutdown() {
+		synchronized (isOpenLock) {
+			if (!isOpen) {
+				return;
+			}
+			isOpen = false;
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the loop and, unless called from the loop itself, waits for it to finish.
+	 */
+	@Override
+	public void close() {
+		shutdown();
+		//channels registered on the selector are only released once the loop has finished with it
+		if (!inEventLoop()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
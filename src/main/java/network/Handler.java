@@ -1,9 +1,42 @@
 package network;
 
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 public interface Handler {
 	void onConnect(SocketAddress address);
 	void onDisconnect(SocketAddress address);
 	void onReceive(SocketAddress address, byte[] data);
+
+	/**
+	 * Called with the messages received from the address in one batch of packets, in the order they would have been
+	 * passed to onReceive one by one. Handlers that hand messages on in bulk can override this to pay their own
+	 * overhead once per batch. The list is only valid during the call and must not be kept. By default, onReceive is
+	 * called for each message.
+	 */
+	default void onReceiveBatch(SocketAddress address, List<byte[]> messages) {
+		for (int i = 0; i < messages.size(); i++) {
+			onReceive(address, messages.get(i));
+		}
+	}
+
+	/**
+	 * Called for each message received if pooled receive is enabled on the client or server, in place of
+	 * onReceiveBatch. The message is a read-only view of a buffer that is reused for the next message, so it is only
+	 * valid during the call and has to be copied to be kept. By default, the message is copied and passed to
+	 * onReceive.
+	 */
+	default void onReceive(SocketAddress address, ByteBuffer data) {
+		byte[] copy = new byte[data.remaining()];
+		data.get(copy);
+		onReceive(address, copy);
+	}
+
+	/**
+	 * Called when the send queue of the connection fills past half its limit, after which reliable sends should be
+	 * held back, and again once it has drained to a quarter of it. Runs on the event loop like the other callbacks.
+	 */
+	default void onWritabilityChanged(SocketAddress address, boolean isWritable) {
+	}
 }
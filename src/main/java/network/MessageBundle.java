@@ -0,0 +1,95 @@
+package network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Small messages waiting to be sent together in one packet with the BUNDLE extension. The reliable messages of a
+ * bundle share its channel and priority class, and each has its own completion, which is completed along with the
+ * packet they are sent in.
+ */
+class MessageBundle {
+	private final byte[] data;
+	private final int channel;
+	private final Priority priority;
+	private final List<CompletableFuture<Void>> completions = new ArrayList<>();
+	private int size = 0;
+
+	/**
+	 * Creates a bundle of at most the given number of bytes, including the length of each message.
+	 */
+	MessageBundle(int capacity, int channel, Priority priority) {
+		this.data = new byte[capacity];
+		this.channel = channel;
+		this.priority = priority;
+	}
+
+	/**
+	 * Returns whether a message of the given length fits in an empty bundle of the given capacity.
+	 */
+	static boolean fits(int length, int capacity) {
+		return length <= capacity - PacketUtils.BUNDLE_LENGTH_SIZE;
+	}
+
+	/**
+	 * Returns whether a message of the given length, sent on the given channel and priority class, can join the
+	 * bundle.
+	 */
+	boolean canAdd(int length, int channel, Priority priority) {
+		return this.channel == channel && this.priority == priority && fits(length, data.length - size);
+	}
+
+	/**
+	 * Adds the given length of the message starting at the offset. The completion is completed once the bundle is
+	 * acknowledged, and is null if the bundle is unreliable.
+	 */
+	void add(byte[] message, int offset, int length, CompletableFuture<Void> completion) {
+		size = PacketUtils.writeBundledMessage(data, size, message, offset, length);
+		if (completion != null) {
+			completions.add(completion);
+		}
+	}
+
+	/**
+	 * Returns whether no other message but an empty one would fit in the bundle.
+	 */
+	boolean isFull() {
+		return !fits(1, data.length - size);
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	int getChannel() {
+		return channel;
+	}
+
+	Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Completes the completion of every message in the bundle the way the completion of its packet completes.
+	 */
+	void completeWith(CompletableFuture<Void> packetCompletion) {
+		packetCompletion.whenComplete((result, e) -> {
+			for (int i = 0; i < completions.size(); i++) {
+				if (e == null) {
+					completions.get(i).complete(null);
+				}
+				else {
+					completions.get(i).completeExceptionally(e);
+				}
+			}
+		});
+	}
+
+	void fail(Throwable cause) {
+		for (int i = 0; i < completions.size(); i++) {
+			completions.get(i).completeExceptionally(cause);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package network;
+
+/**
+ * Additive increase, multiplicative decrease congestion control in the style of TCP NewReno (RFC 5681). The window
+ * doubles every round trip during slow start and grows by one packet per round trip once it passes the slow start
+ * threshold. A loss detected from later acknowledgments halves the window, while a timeout collapses it to one
+ * packet.
+ */
+public class NewRenoCongestionControl implements CongestionControl {
+	static final int INITIAL_WINDOW = 10;
+	static final int MIN_WINDOW = 2;
+
+	private double window = INITIAL_WINDOW;
+	private double slowStartThreshold = PacketUtils.MAX_WIDE_PACKETS_IN_FLIGHT;
+
+	@Override
+	public synchronized int getCongestionWindow() {
+		return Math.max(1, (int) window);
+	}
+
+	@Override
+	public synchronized void onAck(int numAcked, long smoothedRttNanos, long currentTimeNanos) {
+		double acked = numAcked;
+		if (window < slowStartThreshold) {
+			double slowStartAcked = Math.min(acked, slowStartThreshold - window);
+			window += slowStartAcked;
+			acked -= slowStartAcked;
+		}
+		if (acked > 0) {
+			window += acked / window;
+		}
+		window = Math.min(window, PacketUtils.MAX_WIDE_PACKETS_IN_FLIGHT);
+	}
+
+	@Override
+	public synchronized void onTimeout() {
+		slowStartThreshold = Math.max(window / 2, MIN_WINDOW);
+		window = 1;
+	}
+
+	@Override
+	public synchronized void onLoss(long currentTimeNanos) {
+		slowStartThreshold = Math.max(window / 2, MIN_WINDOW);
+		window = slowStartThreshold;
+	}
+}
@@ -0,0 +1,95 @@
+package network;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A reliable message waiting in the send queue of a connection. A message that fits in one packet is built up
+ * front, while a larger one is cut into fragments one at a time as the window opens, each as large as the packet
+ * size allows at that moment. The sequence number of each packet is set when it is sent.
+ * The completion of the message is completed once its last packet and everything sent before it was acknowledged.
+ */
+class OutgoingMessage {
+	private final byte[] packet;
+	private final byte[] data;
+	private final int messageId;
+	private final int channel;
+	private final CompletableFuture<Void> completion = new CompletableFuture<>();
+	private int offset = 0;
+	private boolean isPacketSent = false;
+
+	private OutgoingMessage(byte[] packet, byte[] data, int messageId, int channel) {
+		this.packet = packet;
+		this.data = data;
+		this.messageId = messageId;
+		this.channel = channel;
+	}
+
+	/**
+	 * Returns a message consisting of the given packet.
+	 */
+	static OutgoingMessage ofPacket(byte[] packet) {
+		return new OutgoingMessage(packet, null, 0, 0);
+	}
+
+	/**
+	 * Returns a message that sends the given data in fragments on the given channel. The data must not be modified
+	 * afterwards.
+	 */
+	static OutgoingMessage ofFragments(byte[] data, int messageId, int channel) {
+		return new OutgoingMessage(null, data, messageId, channel);
+	}
+
+	/**
+	 * Returns the size of the next packet of the message.
+	 */
+	int getNextPacketSize(int packetSize, boolean wide) {
+		if (packet != null) {
+			return packet.length;
+		}
+		int headerSize = PacketUtils.getFragmentHeaderSize(wide, channel);
+		return headerSize + Math.min(packetSize - headerSize, data.length - offset);
+	}
+
+	/**
+	 * Returns the next packet of the message, whose fragment is at most the given packet size.
+	 */
+	byte[] nextPacket(int packetSize, boolean wide) {
+		if (packet != null) {
+			isPacketSent = true;
+			return packet;
+		}
+		int length = Math.min(packetSize - PacketUtils.getFragmentHeaderSize(wide, channel), data.length - offset);
+		byte[] fragment = PacketUtils.constructReliableFragmentPacket(data, offset, length, messageId, 0, wide, channel);
+		offset += length;
+		return fragment;
+	}
+
+	/**
+	 * Returns whether the message is sent in fragments, which may be interleaved with other messages.
+	 */
+	boolean isFragmented() {
+		return data != null;
+	}
+
+	CompletableFuture<Void> getCompletion() {
+		return completion;
+	}
+
+	boolean isFIN() {
+		return packet != null && PacketUtils.isFIN(packet);
+	}
+
+	/**
+	 * Returns the number of bytes of the message that have not been cut into packets yet.
+	 */
+	int getRemainingBytes() {
+		if (packet != null) {
+			return isPacketSent ? 0 : packet.length;
+		}
+		return data.length - offset;
+	}
+
+	boolean isDone() {
+		return packet != null ? isPacketSent : offset >= data.length;
+	}
+}
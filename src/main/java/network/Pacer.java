@@ -0,0 +1,76 @@
+package network;
+
+/**
+ * A token bucket spreading the packets a connection sends over time instead of sending them in bursts. The rate is
+ * either fixed, or derived from the congestion window so that a full window is sent over about one round trip.
+ * The bucket holds enough tokens for what the rate allows in one tick of the event loop timer, since packets held
+ * back are released by a timer on the event loop rather than by sleeping.
+ */
+public class Pacer {
+	//paces slightly faster than a window per round trip so that the window, not the pacer, limits the connection
+	static final double PACING_GAIN = 1.25;
+	static final int MIN_BURST_BYTES = 2 * PacketUtils.MAX_PACKET_SIZE;
+
+	private final long fixedRate;
+	//bytes per second, 0 if not known yet in which case nothing is held back
+	private double rate;
+	private double capacity = MIN_BURST_BYTES;
+	private double tokens = MIN_BURST_BYTES;
+	private long lastRefillNanos = -1;
+
+	/**
+	 * Creates a pacer for the given rate in bytes per second, or one derived from the congestion window if the rate
+	 * is 0.
+	 */
+	public Pacer(long rateBytesPerSecond) {
+		if (rateBytesPerSecond < 0) {
+			throw new IllegalArgumentException("Pacing rate must not be negative, got " + rateBytesPerSecond);
+		}
+		this.fixedRate = rateBytesPerSecond;
+		setRate(rateBytesPerSecond);
+	}
+
+	/**
+	 * Updates the rate derived from the congestion window, in packets of at most the given size, and the smoothed
+	 * round trip time, which is -1 if it has not been measured yet. Does nothing if the rate is fixed.
+	 */
+	public synchronized void updateRate(int congestionWindow, int packetSize, long smoothedRttNanos) {
+		if (fixedRate > 0 || smoothedRttNanos <= 0) {
+			return;
+		}
+		setRate(PACING_GAIN * congestionWindow * packetSize * 1e9 / smoothedRttNanos);
+	}
+
+	private void setRate(double rate) {
+		this.rate = rate;
+		this.capacity = Math.max(MIN_BURST_BYTES, rate * EventLoop.TIMER_TICK_MS / 1000);
+		this.tokens = Math.min(tokens, capacity);
+	}
+
+	/**
+	 * Takes the tokens for a packet of the given size if there are any left, and returns 0. Otherwise returns how
+	 * many nanoseconds to wait before trying again. The bucket may go into debt for one packet, so that packets
+	 * larger than the bucket can still be sent.
+	 */
+	public synchronized long acquire(int size, long currentTimeNanos) {
+		if (rate <= 0) {
+			return 0;
+		}
+		if (lastRefillNanos >= 0) {
+			tokens = Math.min(capacity, tokens + rate * (currentTimeNanos - lastRefillNanos) / 1e9);
+		}
+		lastRefillNanos = currentTimeNanos;
+		if (tokens < 0) {
+			return Math.max(1, (long) Math.ceil(-tokens * 1e9 / rate));
+		}
+		tokens -= size;
+		return 0;
+	}
+
+	/**
+	 * Returns the pacing rate in bytes per second, or 0 if nothing is held back yet.
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+}
@@ -0,0 +1,13 @@
+package network;
+
+import java.net.SocketAddress;
+
+/**
+ * Interface for the owner of a channel registered on an EventLoop that wishes to be notified of incoming datagrams.
+ * onReadComplete is called after each batch of datagrams read from the channel at once.
+ */
+interface PacketListener {
+	void onPacket(SocketAddress address, byte[] data);
+	void onReadComplete();
+	void onClose();
+}
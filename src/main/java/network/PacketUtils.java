@@ -1,5 +1,8 @@
 package network;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class PacketUtils {
 	private PacketUtils() {}
 
@@ -7,9 +10,9 @@ public class PacketUtils {
 	 * PACKET FORMAT:
 	 * each row is 16 bits, each column in a row separated by + is 8 bits
 	 * +-------------------------------+-------------------------------+
-	 * +                               + S | A | R | C | H | F |   |   +
-	 * +          PROTOCOL ID          + Y | C | L | N | B | I |   |   +
-	 * +                               + N | K | B | K | T | N |   |   +
+	 * +                               + S | A | R | C | H | F | E | W +
+	 * +          PROTOCOL ID          + Y | C | L | N | B | I | X | I +
+	 * +                               + N | K | B | K | T | N | T | D +
 	 * +-------------------------------+-------------------------------+
 	 * +                                                               +
 	 * +                       SEQUENCE NUMBER                         +
@@ -19,6 +22,66 @@ public class PacketUtils {
 	 * +                          EXTRA DATA                           +
 	 * +                                                               +
 	 * +-------------------------------+-------------------------------+
+	 * +         EXTENSIONS            +                               +
+	 * +-------------------------------+                               +
+	 * +                       EXTENSION FIELDS                        +
+	 * +                                                               +
+	 * +-------------------------------+-------------------------------+
+	 *
+	 * WIDE PACKET FORMAT:
+	 * if the WID flag is set, the sequence number and extra data fields are 32 bits each instead
+	 * +-------------------------------+-------------------------------+
+	 * +          PROTOCOL ID          +             FLAGS             +
+	 * +-------------------------------+-------------------------------+
+	 * +                       SEQUENCE NUMBER                         +
+	 * +                          (32 bits)                            +
+	 * +-------------------------------+-------------------------------+
+	 * +                          EXTRA DATA                           +
+	 * +                          (32 bits)                            +
+	 * +-------------------------------+-------------------------------+
+	 *
+	 * The extension octet and the fields following it are only present if the EXT flag is set. Each bit of the
+	 * extension octet marks one optional field, and the fields are laid out in the order of their bits from the most
+	 * significant one. The user data starts after the last field.
+	 *
+	 * EXTENSION INFO:
+	 * 		SACK (0x80):
+	 * 			32 bits. Selective acknowledgment of the packets received after a gap, where bit i (counting from the
+	 * 			least significant bit) is set if the packet with sequence number ACK + 2 + i has been received.
+	 * 		WINDOW (0x40):
+	 * 			32 bits. The receive window, the number of packets past the cumulative ack the sender of this packet
+	 * 			can still buffer, i.e. its capacity less the packets it holds that arrived out of order. Sent on SYN,
+	 * 			SYN-ACK and ACK packets, the receiver must not have more packets than this in flight.
+	 * 		FRAGMENT (0x20):
+	 * 			96 bits. Marks a chunked message as a fragment of a message of any size, in place of the chunk info
+	 * 			in the extra data field. Holds the message ID, the length of the whole message and the offset of the
+	 * 			fragment's data within it, 32 bits each.
+	 * 		CHANNEL (0x10):
+	 * 			40 bits. Sends a reliable message on a channel other than the default channel 0, in the first octet.
+	 * 			The other 32 bits hold the sequence number of the message within its channel, which counts up from 0
+	 * 			and wraps like the sequence number of the connection. Messages of a channel are delivered in the order
+	 * 			of their channel sequence numbers as soon as they arrive, regardless of packets missing on other
+	 * 			channels. Messages without the extension are on channel 0, which is ordered by the sequence number of
+	 * 			the connection.
+	 * 			On an unreliable message, the extension makes the message sequenced. The channel then names a stream
+	 * 			of unreliable messages, whose sequence number counts up from 0 and wraps at 32 bits. The receiver
+	 * 			drops any message of a stream that is not newer than the newest one it delivered from that stream.
+	 * 		UNORDERED (0x08):
+	 * 			No field. Marks a reliable message that is delivered as soon as it arrives, regardless of order. It is
+	 * 			still acknowledged and retransmitted, and a duplicate is recognized by its sequence number being
+	 * 			marked in the receive window. Fragments of an unordered message are unordered too, and the message is
+	 * 			delivered once all of them have arrived.
+	 * 		BUNDLE (0x04):
+	 * 			No field. Marks that the user data holds several small messages coalesced into one packet, each
+	 * 			prefixed with its length in 16 bits. The messages share the header of the packet, so they are reliable,
+	 * 			on a channel or unordered together, and they are delivered one by one in the order they were added.
+	 * 		PIECE (0x02):
+	 * 			64 bits. Marks a piece of a reliable packet that was too large for the path, holding the length of
+	 * 			the whole packet and the offset of the piece within it, 32 bits each. The user data is a slice of the
+	 * 			whole packet, header included. Every piece carries the sequence number and piggybacked ack of the
+	 * 			packet and no other flags or extensions. The receiver collects the pieces until the packet is whole
+	 * 			and then handles it as if it arrived in one datagram. A piece of a packet that was already received is
+	 * 			a duplicate of it.
 	 *
 	 * FLAG INFO:
 	 * 		SYN:
@@ -30,11 +93,16 @@ public class PacketUtils {
 	 * 			of the connection it is replying to, and the sequence number field should have the receiver's own
 	 * 			sequence number.
 	 * 		ACK:
-	 * 			Used as a response to a given message. The 'Extra Data' field should contain the sequence number the
-	 * 			acknowledgment is meant for. In general, reliable exchanges work as follows:
+	 * 			Used as a response to a given message. The 'Extra Data' field should contain the cumulative ack, the
+	 * 			latest sequence number up to which every message has been received. In general, reliable exchanges work
+	 * 			as follows:
 	 * 				- Sender sends message with sequence number x
 	 * 				- Receiver sends back an ACK message with ack number the same x
 	 * 				- Sender's next message has sequence number x + 1
+	 * 			If messages arrive out of order, the ACK also carries the SACK extension so that the sender learns
+	 * 			about every received message past the gap from a single ACK.
+	 * 			The ACK flag may also be set on a reliable message that is not chunked, in which case the 'Extra Data'
+	 * 			field carries the sender's cumulative ack piggybacked on the message and no separate ACK is needed.
 	 * 		RLB:
 	 * 			Marks the message as reliable, and requires the receiver to respond with an ACK.
 	 * 		CNK:
@@ -43,10 +111,16 @@ public class PacketUtils {
 	 * 			The 'Extra Data' field has the number of expected chunks in the first octet, interpreted as an
 	 * 			unsigned integer plus one (e.g. 0 => 1 chunk, 1 => 2 chunks, ... , 255 => 256 chunks), and which
 	 * 			chunk the message corresponds to in the second octet.
+	 * 			If the message carries the FRAGMENT extension, the extension describes the fragment instead, and
+	 * 			the 'Extra Data' field is free to carry a piggybacked acknowledgment.
 	 * 		HBT:
 	 * 			Marks the message as a heartbeat, which means that the packet contains no data but the sender expects
 	 * 			an acknowledgment anyway. This is meant to make sure the connection is still alive on both ends even if
 	 * 			both sides aren't sending any user messages.
+	 * 			If HBT is set without RLB, the message is a path MTU probe, padded with zeroes to the packet size being
+	 * 			tested. It is never retransmitted, and always uses the compact header. The receiver answers it with a
+	 * 			probe acknowledgment with both HBT and ACK set, whose sequence number field holds the size of the
+	 * 			probe as received.
 	 * 		FIN:
 	 * 			Marks the message as a disconnect message. The disconnect protocol is as follows:
 	 * 				- Sender sends a reliable FIN message. No further messages should be accepted after this one.
@@ -55,9 +129,18 @@ public class PacketUtils {
 	 * 			If at any point during this process the messages don't arrive and/or the message times out, both sides
 	 * 			will end up closing their connection anyway. It is up to the user to decide when is a good time to close
 	 * 			the connection, as the receiver may be in the middle of transmitting data when it receives a FIN.
+	 * 		EXT:
+	 * 			Marks that the header is followed by the extension octet and the fields it lists.
+	 * 		WID:
+	 * 			Marks the packet as using the wide header. A client asks for 32-bit sequence numbers by sending a wide
+	 * 			SYN, and the server agrees by answering with a wide SYN-ACK, after which every packet of the connection
+	 * 			that carries a sequence number is wide. If the SYN-ACK is not wide, both sides use the compact header
+	 * 			and 16-bit sequence numbers, which limits the window to well below half of the sequence number space.
+	 * 			Chunk info is kept in the last two octets of the extra data field.
 	 */
 
 	static final int HEADER_SIZE = 6;
+	static final int WIDE_HEADER_SIZE = 10;
 	static final byte VERSION_ID = (byte) 0xAA;
 
 	static final byte SYN_MASK = (byte) (0x80 & 0xFF);
@@ -66,12 +149,48 @@ public class PacketUtils {
 	static final byte CHUNKED_MASK = (byte) (0x10 & 0xFF);
 	static final byte HEARTBEAT_MASK = (byte) (0x08 & 0xFF);
 	static final byte FIN_MASK = (byte) (0x04 & 0xFF);
+	static final byte EXTENDED_MASK = (byte) (0x02 & 0xFF);
+	static final byte WIDE_MASK = (byte) (0x01 & 0xFF);
 
-	public static final int MAX_PACKETS_IN_FLIGHT = 32;
+	static final int SEQUENCE_MASK = 0xFFFF;
+	static final int WIDE_SEQUENCE_MASK = 0xFFFFFFFF;
+
+	static final byte SACK_EXT_MASK = (byte) (0x80 & 0xFF);
+	static final int SACK_EXT_SIZE = 4;
+	static final byte WINDOW_EXT_MASK = (byte) (0x40 & 0xFF);
+	static final int WINDOW_EXT_SIZE = 4;
+	static final byte FRAGMENT_EXT_MASK = (byte) (0x20 & 0xFF);
+	static final int FRAGMENT_EXT_SIZE = 12;
+	static final byte CHANNEL_EXT_MASK = (byte) (0x10 & 0xFF);
+	static final int CHANNEL_EXT_SIZE = 5;
+	static final byte UNORDERED_EXT_MASK = (byte) (0x08 & 0xFF);
+	static final int UNORDERED_EXT_SIZE = 0;
+	static final byte BUNDLE_EXT_MASK = (byte) (0x04 & 0xFF);
+	static final int BUNDLE_EXT_SIZE = 0;
+	static final byte PIECE_EXT_MASK = (byte) (0x02 & 0xFF);
+	static final int PIECE_EXT_SIZE = 8;
+	//every message in a bundle is prefixed with its length
+	static final int BUNDLE_LENGTH_SIZE = 2;
+
+	//extension fields in the order they are laid out in
+	private static final byte[] EXT_MASKS = {SACK_EXT_MASK, WINDOW_EXT_MASK, FRAGMENT_EXT_MASK, CHANNEL_EXT_MASK, UNORDERED_EXT_MASK, BUNDLE_EXT_MASK, PIECE_EXT_MASK};
+	private static final int[] EXT_SIZES = {SACK_EXT_SIZE, WINDOW_EXT_SIZE, FRAGMENT_EXT_SIZE, CHANNEL_EXT_SIZE, UNORDERED_EXT_SIZE, BUNDLE_EXT_SIZE, PIECE_EXT_SIZE};
+
+	//the send and receive windows start out holding this many packets and grow up to the maximum as needed
+	public static final int INITIAL_WINDOW_CAPACITY = 32;
+	public static final int MAX_PACKETS_IN_FLIGHT = 4096;
+	public static final int MAX_WIDE_PACKETS_IN_FLIGHT = 1 << 18;
+	//the packet size every path is assumed to carry, larger packets are only sent once path MTU discovery allows
 	public static final int MAX_PACKET_SIZE = 1024;
+	public static final int MAX_PROBE_PACKET_SIZE = 8972;
 	public static final int MAX_NUM_CHUNKS = 256;
 	public static final int MAX_DATA_PER_CHUNK = MAX_PACKET_SIZE - HEADER_SIZE;
 	public static final int MAX_PAYLOAD_SIZE = MAX_NUM_CHUNKS * (MAX_PACKET_SIZE - HEADER_SIZE);
+	public static final int MAX_DATA_PER_WIDE_CHUNK = MAX_PACKET_SIZE - WIDE_HEADER_SIZE;
+	public static final int MAX_WIDE_PAYLOAD_SIZE = MAX_NUM_CHUNKS * MAX_DATA_PER_WIDE_CHUNK;
+	public static final int MAX_CHANNELS = 256;
+	//passed in place of a channel for reliable messages that are delivered as soon as they arrive
+	public static final int UNORDERED_CHANNEL = -1;
 
 	public static byte[] constructUnreliablePacket(byte[] data) {
 		byte[] ret = new byte[HEADER_SIZE + data.length];
@@ -85,6 +204,154 @@ public class PacketUtils {
 		return ret;
 	}
 
+	/**
+	 * Returns an unreliable packet carrying the given length of the data starting at the offset.
+	 */
+	public static byte[] constructUnreliablePacket(byte[] data, int offset, int length) {
+		checkSlice(data, offset, length);
+		byte[] ret = new byte[HEADER_SIZE + length];
+		writeHeader(ret, (byte) 0, 0, 0, false);
+		System.arraycopy(data, offset, ret, HEADER_SIZE, length);
+		return ret;
+	}
+
+	/**
+	 * Returns an unreliable packet that is the given message of the sequenced stream with the given channel. The
+	 * receiver drops it if a newer message of the stream has already arrived.
+	 */
+	public static byte[] constructSequencedPacket(byte[] data, int channel, int channelSeqNum) {
+		checkChannel(channel);
+		int headerSize = HEADER_SIZE + 1 + CHANNEL_EXT_SIZE;
+		byte[] ret = new byte[headerSize + data.length];
+		writeHeader(ret, EXTENDED_MASK, 0, 0, false);
+		ret[HEADER_SIZE] = CHANNEL_EXT_MASK;
+		ret[HEADER_SIZE + 1] = (byte) channel;
+		writeInt(ret, HEADER_SIZE + 2, channelSeqNum);
+		System.arraycopy(data, 0, ret, headerSize, data.length);
+		return ret;
+	}
+
+	public static byte[] constructReliablePacket(byte[] data, int seqNum, int ackNum, boolean wide) {
+		if (!wide) {
+			return constructReliablePacket(data, seqNum, ackNum);
+		}
+		byte[] ret = new byte[WIDE_HEADER_SIZE + data.length];
+		System.arraycopy(data, 0, ret, WIDE_HEADER_SIZE, data.length);
+		writeWideHeader(ret, RELIABLE_MASK, seqNum, ackNum);
+		return ret;
+	}
+
+	/**
+	 * Returns a reliable packet sent on the given channel, or an unordered one for UNORDERED_CHANNEL. Its channel
+	 * sequence number is left at 0 to be set when it is sent.
+	 */
+	public static byte[] constructReliablePacket(byte[] data, int seqNum, int ackNum, boolean wide, int channel) {
+		if (channel == 0) {
+			return constructReliablePacket(data, seqNum, ackNum, wide);
+		}
+		return constructReliablePacket(data, 0, data.length, seqNum, ackNum, wide, channel);
+	}
+
+	/**
+	 * Returns a reliable packet carrying the given length of the data starting at the offset, sent on the given
+	 * channel or UNORDERED_CHANNEL.
+	 */
+	public static byte[] constructReliablePacket(byte[] data, int offset, int length, int seqNum, int ackNum, boolean wide, int channel) {
+		checkSlice(data, offset, length);
+		int headerSize = getReliableHeaderSize(wide, channel);
+		byte[] ret = new byte[headerSize + length];
+		writeHeader(ret, channel == 0 ? RELIABLE_MASK : (byte) (RELIABLE_MASK | EXTENDED_MASK), seqNum, ackNum, wide);
+		writeChannel(ret, wide ? WIDE_HEADER_SIZE : HEADER_SIZE, channel);
+		System.arraycopy(data, offset, ret, headerSize, length);
+		return ret;
+	}
+
+	/**
+	 * Returns the size of the header of a reliable packet that is not a fragment, sent on the given channel or
+	 * UNORDERED_CHANNEL.
+	 */
+	public static int getReliableHeaderSize(boolean wide, int channel) {
+		int baseHeaderSize = wide ? WIDE_HEADER_SIZE : HEADER_SIZE;
+		return channel == 0 ? baseHeaderSize : baseHeaderSize + 1 + getChannelExtensionSize(channel);
+	}
+
+	/**
+	 * Returns an unreliable packet carrying the given bundle of messages, as laid out by writeBundledMessage.
+	 */
+	public static byte[] constructUnreliableBundlePacket(byte[] bundle) {
+		int headerSize = getBundleHeaderSize(false, 0);
+		byte[] ret = new byte[headerSize + bundle.length];
+		writeHeader(ret, EXTENDED_MASK, 0, 0, false);
+		ret[HEADER_SIZE] = BUNDLE_EXT_MASK;
+		System.arraycopy(bundle, 0, ret, headerSize, bundle.length);
+		return ret;
+	}
+
+	/**
+	 * Returns a reliable packet carrying the given bundle of messages on the given channel, or an unordered one for
+	 * UNORDERED_CHANNEL. Its channel sequence number is left at 0 to be set when it is sent.
+	 */
+	public static byte[] constructReliableBundlePacket(byte[] bundle, int seqNum, int ackNum, boolean wide, int channel) {
+		int headerSize = getBundleHeaderSize(wide, channel);
+		byte[] ret = new byte[headerSize + bundle.length];
+		writeHeader(ret, (byte) (RELIABLE_MASK | EXTENDED_MASK), seqNum, ackNum, wide);
+		int extOctetOffset = wide ? WIDE_HEADER_SIZE : HEADER_SIZE;
+		ret[extOctetOffset] = BUNDLE_EXT_MASK;
+		writeChannel(ret, extOctetOffset, channel);
+		System.arraycopy(bundle, 0, ret, headerSize, bundle.length);
+		return ret;
+	}
+
+	/**
+	 * Returns the size of the header of a packet carrying a bundle of messages on the given channel or
+	 * UNORDERED_CHANNEL. Unreliable bundles always use the compact header on channel 0.
+	 */
+	public static int getBundleHeaderSize(boolean wide, int channel) {
+		return (wide ? WIDE_HEADER_SIZE : HEADER_SIZE) + 1 + getChannelExtensionSize(channel);
+	}
+
+	/**
+	 * Writes the message into the bundle at the given offset, prefixed with its length, and returns the offset past
+	 * it. The message must be shorter than 64 KB.
+	 */
+	static int writeBundledMessage(byte[] bundle, int offset, byte[] message, int messageOffset, int length) {
+		bundle[offset] = (byte) ((length >> 8) & 0xFF);
+		bundle[offset + 1] = (byte) ((length >> 0) & 0xFF);
+		System.arraycopy(message, messageOffset, bundle, offset + BUNDLE_LENGTH_SIZE, length);
+		return offset + BUNDLE_LENGTH_SIZE + length;
+	}
+
+	public static boolean isBundle(byte[] data) {
+		return hasExtension(data, BUNDLE_EXT_MASK);
+	}
+
+	/**
+	 * Returns the messages bundled in the packet in the order they were added. A message whose length runs past the
+	 * end of the packet is dropped along with everything after it.
+	 */
+	public static byte[][] getBundledMessages(byte[] data) {
+		List<byte[]> messages = new ArrayList<>();
+		int length;
+		for (int offset = getHeaderSize(data); (length = getBundledMessageLength(data, offset)) >= 0; offset += BUNDLE_LENGTH_SIZE + length) {
+			byte[] message = new byte[length];
+			System.arraycopy(data, offset + BUNDLE_LENGTH_SIZE, message, 0, length);
+			messages.add(message);
+		}
+		return messages.toArray(new byte[0][]);
+	}
+
+	/**
+	 * Returns the length of the bundled message whose length prefix is at the given offset, or -1 if the packet ends
+	 * before the message does. The message itself starts BUNDLE_LENGTH_SIZE bytes after the offset.
+	 */
+	public static int getBundledMessageLength(byte[] data, int offset) {
+		if (offset > data.length - BUNDLE_LENGTH_SIZE) {
+			return -1;
+		}
+		int length = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+		return length <= data.length - offset - BUNDLE_LENGTH_SIZE ? length : -1;
+	}
+
 	public static byte[] constructReliablePacket(byte[] data, int seqNum, int ackNum) {
 		byte[] ret = new byte[HEADER_SIZE + data.length];
 		System.arraycopy(data, 0, ret, HEADER_SIZE, data.length);
@@ -97,6 +364,15 @@ public class PacketUtils {
 		return ret;
 	}
 
+	public static byte[] constructSYNPacket(int seqNum, boolean wide) {
+		if (!wide) {
+			return constructSYNPacket(seqNum);
+		}
+		byte[] ret = new byte[WIDE_HEADER_SIZE];
+		writeWideHeader(ret, (byte) (SYN_MASK | RELIABLE_MASK), seqNum, 0);
+		return ret;
+	}
+
 	public static byte[] constructSYNPacket(int seqNum) {
 		byte[] ret = new byte[HEADER_SIZE];
 		ret[0] = VERSION_ID;
@@ -108,6 +384,15 @@ public class PacketUtils {
 		return ret;
 	}
 
+	public static byte[] constructSYNACKPacket(int seqNum, int ackNum, boolean wide) {
+		if (!wide) {
+			return constructSYNACKPacket(seqNum, ackNum);
+		}
+		byte[] ret = new byte[WIDE_HEADER_SIZE];
+		writeWideHeader(ret, (byte) (SYN_MASK | ACK_MASK | RELIABLE_MASK), seqNum, ackNum);
+		return ret;
+	}
+
 	public static byte[] constructSYNACKPacket(int seqNum, int ackNum) {
 		byte[] ret = new byte[HEADER_SIZE];
 		ret[0] = VERSION_ID;
@@ -119,6 +404,15 @@ public class PacketUtils {
 		return ret;
 	}
 
+	public static byte[] constructACKPacket(int seqNum, int ackNum, boolean wide) {
+		if (!wide) {
+			return constructACKPacket(seqNum, ackNum);
+		}
+		byte[] ret = new byte[WIDE_HEADER_SIZE];
+		writeWideHeader(ret, ACK_MASK, seqNum, ackNum);
+		return ret;
+	}
+
 	public static byte[] constructACKPacket(int seqNum, int ackNum) {
 		byte[] ret = new byte[HEADER_SIZE];
 		ret[0] = VERSION_ID;
@@ -130,6 +424,45 @@ public class PacketUtils {
 		return ret;
 	}
 
+	public static byte[] constructACKPacket(int seqNum, int ackNum, int ackBitmap, boolean wide) {
+		if (!wide) {
+			return constructACKPacket(seqNum, ackNum, ackBitmap);
+		}
+		byte[] ret = new byte[WIDE_HEADER_SIZE + 1 + SACK_EXT_SIZE];
+		writeWideHeader(ret, (byte) (ACK_MASK | EXTENDED_MASK), seqNum, ackNum);
+		ret[10] = SACK_EXT_MASK;
+		ret[11] = (byte) ((ackBitmap >> 24) & 0xFF);
+		ret[12] = (byte) ((ackBitmap >> 16) & 0xFF);
+		ret[13] = (byte) ((ackBitmap >> 8) & 0xFF);
+		ret[14] = (byte) ((ackBitmap >> 0) & 0xFF);
+		return ret;
+	}
+
+	public static byte[] constructACKPacket(int seqNum, int ackNum, int ackBitmap) {
+		byte[] ret = new byte[HEADER_SIZE + 1 + SACK_EXT_SIZE];
+		ret[0] = VERSION_ID;
+		ret[1] = ACK_MASK | EXTENDED_MASK;
+		ret[2] = (byte) ((seqNum >> 8) & 0xFF);
+		ret[3] = (byte) ((seqNum >> 0) & 0xFF);
+		ret[4] = (byte) ((ackNum >> 8) & 0xFF);
+		ret[5] = (byte) ((ackNum >> 0) & 0xFF);
+		ret[6] = SACK_EXT_MASK;
+		ret[7] = (byte) ((ackBitmap >> 24) & 0xFF);
+		ret[8] = (byte) ((ackBitmap >> 16) & 0xFF);
+		ret[9] = (byte) ((ackBitmap >> 8) & 0xFF);
+		ret[10] = (byte) ((ackBitmap >> 0) & 0xFF);
+		return ret;
+	}
+
+	public static byte[] constructFINPacket(int seqNum, int ackNum, boolean wide) {
+		if (!wide) {
+			return constructFINPacket(seqNum, ackNum);
+		}
+		byte[] ret = new byte[WIDE_HEADER_SIZE];
+		writeWideHeader(ret, (byte) (RELIABLE_MASK | FIN_MASK), seqNum, ackNum);
+		return ret;
+	}
+
 	public static byte[] constructFINPacket(int seqNum, int ackNum) {
 		byte[] ret = new byte[HEADER_SIZE];
 		ret[0] = VERSION_ID;
@@ -141,6 +474,15 @@ public class PacketUtils {
 		return ret;
 	}
 
+	public static byte[] constructFINACKPacket(int seqNum, int ackNum, boolean wide) {
+		if (!wide) {
+			return constructFINACKPacket(seqNum, ackNum);
+		}
+		byte[] ret = new byte[WIDE_HEADER_SIZE];
+		writeWideHeader(ret, (byte) (ACK_MASK | RELIABLE_MASK | FIN_MASK), seqNum, ackNum);
+		return ret;
+	}
+
 	public static byte[] constructFINACKPacket(int seqNum, int ackNum) {
 		byte[] ret = new byte[HEADER_SIZE];
 		ret[0] = VERSION_ID;
@@ -152,6 +494,15 @@ public class PacketUtils {
 		return ret;
 	}
 
+	public static byte[] constructHeartbeatPacket(int seqNum, int ackNum, boolean wide) {
+		if (!wide) {
+			return constructHeartbeatPacket(seqNum, ackNum);
+		}
+		byte[] ret = new byte[WIDE_HEADER_SIZE];
+		writeWideHeader(ret, (byte) (RELIABLE_MASK | HEARTBEAT_MASK), seqNum, ackNum);
+		return ret;
+	}
+
 	public static byte[] constructHeartbeatPacket(int seqNum, int ackNum) {
 		byte[] ret = new byte[HEADER_SIZE];
 		ret[0] = VERSION_ID;
@@ -164,39 +515,433 @@ public class PacketUtils {
 	}
 
 	public static byte[][] constructReliableChunkedPackets(byte[] data, int seqNum) {
-		if (data.length > MAX_PAYLOAD_SIZE) {
-			throw new IllegalArgumentException("Data length " + data.length + " exceeds maximum payload size " + MAX_PAYLOAD_SIZE);
+		return constructReliableChunkedPackets(data, seqNum, false);
+	}
+
+	public static byte[][] constructReliableChunkedPackets(byte[] data, int seqNum, boolean wide) {
+		return constructReliableChunkedPackets(data, seqNum, wide, MAX_PACKET_SIZE);
+	}
+
+	/**
+	 * Splits the data into chunks of at most the given packet size, including the header.
+	 */
+	public static byte[][] constructReliableChunkedPackets(byte[] data, int seqNum, boolean wide, int packetSize) {
+		int headerSize = wide ? WIDE_HEADER_SIZE : HEADER_SIZE;
+		int maxDataPerChunk = packetSize - headerSize;
+		if (data.length > MAX_NUM_CHUNKS * maxDataPerChunk) {
+			throw new IllegalArgumentException("Data length " + data.length + " exceeds maximum payload size " + MAX_NUM_CHUNKS * maxDataPerChunk);
 		}
-		int numChunks = data.length / MAX_DATA_PER_CHUNK + (data.length % MAX_DATA_PER_CHUNK == 0 ? 0 : 1); //ceiling division
+		int numChunks = data.length / maxDataPerChunk + (data.length % maxDataPerChunk == 0 ? 0 : 1); //ceiling division
 		byte[][] chunkedData = new byte[numChunks][];
 		for (int i = 0; i < numChunks; i++) {
-			int chunkedDataLength = i == chunkedData.length - 1 ? (data.length % MAX_DATA_PER_CHUNK) + HEADER_SIZE : MAX_PACKET_SIZE;
+			int chunkedDataLength = Math.min(maxDataPerChunk, data.length - maxDataPerChunk * i) + headerSize;
 			chunkedData[i] = new byte[chunkedDataLength];
-			chunkedData[i][0] = VERSION_ID;
-			chunkedData[i][1] = RELIABLE_MASK | CHUNKED_MASK;
-			int chunkSeqNum = (seqNum + i) & 0xFFFF;
-			chunkedData[i][2] = (byte) ((chunkSeqNum >> 8) & 0xFF);
-			chunkedData[i][3] = (byte) ((chunkSeqNum >> 0) & 0xFF);
-			chunkedData[i][4] = (byte) ((numChunks - 1) & 0xFF);
-			chunkedData[i][5] = (byte) (i & 0xFF);
-			System.arraycopy(data, MAX_DATA_PER_CHUNK * i, chunkedData[i], HEADER_SIZE, chunkedDataLength - HEADER_SIZE);
+			if (wide) {
+				writeWideHeader(chunkedData[i], (byte) (RELIABLE_MASK | CHUNKED_MASK), seqNum + i, 0);
+			}
+			else {
+				chunkedData[i][0] = VERSION_ID;
+				chunkedData[i][1] = RELIABLE_MASK | CHUNKED_MASK;
+				int chunkSeqNum = (seqNum + i) & 0xFFFF;
+				chunkedData[i][2] = (byte) ((chunkSeqNum >> 8) & 0xFF);
+				chunkedData[i][3] = (byte) ((chunkSeqNum >> 0) & 0xFF);
+			}
+			chunkedData[i][headerSize - 2] = (byte) ((numChunks - 1) & 0xFF);
+			chunkedData[i][headerSize - 1] = (byte) (i & 0xFF);
+			System.arraycopy(data, maxDataPerChunk * i, chunkedData[i], headerSize, chunkedDataLength - headerSize);
 		}
 		return chunkedData;
 	}
 
+	/**
+	 * Returns the size of the header of a fragment of a message, as made by constructReliableFragmentPacket.
+	 */
+	public static int getFragmentHeaderSize(boolean wide) {
+		return getFragmentHeaderSize(wide, 0);
+	}
+
+	/**
+	 * Returns the size of the header of a fragment of a message sent on the given channel.
+	 */
+	public static int getFragmentHeaderSize(boolean wide, int channel) {
+		return (wide ? WIDE_HEADER_SIZE : HEADER_SIZE) + 1 + FRAGMENT_EXT_SIZE + getChannelExtensionSize(channel);
+	}
+
+	public static byte[] constructReliableFragmentPacket(byte[] data, int offset, int length, int messageId, int seqNum, boolean wide) {
+		return constructReliableFragmentPacket(data, offset, length, messageId, seqNum, wide, 0);
+	}
+
+	/**
+	 * Returns a packet carrying the given length of the message data starting at the offset, as one fragment of the
+	 * message with the given ID sent on the given channel.
+	 */
+	public static byte[] constructReliableFragmentPacket(byte[] data, int offset, int length, int messageId, int seqNum, boolean wide, int channel) {
+		if (offset < 0 || length < 0 || length > data.length - offset) {
+			throw new IllegalArgumentException("Fragment at " + offset + " of length " + length + " is out of range for data length " + data.length);
+		}
+		int headerSize = getFragmentHeaderSize(wide, channel);
+		byte[] ret = new byte[headerSize + length];
+		writeHeader(ret, (byte) (RELIABLE_MASK | CHUNKED_MASK | EXTENDED_MASK), seqNum, 0, wide);
+		int extOffset = (wide ? WIDE_HEADER_SIZE : HEADER_SIZE) + 1;
+		ret[extOffset - 1] = FRAGMENT_EXT_MASK;
+		writeChannel(ret, extOffset - 1, channel);
+		writeInt(ret, extOffset, messageId);
+		writeInt(ret, extOffset + 4, data.length);
+		writeInt(ret, extOffset + 8, offset);
+		System.arraycopy(data, offset, ret, headerSize, length);
+		return ret;
+	}
+
+	/**
+	 * Cuts a reliable packet into pieces of at most the given packet size, which carry its sequence number and
+	 * acknowledgment. The receiver puts the packet back together and handles it under its own sequence number, so
+	 * a packet that was already sent whole can be resent in pieces once the path stops carrying its size.
+	 */
+	public static byte[][] cutIntoPieces(byte[] packet, int packetSize) {
+		int baseHeaderSize = getBaseHeaderSize(packet);
+		int headerSize = baseHeaderSize + 1 + PIECE_EXT_SIZE;
+		int maxLength = packetSize - headerSize;
+		byte[][] pieces = new byte[(packet.length + maxLength - 1) / maxLength][];
+		for (int i = 0; i < pieces.length; i++) {
+			int offset = i * maxLength;
+			int length = Math.min(maxLength, packet.length - offset);
+			pieces[i] = new byte[headerSize + length];
+			System.arraycopy(packet, 0, pieces[i], 0, baseHeaderSize);
+			pieces[i][1] = (byte) ((packet[1] & (ACK_MASK | RELIABLE_MASK | WIDE_MASK)) | EXTENDED_MASK);
+			pieces[i][baseHeaderSize] = PIECE_EXT_MASK;
+			writeInt(pieces[i], baseHeaderSize + 1, packet.length);
+			writeInt(pieces[i], baseHeaderSize + 5, offset);
+			System.arraycopy(packet, offset, pieces[i], headerSize, length);
+		}
+		return pieces;
+	}
+
+	public static boolean isPiece(byte[] data) {
+		return hasExtension(data, PIECE_EXT_MASK);
+	}
+
+	/**
+	 * Returns the length of the whole packet the piece is part of.
+	 */
+	public static int getPacketLength(byte[] data) {
+		return readInt(data, getExtensionOffset(data, PIECE_EXT_MASK));
+	}
+
+	/**
+	 * Returns the offset of the piece within the whole packet.
+	 */
+	public static int getPieceOffset(byte[] data) {
+		return readInt(data, getExtensionOffset(data, PIECE_EXT_MASK) + 4);
+	}
+
+	public static boolean isFragment(byte[] data) {
+		return (data[1] & CHUNKED_MASK) != 0 && hasExtension(data, FRAGMENT_EXT_MASK);
+	}
+
+	public static int getMessageId(byte[] data) {
+		return readInt(data, getExtensionOffset(data, FRAGMENT_EXT_MASK));
+	}
+
+	/**
+	 * Returns the length of the whole message the fragment is part of.
+	 */
+	public static int getMessageLength(byte[] data) {
+		return readInt(data, getExtensionOffset(data, FRAGMENT_EXT_MASK) + 4);
+	}
+
+	/**
+	 * Returns the offset of the fragment's data within the whole message.
+	 */
+	public static int getFragmentOffset(byte[] data) {
+		return readInt(data, getExtensionOffset(data, FRAGMENT_EXT_MASK) + 8);
+	}
+
+	/**
+	 * Returns the channel the packet was sent on, which is 0 unless it has the CHANNEL extension, or
+	 * UNORDERED_CHANNEL if it has the UNORDERED extension.
+	 */
+	public static int getChannel(byte[] data) {
+		if ((data[1] & EXTENDED_MASK) == 0) {
+			return 0;
+		}
+		if (hasExtension(data, UNORDERED_EXT_MASK)) {
+			return UNORDERED_CHANNEL;
+		}
+		if (!hasExtension(data, CHANNEL_EXT_MASK)) {
+			return 0;
+		}
+		return data[getExtensionOffset(data, CHANNEL_EXT_MASK)] & 0xFF;
+	}
+
+	/**
+	 * Returns the sequence number of the packet within its channel, which must not be channel 0.
+	 */
+	public static int getChannelSeqNum(byte[] data) {
+		return readInt(data, getExtensionOffset(data, CHANNEL_EXT_MASK) + 1);
+	}
+
+	/**
+	 * Sets the sequence number of the packet within its channel, which must not be channel 0.
+	 */
+	public static void setChannelSeqNum(byte[] data, int seqNum) {
+		writeInt(data, getExtensionOffset(data, CHANNEL_EXT_MASK) + 1, seqNum);
+	}
+
+	static void checkSlice(byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || length > data.length - offset) {
+			throw new IllegalArgumentException("Slice at " + offset + " of length " + length + " is out of range for data length " + data.length);
+		}
+	}
+
+	static void checkChannel(int channel) {
+		if (channel < 0 || channel >= MAX_CHANNELS) {
+			throw new IllegalArgumentException("Channel must be between 0 and " + (MAX_CHANNELS - 1) + ", got " + channel);
+		}
+	}
+
+	private static int getChannelExtensionSize(int channel) {
+		if (channel == UNORDERED_CHANNEL) {
+			return UNORDERED_EXT_SIZE;
+		}
+		checkChannel(channel);
+		return channel == 0 ? 0 : CHANNEL_EXT_SIZE;
+	}
+
+	/**
+	 * Marks the channel in the extension octet at the given offset and writes the channel ID into its field. The
+	 * fields laid out before it must already be marked.
+	 */
+	private static void writeChannel(byte[] data, int extOctetOffset, int channel) {
+		if (channel == UNORDERED_CHANNEL) {
+			data[extOctetOffset] |= UNORDERED_EXT_MASK;
+		}
+		else if (channel != 0) {
+			data[extOctetOffset] |= CHANNEL_EXT_MASK;
+			data[getExtensionOffset(data, CHANNEL_EXT_MASK)] = (byte) channel;
+		}
+	}
+
+	/**
+	 * Writes the header without extensions, which is wide or compact.
+	 */
+	private static void writeHeader(byte[] data, byte flags, int seqNum, int extra, boolean wide) {
+		if (wide) {
+			writeWideHeader(data, flags, seqNum, extra);
+			return;
+		}
+		data[0] = VERSION_ID;
+		data[1] = flags;
+		data[2] = (byte) ((seqNum >> 8) & 0xFF);
+		data[3] = (byte) ((seqNum >> 0) & 0xFF);
+		data[4] = (byte) ((extra >> 8) & 0xFF);
+		data[5] = (byte) ((extra >> 0) & 0xFF);
+	}
+
+	private static void writeInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) ((value >> 24) & 0xFF);
+		data[offset + 1] = (byte) ((value >> 16) & 0xFF);
+		data[offset + 2] = (byte) ((value >> 8) & 0xFF);
+		data[offset + 3] = (byte) ((value >> 0) & 0xFF);
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+			((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
 	public static byte[] assembleDataFromChunks(byte[][] chunkedData, int numChunks) {
-		byte[] data = new byte[((numChunks - 1) * MAX_DATA_PER_CHUNK) + (chunkedData[numChunks - 1].length - HEADER_SIZE)];
+		int length = 0;
+		for (int i = 0; i < numChunks; i++) {
+			length += chunkedData[i].length - getHeaderSize(chunkedData[i]);
+		}
+		byte[] data = new byte[length];
 		for (int i = 0, acc = 0; i < numChunks; i++) {
-			int chunkDataLength = chunkedData[i].length - HEADER_SIZE;
-			System.arraycopy(chunkedData[i], HEADER_SIZE, data, acc, chunkDataLength);
+			int headerSize = getHeaderSize(chunkedData[i]);
+			int chunkDataLength = chunkedData[i].length - headerSize;
+			System.arraycopy(chunkedData[i], headerSize, data, acc, chunkDataLength);
 			acc += chunkDataLength;
 		}
 		return data;
 	}
 
+	/**
+	 * Returns a path MTU probe padded to the given size.
+	 */
+	public static byte[] constructProbePacket(int size) {
+		if (size < HEADER_SIZE || size > SEQUENCE_MASK) {
+			throw new IllegalArgumentException("Invalid probe size " + size);
+		}
+		byte[] ret = new byte[size];
+		ret[0] = VERSION_ID;
+		ret[1] = HEARTBEAT_MASK;
+		ret[2] = (byte) ((size >> 8) & 0xFF);
+		ret[3] = (byte) ((size >> 0) & 0xFF);
+		return ret;
+	}
+
+	/**
+	 * Returns the acknowledgment of a path MTU probe of the given size.
+	 */
+	public static byte[] constructProbeACKPacket(int size) {
+		byte[] ret = new byte[HEADER_SIZE];
+		ret[0] = VERSION_ID;
+		ret[1] = HEARTBEAT_MASK | ACK_MASK;
+		ret[2] = (byte) ((size >> 8) & 0xFF);
+		ret[3] = (byte) ((size >> 0) & 0xFF);
+		return ret;
+	}
+
+	private static void writeWideHeader(byte[] data, byte flags, int seqNum, int extra) {
+		data[0] = VERSION_ID;
+		data[1] = (byte) (flags | WIDE_MASK);
+		data[2] = (byte) ((seqNum >> 24) & 0xFF);
+		data[3] = (byte) ((seqNum >> 16) & 0xFF);
+		data[4] = (byte) ((seqNum >> 8) & 0xFF);
+		data[5] = (byte) ((seqNum >> 0) & 0xFF);
+		data[6] = (byte) ((extra >> 24) & 0xFF);
+		data[7] = (byte) ((extra >> 16) & 0xFF);
+		data[8] = (byte) ((extra >> 8) & 0xFF);
+		data[9] = (byte) ((extra >> 0) & 0xFF);
+	}
+
+	/**
+	 * Returns whether the extra data field of the packet is free to carry a piggybacked acknowledgment.
+	 */
+	public static boolean canPiggybackAck(byte[] data) {
+		return compareFlag(data[1], SYN_MASK | RELIABLE_MASK | FIN_MASK, RELIABLE_MASK) &&
+			((data[1] & CHUNKED_MASK) == 0 || hasExtension(data, FRAGMENT_EXT_MASK));
+	}
+
+	/**
+	 * Sets the sequence number of the packet, which must have one.
+	 */
+	public static void setSeqNum(byte[] data, int seqNum) {
+		if (isWide(data)) {
+			writeInt(data, 2, seqNum);
+			return;
+		}
+		data[2] = (byte) ((seqNum >> 8) & 0xFF);
+		data[3] = (byte) ((seqNum >> 0) & 0xFF);
+	}
+
+	/**
+	 * Marks the reliable packet as also acknowledging everything up to and including the given sequence number.
+	 */
+	public static void setPiggybackedAck(byte[] data, int ackNum) {
+		data[1] |= ACK_MASK;
+		if (isWide(data)) {
+			data[6] = (byte) ((ackNum >> 24) & 0xFF);
+			data[7] = (byte) ((ackNum >> 16) & 0xFF);
+		}
+		int offset = getBaseHeaderSize(data) - 2;
+		data[offset] = (byte) ((ackNum >> 8) & 0xFF);
+		data[offset + 1] = (byte) ((ackNum >> 0) & 0xFF);
+	}
+
 	public static boolean isValidPacket(byte[] data) {
 		//TODO: add hashing check
-		return data.length >= 6 && data[0] == VERSION_ID;
+		return data.length >= HEADER_SIZE && data[0] == VERSION_ID && data.length >= getHeaderSize(data);
+	}
+
+	/**
+	 * Returns the size of the header including any extensions, i.e. the offset the user data starts at.
+	 */
+	public static int getHeaderSize(byte[] data) {
+		int baseHeaderSize = getBaseHeaderSize(data);
+		if ((data[1] & EXTENDED_MASK) == 0) {
+			return baseHeaderSize;
+		}
+		if (data.length <= baseHeaderSize) {
+			return baseHeaderSize + 1;
+		}
+		return getExtensionOffset(data, (byte) 0);
+	}
+
+	/**
+	 * Returns the size of the header without extensions, which depends on whether the packet is wide.
+	 */
+	private static int getBaseHeaderSize(byte[] data) {
+		return (data[1] & WIDE_MASK) != 0 ? WIDE_HEADER_SIZE : HEADER_SIZE;
+	}
+
+	public static boolean isWide(byte[] data) {
+		return (data[1] & WIDE_MASK) != 0;
+	}
+
+	/**
+	 * Returns the offset of the given extension field, which is where the fields after it start. Passing an empty
+	 * mask returns the offset past every field.
+	 */
+	private static int getExtensionOffset(byte[] data, byte extMask) {
+		int baseHeaderSize = getBaseHeaderSize(data);
+		int offset = baseHeaderSize + 1;
+		byte extensions = data[baseHeaderSize];
+		for (int i = 0; i < EXT_MASKS.length && EXT_MASKS[i] != extMask; i++) {
+			if ((extensions & EXT_MASKS[i]) != 0) {
+				offset += EXT_SIZES[i];
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Returns a copy of the packet with room for the given extension field, keeping the other fields and the user
+	 * data. Returns the packet itself if it already has the field.
+	 */
+	private static byte[] insertExtension(byte[] data, byte extMask) {
+		if (hasExtension(data, extMask)) {
+			return data;
+		}
+		int extSize = 0;
+		for (int i = 0; i < EXT_MASKS.length; i++) {
+			if (EXT_MASKS[i] == extMask) {
+				extSize = EXT_SIZES[i];
+			}
+		}
+		int baseHeaderSize = getBaseHeaderSize(data);
+		boolean isExtended = (data[1] & EXTENDED_MASK) != 0;
+		byte[] ret = new byte[data.length + extSize + (isExtended ? 0 : 1)];
+		System.arraycopy(data, 0, ret, 0, baseHeaderSize);
+		ret[1] |= EXTENDED_MASK;
+		ret[baseHeaderSize] = (byte) ((isExtended ? data[baseHeaderSize] : 0) | extMask);
+		//fields laid out before the new one stay where they are, everything after moves back
+		int fieldOffset = getExtensionOffset(ret, extMask);
+		int restOffset = isExtended ? getExtensionOffset(data, extMask) : baseHeaderSize;
+		if (isExtended) {
+			System.arraycopy(data, baseHeaderSize + 1, ret, baseHeaderSize + 1, restOffset - baseHeaderSize - 1);
+		}
+		System.arraycopy(data, restOffset, ret, fieldOffset + extSize, data.length - restOffset);
+		return ret;
+	}
+
+	/**
+	 * Returns the packet with its receive window set to the given number of packets. The packet is copied if it did
+	 * not have a window yet.
+	 */
+	public static byte[] setWindow(byte[] data, int window) {
+		byte[] ret = insertExtension(data, WINDOW_EXT_MASK);
+		int offset = getExtensionOffset(ret, WINDOW_EXT_MASK);
+		ret[offset] = (byte) ((window >> 24) & 0xFF);
+		ret[offset + 1] = (byte) ((window >> 16) & 0xFF);
+		ret[offset + 2] = (byte) ((window >> 8) & 0xFF);
+		ret[offset + 3] = (byte) ((window >> 0) & 0xFF);
+		return ret;
+	}
+
+	/**
+	 * Returns the receive window advertised by the packet, or -1 if it has none.
+	 */
+	public static int getWindow(byte[] data) {
+		if (!hasExtension(data, WINDOW_EXT_MASK)) {
+			return -1;
+		}
+		int offset = getExtensionOffset(data, WINDOW_EXT_MASK);
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+			((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	public static boolean hasExtension(byte[] data, byte extMask) {
+		return (data[1] & EXTENDED_MASK) != 0 && (data[getBaseHeaderSize(data)] & extMask) == extMask;
 	}
 
 	//the following isFLAG methods are mostly for semantic purposes i.e. what should we be checking for
@@ -235,11 +980,19 @@ public class PacketUtils {
 		return compareFlag(header[1], ACK_MASK | FIN_MASK);
 	}
 
+	public static boolean isProbe(byte[] header) {
+		if (!isValidPacket(header)) {
+			throw new IllegalArgumentException("Invalid header given.");
+		}
+		return compareFlag(header[1], RELIABLE_MASK | HEARTBEAT_MASK, HEARTBEAT_MASK);
+	}
+
 	public static boolean isReliable(byte[] header) {
 		if (!isValidPacket(header)) {
 			throw new IllegalArgumentException("Invalid header given.");
 		}
-		return compareFlag(header[1], ACK_MASK | RELIABLE_MASK, RELIABLE_MASK);
+		return compareFlag(header[1], ACK_MASK | RELIABLE_MASK, RELIABLE_MASK) ||
+			compareFlag(header[1], SYN_MASK | ACK_MASK | RELIABLE_MASK | FIN_MASK, ACK_MASK | RELIABLE_MASK);
 	}
 
 	public static byte getFlags(byte[] header) {
@@ -250,21 +1003,39 @@ public class PacketUtils {
 	}
 
 	public static int getSeqNum(byte[] data) {
+		if (isWide(data)) {
+			return ((data[2] & 0xFF) << 24) | ((data[3] & 0xFF) << 16) | ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+		}
 		int seqNum = (((data[2] & 0xFF) << 8) | (data[3] & 0xFF)) & 0xFFFF;
 		return seqNum;
 	}
 
 	public static int getAckNum(byte[] data) {
+		if (isWide(data)) {
+			return ((data[6] & 0xFF) << 24) | ((data[7] & 0xFF) << 16) | ((data[8] & 0xFF) << 8) | (data[9] & 0xFF);
+		}
 		int ackNum = (((data[4] & 0xFF) << 8) | (data[5] & 0xFF)) & 0xFFFF;
 		return ackNum;
 	}
 
+	/**
+	 * Returns the selective acknowledgment bitmap of an ACK, or 0 if it has none.
+	 */
+	public static int getAckBitmap(byte[] data) {
+		if (!hasExtension(data, SACK_EXT_MASK)) {
+			return 0;
+		}
+		int offset = getExtensionOffset(data, SACK_EXT_MASK);
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+			((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
 	public static int getNumChunks(byte[] data) {
-		return (data[4] & 0xFF) + 1;
+		return (data[getBaseHeaderSize(data) - 2] & 0xFF) + 1;
 	}
 
 	public static int getChunkIndex(byte[] data) {
-		return (data[5] & 0xFF);
+		return (data[getBaseHeaderSize(data) - 1] & 0xFF);
 	}
 
 	public static boolean compareFlag(byte flags, int mask, int result) {
@@ -275,10 +1046,13 @@ public class PacketUtils {
 		return (flags & mask) == mask;
 	}
 
-	public static boolean sequenceGreaterThan(int s1, int s2) {
-		s1 &= 0xFFFF;
-		s2 &= 0xFFFF;
-		return (s1 > s2 && s1 - s2 <= 0x8000) || (s1 < s2 && s2 - s1 > 0x8000);
+	/**
+	 * Compares sequence numbers in the sequence number space given by the mask, either SEQUENCE_MASK or
+	 * WIDE_SEQUENCE_MASK.
+	 */
+	public static boolean sequenceGreaterThan(int s1, int s2, int sequenceMask) {
+		int difference = (s1 - s2) & sequenceMask;
+		return difference != 0 && Integer.compareUnsigned(difference, (sequenceMask >>> 1) + 1) <= 0;
 	}
 
 	public static void printData(byte[] data) {
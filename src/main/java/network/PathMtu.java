@@ -0,0 +1,107 @@
+package network;
+
+import java.io.IOException;
+import java.net.*;
+
+/**
+ * Searches for the largest packet size that reaches the remote endpoint, along the lines of datagram packetization
+ * layer path MTU discovery (RFC 8899). MAX_PACKET_SIZE is assumed to always fit, and each larger candidate size is
+ * only used once a probe padded to that size has been acknowledged. The search ends at the first candidate that
+ * MAX_PROBES probes in a row are lost for.
+ * The JDK cannot set the don't fragment bit on datagrams, so a probe larger than the first hop would be fragmented
+ * by the local IP stack and still arrive. Candidates are therefore capped at what the outgoing interface sends
+ * without fragmenting, see setMaxPacketSize.
+ */
+public class PathMtu {
+	static final int MAX_PROBES = 3;
+	//IPv6 minimum MTU, Ethernet and jumbo frames, less the IP and UDP headers
+	static final int[] PROBE_SIZES = {1232, 1472, PacketUtils.MAX_PROBE_PACKET_SIZE};
+	static final int IPV4_UDP_HEADER_SIZE = 28;
+	static final int IPV6_UDP_HEADER_SIZE = 48;
+
+	private int maxPacketSize = PacketUtils.MAX_PROBE_PACKET_SIZE;
+	private int packetSize = PacketUtils.MAX_PACKET_SIZE;
+	private int candidateIndex = 0;
+	private int numProbes = 0;
+
+	/**
+	 * Returns the largest packet size known to reach the remote endpoint.
+	 */
+	public synchronized int getPacketSize() {
+		return packetSize;
+	}
+
+	/**
+	 * Sets the largest candidate size that is probed. Should be called before the search starts.
+	 */
+	public synchronized void setMaxPacketSize(int maxPacketSize) {
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	/**
+	 * Returns the largest packet size the interface that packets to the given address leave through sends without
+	 * fragmenting them, or MAX_PACKET_SIZE if that interface or its MTU cannot be found.
+	 */
+	public static int getInterfacePacketSize(SocketAddress address) {
+		if (!(address instanceof InetSocketAddress) || ((InetSocketAddress) address).isUnresolved()) {
+			return PacketUtils.MAX_PACKET_SIZE;
+		}
+		InetAddress remote = ((InetSocketAddress) address).getAddress();
+		//connecting a datagram socket sends nothing, but picks the local address packets to the remote address leave from
+		try (DatagramSocket socket = new DatagramSocket()) {
+			socket.connect(address);
+			NetworkInterface networkInterface = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+			if (networkInterface == null || networkInterface.getMTU() <= 0) {
+				return PacketUtils.MAX_PACKET_SIZE;
+			}
+			int headerSize = remote instanceof Inet6Address ? IPV6_UDP_HEADER_SIZE : IPV4_UDP_HEADER_SIZE;
+			return networkInterface.getMTU() - headerSize;
+		} catch (IOException e) {
+			return PacketUtils.MAX_PACKET_SIZE;
+		}
+	}
+
+	/**
+	 * Returns the size of the next probe to send, or -1 if the search is over. Calling this counts as sending a probe
+	 * of that size, so it should be called again once the probe is presumed lost.
+	 */
+	public synchronized int nextProbe() {
+		if (!isSearching()) {
+			return -1;
+		}
+		numProbes++;
+		return PROBE_SIZES[candidateIndex];
+	}
+
+	/**
+	 * Called when a probe of the given size was acknowledged. Returns true if that confirmed the current candidate,
+	 * in which case the search moves on to the next one.
+	 */
+	public synchronized boolean onProbeAcked(int size) {
+		if (candidateIndex >= PROBE_SIZES.length || size != PROBE_SIZES[candidateIndex]) {
+			return false;
+		}
+		packetSize = size;
+		candidateIndex++;
+		numProbes = 0;
+		return true;
+	}
+
+	/**
+	 * Called when packets larger than MAX_PACKET_SIZE keep getting lost after the search, which means the path
+	 * changed. Falls back to MAX_PACKET_SIZE for the rest of the connection. Returns false if the packet size already
+	 * was MAX_PACKET_SIZE.
+	 */
+	public synchronized boolean onBlackHole() {
+		if (packetSize == PacketUtils.MAX_PACKET_SIZE) {
+			return false;
+		}
+		packetSize = PacketUtils.MAX_PACKET_SIZE;
+		candidateIndex = PROBE_SIZES.length;
+		return true;
+	}
+
+	public synchronized boolean isSearching() {
+		return candidateIndex < PROBE_SIZES.length && PROBE_SIZES[candidateIndex] <= maxPacketSize && numProbes < MAX_PROBES;
+	}
+}
@@ -0,0 +1,12 @@
+package network;
+
+/**
+ * The priority class of a reliable message, which decides which queued message is sent next when the window is full.
+ * Urgent messages are always sent first. Normal messages are sent before bulk messages, but bulk messages get a share
+ * of the packets while both are waiting so that they are never starved.
+ */
+public enum Priority {
+	URGENT,
+	NORMAL,
+	BULK
+}
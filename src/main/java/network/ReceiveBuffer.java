@@ -1,15 +1,39 @@
 package network;
 
+import java.util.List;
+
 public class ReceiveBuffer {
 	private byte[][] buffer;
 	private boolean[] occupied;
 	private int capacity;
+	private final int maxCapacity;
+	private final int sequenceMask;
 	private int size = 0;
 	private int tailIndex = 0;
 	private int smallestSequenceNumber;
 
 	public ReceiveBuffer(int capacity, int startSequenceNumber) {
+		this(capacity, capacity, startSequenceNumber);
+	}
+
+	/**
+	 * Creates a buffer that starts out holding the given capacity and doubles in size as needed, up to the maximum.
+	 * The whole maximum capacity is accepted as the receive window from the start.
+	 */
+	public ReceiveBuffer(int capacity, int maxCapacity, int startSequenceNumber) {
+		this(capacity, maxCapacity, startSequenceNumber, false);
+	}
+
+	/**
+	 * Creates a growable buffer for either 16-bit or 32-bit sequence numbers.
+	 */
+	public ReceiveBuffer(int capacity, int maxCapacity, int startSequenceNumber, boolean wideSequenceNumbers) {
+		if (capacity <= 0 || maxCapacity < capacity) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity + " for maximum capacity " + maxCapacity);
+		}
 		this.capacity = capacity;
+		this.maxCapacity = maxCapacity;
+		this.sequenceMask = wideSequenceNumbers ? PacketUtils.WIDE_SEQUENCE_MASK : PacketUtils.SEQUENCE_MASK;
 		this.buffer = new byte[capacity][];
 		this.occupied = new boolean[capacity];
 		this.smallestSequenceNumber = startSequenceNumber;
@@ -24,16 +48,29 @@ public class ReceiveBuffer {
 	}
 
 	public synchronized boolean isFull() {
-		return size >= capacity;
+		return size >= maxCapacity;
 	}
 
-	public synchronized void add(byte[] data) {
-		int sequenceNumber = PacketUtils.getSeqNum(data);
+	public int getMaxCapacity() {
+		return maxCapacity;
+	}
+
+	public void add(byte[] data) {
+		add(PacketUtils.getSeqNum(data), data);
+	}
+
+	/**
+	 * Adds data under the given sequence number rather than the one in its header.
+	 */
+	public synchronized void add(int sequenceNumber, byte[] data) {
 		int offset = getOffset(sequenceNumber);
-		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber)) {
+		if (offset >= maxCapacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask)) {
 			throw new IllegalArgumentException(
 				"Provided sequence number " + sequenceNumber + " is out of range for current " +
-					smallestSequenceNumber + " and capacity " + capacity);
+					smallestSequenceNumber + " and capacity " + maxCapacity);
+		}
+		if (offset >= capacity) {
+			grow(offset + 1);
 		}
 		int insertIndex = (tailIndex + offset) % capacity;
 		if (occupied[insertIndex]) {
@@ -54,23 +91,63 @@ public class ReceiveBuffer {
 			ret[index] = buffer[tailIndex];
 			occupied[tailIndex] = false;
 		}
-		smallestSequenceNumber = (smallestSequenceNumber + flushSize) & 0xFFFF;
+		smallestSequenceNumber = (smallestSequenceNumber + flushSize) & sequenceMask;
 		size -= flushSize;
 		return ret;
 	}
 
-	public boolean isOccupied(int sequenceNumber) {
+	/**
+	 * Appends the data that is in order to the given list instead of allocating an array for it, and returns how
+	 * much was flushed.
+	 */
+	public synchronized int flush(List<byte[]> out) {
+		int flushSize = 0;
+		for (; occupied[tailIndex] && flushSize < size; tailIndex = (tailIndex + 1) % capacity, flushSize++) {
+			out.add(buffer[tailIndex]);
+			buffer[tailIndex] = null;
+			occupied[tailIndex] = false;
+		}
+		smallestSequenceNumber = (smallestSequenceNumber + flushSize) & sequenceMask;
+		size -= flushSize;
+		return flushSize;
+	}
+
+	public synchronized boolean isOccupied(int sequenceNumber) {
 		int offset = getOffset(sequenceNumber);
-		if (offset >= capacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber)) {
+		if (offset >= maxCapacity || PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask)) {
 			return true;
 		}
+		if (offset >= capacity) {
+			return false;
+		}
 		int index = (tailIndex + offset) % capacity;
 		return occupied[index];
 	}
 
 	public boolean inRange(int sequenceNumber) {
 		int offset = getOffset(sequenceNumber);
-		return offset < capacity && !PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber);
+		return offset < maxCapacity && !PacketUtils.sequenceGreaterThan(smallestSequenceNumber, sequenceNumber, sequenceMask);
+	}
+
+	/**
+	 * Returns the selective acknowledgment bitmap for the buffered data, where bit i is set if the sequence number
+	 * expected + 1 + i is occupied.
+	 */
+	public synchronized int getAckBitmap() {
+		int bitmap = 0;
+		for (int i = 0; i < 32 && i + 1 < capacity; i++) {
+			if (occupied[(tailIndex + 1 + i) % capacity]) {
+				bitmap |= 1 << i;
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Returns the cumulative ack, i.e. the latest sequence number up to which all data has been received.
+	 */
+	public synchronized int getCumulativeAck() {
+		return (smallestSequenceNumber - 1) & sequenceMask;
 	}
 
 	public int getExpectedSequenceNumber() {
@@ -78,10 +155,28 @@ public class ReceiveBuffer {
 	}
 
 	public int getMaxExpectedSequenceNumber() {
-		return (this.smallestSequenceNumber + capacity - 1) & 0xFFFF;
+		return (this.smallestSequenceNumber + maxCapacity - 1) & sequenceMask;
+	}
+
+	private void grow(int minCapacity) {
+		int newCapacity = capacity;
+		while (newCapacity < minCapacity) {
+			newCapacity *= 2;
+		}
+		newCapacity = Math.min(newCapacity, maxCapacity);
+		byte[][] newBuffer = new byte[newCapacity][];
+		boolean[] newOccupied = new boolean[newCapacity];
+		System.arraycopy(buffer, tailIndex, newBuffer, 0, capacity - tailIndex);
+		System.arraycopy(buffer, 0, newBuffer, capacity - tailIndex, tailIndex);
+		System.arraycopy(occupied, tailIndex, newOccupied, 0, capacity - tailIndex);
+		System.arraycopy(occupied, 0, newOccupied, capacity - tailIndex, tailIndex);
+		buffer = newBuffer;
+		occupied = newOccupied;
+		tailIndex = 0;
+		capacity = newCapacity;
 	}
 
 	private int getOffset(int seqNum) {
-		return (seqNum - smallestSequenceNumber) & 0xFFFF;
+		return (seqNum - smallestSequenceNumber) & sequenceMask;
 	}
 }
@@ -0,0 +1,109 @@
+package network;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The messages received in the current batch of packets that have not been handed to the handler yet. Each message
+ * is kept as a slice of the packet it arrived in, so nothing is copied or allocated until the batch is delivered.
+ * Messages are then either copied into arrays of their own and passed to onReceiveBatch, or, with pooled receive,
+ * copied one at a time into a buffer that is reused for every message and passed to onReceive as a read-only view.
+ * Only accessed from the event loop.
+ */
+class ReceivedMessages {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private byte[][] arrays = new byte[INITIAL_CAPACITY][];
+	private int[] offsets = new int[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private int size = 0;
+	private final List<byte[]> batch = new ArrayList<>();
+	private final List<byte[]> batchView = Collections.unmodifiableList(batch);
+	//null unless receive is pooled, large enough for a message of any packet
+	private ByteBuffer pooledBuffer;
+	private ByteBuffer pooledView;
+
+	void setPooled(boolean pooled) {
+		if (pooled) {
+			pooledBuffer = ByteBuffer.allocate(PacketUtils.MAX_PROBE_PACKET_SIZE);
+			pooledView = pooledBuffer.asReadOnlyBuffer();
+		}
+		else {
+			pooledBuffer = null;
+			pooledView = null;
+		}
+	}
+
+	/**
+	 * Adds a message that takes up the whole array, which is not modified afterwards.
+	 */
+	void add(byte[] message) {
+		add(message, 0, message.length);
+	}
+
+	/**
+	 * Adds the message at the given slice of the array, which is not modified afterwards.
+	 */
+	void add(byte[] array, int offset, int length) {
+		if (size == arrays.length) {
+			arrays = Arrays.copyOf(arrays, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2);
+			lengths = Arrays.copyOf(lengths, size * 2);
+		}
+		arrays[size] = array;
+		offsets[size] = offset;
+		lengths[size] = length;
+		size++;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Hands every message to the handler in the order they were added, and empties the batch.
+	 */
+	void deliver(Handler handler, SocketAddress address) {
+		try {
+			if (pooledBuffer == null) {
+				for (int i = 0; i < size; i++) {
+					batch.add(isWholeArray(i) ? arrays[i] : Arrays.copyOfRange(arrays[i], offsets[i], offsets[i] + lengths[i]));
+				}
+				handler.onReceiveBatch(address, batchView);
+			}
+			else {
+				for (int i = 0; i < size; i++) {
+					handler.onReceive(address, view(i));
+				}
+			}
+		} finally {
+			batch.clear();
+			Arrays.fill(arrays, 0, size, null);
+			size = 0;
+		}
+	}
+
+	/**
+	 * Returns a read-only view of the message. Messages of a packet are copied into the pooled buffer, while a
+	 * message reassembled from several packets already has an array of its own and is wrapped instead.
+	 */
+	private ByteBuffer view(int i) {
+		if (isWholeArray(i) || lengths[i] > pooledBuffer.capacity()) {
+			return ByteBuffer.wrap(arrays[i], offsets[i], lengths[i]).slice().asReadOnlyBuffer();
+		}
+		pooledBuffer.clear();
+		pooledBuffer.put(arrays[i], offsets[i], lengths[i]);
+		pooledView.clear();
+		pooledView.limit(lengths[i]);
+		return pooledView;
+	}
+
+	//packets always start with their header, so only messages that were reassembled take up a whole array
+	private boolean isWholeArray(int i) {
+		return offsets[i] == 0 && lengths[i] == arrays[i].length;
+	}
+}
@@ -0,0 +1,68 @@
+package network;
+
+/**
+ * Estimates the round trip time of a connection and derives its retransmission timeout, following RFC 6298.
+ * Samples should only be taken from packets that were never retransmitted, since the acknowledgment of a
+ * retransmitted packet is ambiguous.
+ */
+public class RttEstimator {
+	static final long MIN_RTO_MS = 20;
+	static final long MAX_RTO_MS = 8000;
+	private static final long CLOCK_GRANULARITY_NANOS = 1_000_000;
+
+	private final long initialRtoMs;
+	private long smoothedRttNanos = -1;
+	private long rttVarianceNanos = 0;
+	private long rtoMs;
+
+	public RttEstimator(long initialRtoMs) {
+		this.initialRtoMs = initialRtoMs;
+		this.rtoMs = initialRtoMs;
+	}
+
+	public synchronized void addSample(long rttNanos) {
+		if (rttNanos < 0) {
+			return;
+		}
+		if (smoothedRttNanos < 0) {
+			smoothedRttNanos = rttNanos;
+			rttVarianceNanos = rttNanos / 2;
+		}
+		else {
+			rttVarianceNanos = (3 * rttVarianceNanos + Math.abs(smoothedRttNanos - rttNanos)) / 4;
+			smoothedRttNanos = (7 * smoothedRttNanos + rttNanos) / 8;
+		}
+		long rtoNanos = smoothedRttNanos + Math.max(CLOCK_GRANULARITY_NANOS, 4 * rttVarianceNanos);
+		rtoMs = clamp((rtoNanos + 999_999) / 1_000_000);
+	}
+
+	/**
+	 * Doubles the retransmission timeout after a timeout, up to the maximum.
+	 */
+	public synchronized void backOff() {
+		rtoMs = clamp(rtoMs * 2);
+	}
+
+	public synchronized long getRetransmissionTimeoutMs() {
+		return rtoMs;
+	}
+
+	/**
+	 * Returns the smoothed round trip time in nanoseconds, or -1 if no sample has been taken yet.
+	 */
+	public synchronized long getSmoothedRttNanos() {
+		return smoothedRttNanos;
+	}
+
+	public synchronized long getRttVarianceNanos() {
+		return rttVarianceNanos;
+	}
+
+	public synchronized boolean hasSample() {
+		return smoothedRttNanos >= 0;
+	}
+
+	private long clamp(long timeoutMs) {
+		return Math.min(MAX_RTO_MS, Math.max(hasSample() ? MIN_RTO_MS : initialRtoMs, timeoutMs));
+	}
+}
@@ -0,0 +1,214 @@
+package network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The reliable messages of a connection waiting to be sent, in one queue per priority class. Urgent messages are
+ * served with strict priority, and normal and bulk messages are weighted so that bulk messages get one packet out of
+ * every BULK_WEIGHT + 1 while both are waiting.
+ * Within a class, fragmented messages that have started sending take turns, one fragment at a time, with the messages
+ * queued after them, so that small messages do not wait for a large one to be sent in full.
+ * The bytes waiting to be sent are limited, and the queue stops being writable once half the limit is used, until it
+ * drains to a quarter of it, so that producers can slow down before their messages get rejected.
+ */
+class SendQueue {
+	//fragmented messages of a class sent at the same time, further ones wait until one of them is done
+	static final int MAX_ACTIVE_MESSAGES = 16;
+	//normal packets sent for every bulk packet while both are waiting
+	static final int BULK_WEIGHT = 4;
+	static final int DEFAULT_LIMIT_BYTES = 16 * 1024 * 1024;
+
+	private final PriorityClass[] classes = new PriorityClass[Priority.values().length];
+	private int numNormalSinceBulk = 0;
+	//the class of the message last returned by peek()
+	private PriorityClass peeked;
+	private int limitBytes = DEFAULT_LIMIT_BYTES;
+	private long queuedBytes = 0;
+	private boolean isWritable = true;
+	private boolean isClosed = false;
+
+	SendQueue() {
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new PriorityClass();
+		}
+	}
+
+	synchronized void setLimit(int limitBytes) {
+		if (limitBytes < 1) {
+			throw new IllegalArgumentException("Send queue limit must be positive, got " + limitBytes);
+		}
+		this.limitBytes = limitBytes;
+	}
+
+	/**
+	 * Queues the message regardless of the limit. Does nothing once the queue is closed.
+	 */
+	synchronized void add(OutgoingMessage message, Priority priority) {
+		if (isClosed) {
+			return;
+		}
+		classes[priority.ordinal()].queued.add(message);
+		queuedBytes += message.getRemainingBytes();
+	}
+
+	/**
+	 * Queues the message unless the bytes waiting would exceed the limit or the queue is closed, and returns whether
+	 * it was queued. A message larger than the limit is accepted if nothing else is waiting.
+	 */
+	synchronized boolean offer(OutgoingMessage message, Priority priority) {
+		if (isClosed || (queuedBytes > 0 && queuedBytes + message.getRemainingBytes() > limitBytes)) {
+			return false;
+		}
+		add(message, priority);
+		return true;
+	}
+
+	/**
+	 * Queues every message one after the other unless the bytes waiting would exceed the limit or the queue is
+	 * closed, in which case none of them is queued. Returns whether they were queued.
+	 */
+	synchronized boolean offerAll(List<OutgoingMessage> messages, Priority priority) {
+		long numBytes = 0;
+		for (int i = 0; i < messages.size(); i++) {
+			numBytes += messages.get(i).getRemainingBytes();
+		}
+		if (isClosed || (queuedBytes > 0 && queuedBytes + numBytes > limitBytes)) {
+			return false;
+		}
+		for (int i = 0; i < messages.size(); i++) {
+			add(messages.get(i), priority);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the message to send the next packet of, or null if there is none.
+	 */
+	synchronized OutgoingMessage peek() {
+		OutgoingMessage urgent = peek(Priority.URGENT);
+		if (urgent != null) {
+			return urgent;
+		}
+		OutgoingMessage normal = peek(Priority.NORMAL);
+		OutgoingMessage bulk = numNormalSinceBulk >= BULK_WEIGHT || normal == null ? peek(Priority.BULK) : null;
+		if (bulk != null) {
+			return bulk;
+		}
+		return normal;
+	}
+
+	private OutgoingMessage peek(Priority priority) {
+		PriorityClass priorityClass = classes[priority.ordinal()];
+		OutgoingMessage queued = priorityClass.queued.peek();
+		//the FIN must not overtake any message sent before it
+		if (queued != null && ((queued.isFIN() && isPendingBesides(priorityClass)) ||
+			(queued.isFragmented() && priorityClass.active.size() >= MAX_ACTIVE_MESSAGES))) {
+			queued = null;
+		}
+		OutgoingMessage next = queued;
+		if (!priorityClass.active.isEmpty() && (queued == null || priorityClass.isActiveTurn)) {
+			next = priorityClass.active.peekFirst();
+		}
+		if (next != null) {
+			peeked = priorityClass;
+		}
+		return next;
+	}
+
+	/**
+	 * Returns whether any message is waiting other than the ones queued in the given class.
+	 */
+	private boolean isPendingBesides(PriorityClass priorityClass) {
+		for (int i = 0; i < classes.length; i++) {
+			if (!classes[i].active.isEmpty() || (classes[i] != priorityClass && !classes[i].queued.isEmpty())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Called once a packet holding the given number of bytes of the message last returned by peek() was taken, which
+	 * moves on to the message whose turn is next.
+	 */
+	synchronized void onPacketTaken(OutgoingMessage message, int numBytes) {
+		if (isClosed) {
+			return;
+		}
+		queuedBytes -= numBytes;
+		PriorityClass priorityClass = peeked;
+		if (message == priorityClass.active.peekFirst()) {
+			priorityClass.active.pollFirst();
+			priorityClass.isActiveTurn = false;
+		}
+		else {
+			priorityClass.queued.poll();
+			priorityClass.isActiveTurn = !priorityClass.active.isEmpty() || !message.isDone();
+		}
+		if (!message.isDone()) {
+			priorityClass.active.addLast(message);
+		}
+		if (priorityClass == classes[Priority.NORMAL.ordinal()]) {
+			numNormalSinceBulk = Math.min(numNormalSinceBulk + 1, BULK_WEIGHT);
+		}
+		else if (priorityClass == classes[Priority.BULK.ordinal()]) {
+			numNormalSinceBulk = 0;
+		}
+	}
+
+	/**
+	 * Updates whether more messages should be queued from the bytes waiting, and returns whether that changed.
+	 */
+	synchronized boolean updateWritability() {
+		boolean wasWritable = isWritable;
+		isWritable = isWritable ? queuedBytes < limitBytes / 2 : queuedBytes <= limitBytes / 4;
+		return isWritable != wasWritable;
+	}
+
+	synchronized boolean isWritable() {
+		return isWritable;
+	}
+
+	/**
+	 * Drops every waiting message and completes their completions exceptionally with the given cause. Messages are
+	 * no longer accepted afterwards.
+	 */
+	void close(Throwable cause) {
+		List<OutgoingMessage> dropped = new ArrayList<>();
+		synchronized (this) {
+			isClosed = true;
+			for (int i = 0; i < classes.length; i++) {
+				dropped.addAll(classes[i].active);
+				dropped.addAll(classes[i].queued);
+				classes[i].active.clear();
+				classes[i].queued.clear();
+			}
+			queuedBytes = 0;
+		}
+		for (OutgoingMessage message : dropped) {
+			message.getCompletion().completeExceptionally(cause);
+		}
+	}
+
+	synchronized boolean isClosed() {
+		return isClosed;
+	}
+
+	synchronized boolean isEmpty() {
+		for (int i = 0; i < classes.length; i++) {
+			if (!classes[i].queued.isEmpty() || !classes[i].active.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static class PriorityClass {
+		final Deque<OutgoingMessage> queued = new ArrayDeque<>();
+		final Deque<OutgoingMessage> active = new ArrayDeque<>();
+		boolean isActiveTurn = false;
+	}
+}
@@ -3,23 +3,35 @@ package network;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 public class Server implements ConnectionNotifier, Closeable {
 	int port;
 	boolean isOpen = false;
 	final Object isOpenLock = new Object();
 
-	DatagramSocket connectionSocket;
-	Map<SocketAddress, ConnectionEndpoint> connections = new ConcurrentHashMap<>();
-	Map<SocketAddress, PendingConnection> pendingConnections = new ConcurrentHashMap<>();
+	int numShards = 1;
+	Shard[] shards = new Shard[0];
+	EventLoop eventLoop;
+	Supplier<CongestionControl> congestionControlFactory = NewRenoCongestionControl::new;
+	int receiveWindow = Integer.MAX_VALUE;
+	boolean pacing = false;
+	long pacingRate = 0;
+	boolean pathMtuDiscovery = true;
+	int sendQueueLimit = SendQueue.DEFAULT_LIMIT_BYTES;
+	long coalescingDelayMicros = 0;
+	boolean pooledReceive = false;
+	int maxMessageSize = ConnectionEndpoint.DEFAULT_MAX_MESSAGE_SIZE;
 	int numConnections = 0;
 	final Object numConnectionsLock = new Object();
 	ServerHandler handler;
 
-	Timer pendingConnectionTimer = new Timer();
-
 	public Server(int port) {
 		this.port = port;
 	}
@@ -35,168 +47,297 @@ public class Server implements ConnectionNotifier, Closeable {
 		this.handler.setServer(this);
 	}
 
-	public void start() throws IOException {
-		if (this.handler == null) {
-			throw new IllegalStateException("No handler set.");
+	/**
+	 * Sets the event loop the server sockets are registered on. If no event loop is set, the server creates one per
+	 * shard when started and closes them when the server is closed.
+	 */
+	public void setEventLoop(EventLoop eventLoop) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change event loop while server is open.");
+			}
 		}
-		this.connectionSocket = new DatagramSocket(port);
-		isOpen = true;
-		Thread recvThread = new Thread(this::listen);
-		recvThread.setDaemon(true);
-		recvThread.start();
-	}
-
-	private void listen() {
-		byte[] buffer = new byte[PacketUtils.MAX_PACKET_SIZE];
-		DatagramPacket recvPacket = new DatagramPacket(buffer, PacketUtils.MAX_PACKET_SIZE);
-		while (true) {
-			synchronized (isOpenLock) {
-				if (!isOpen) {
-					break;
-				}
+		this.eventLoop = eventLoop;
+	}
+
+	/**
+	 * Sets the number of sockets bound to the server port. With more than one shard, every socket is bound with
+	 * SO_REUSEPORT so the kernel spreads remote endpoints across them, and each socket owns the connections it
+	 * receives. Handler callbacks for connections on different shards may then run concurrently.
+	 */
+	public void setNumShards(int numShards) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change number of shards while server is open.");
 			}
-			try {
-				this.connectionSocket.receive(recvPacket);
-			} catch (SocketException e) {
-				//handle close() being called on the socket while it's receiving, which is expected behaviour
-				close();
-				break;
-			} catch (IOException e) {
-				e.printStackTrace();
-				close();
-				break;
+		}
+		if (numShards < 1) {
+			throw new IllegalArgumentException("Number of shards must be positive, got " + numShards);
+		}
+		this.numShards = numShards;
+	}
+
+	/**
+	 * Sets the congestion control algorithm used by each connection. The factory is called once per connection, and
+	 * defaults to NewRenoCongestionControl.
+	 */
+	public void setCongestionControl(Supplier<CongestionControl> congestionControlFactory) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change congestion control while server is open.");
 			}
-			SocketAddress recvAddress = recvPacket.getSocketAddress();
-			byte[] data = new byte[recvPacket.getLength()];
-			System.arraycopy(recvPacket.getData(), recvPacket.getOffset(), data, 0, data.length);
-			if (!PacketUtils.isValidPacket(data) ||
-				PacketUtils.isSYNACK(data)) {
-				continue;
+		}
+		this.congestionControlFactory = congestionControlFactory;
+	}
+
+	/**
+	 * Sets the most packets each connection buffers while waiting for missing ones, which is advertised to the client as the
+	 * most packets it may have in flight. The buffer grows as needed up to this limit. Each acknowledgment advertises
+	 * what is left of it past the packets held there, so a gap shrinks the window until it is filled. Messages leave
+	 * the buffer once they are in order, so a slow handler holds back the sender by not reading rather than through
+	 * the window. Defaults to the most packets that can be in flight for the sequence number size.
+	 */
+	public void setReceiveWindow(int receiveWindow) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change receive window while server is open.");
 			}
+		}
+		if (receiveWindow < 1) {
+			throw new IllegalArgumentException("Receive window must be positive, got " + receiveWindow);
+		}
+		this.receiveWindow = receiveWindow;
+	}
 
-			byte flags = PacketUtils.getFlags(data);
-			if ((flags & (PacketUtils.SYN_MASK | PacketUtils.ACK_MASK)) == PacketUtils.SYN_MASK) {
-				establishNewConnection(recvAddress, data);
+	/**
+	 * Sets whether each connection paces the reliable packets it sends, spreading them over the round trip instead of
+	 * sending as many as the window allows at once. Bursts are what overflow the queues of switches and network
+	 * cards, so pacing trades a little latency for fewer losses. Defaults to false.
+	 */
+	public void setPacing(boolean pacing) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change pacing while server is open.");
 			}
-			else {
-				if ((flags & (PacketUtils.SYN_MASK | PacketUtils.ACK_MASK)) == PacketUtils.ACK_MASK && pendingConnections.containsKey(recvAddress)) {
-					respondToAck(recvAddress, data);
-				}
-				else {
-					ConnectionEndpoint endpoint;
-					if (connections.containsKey(recvAddress)) {
-						endpoint = connections.get(recvAddress);
-						endpoint.handlePacket(data);
-					}
-					else if (pendingConnections.containsKey(recvAddress)) {
-						endpoint = pendingConnections.get(recvAddress).endpoint;
-						endpoint.handlePacket(data);
-					}
-				}
+		}
+		this.pacing = pacing;
+	}
+
+	/**
+	 * Sets the rate in bytes per second each connection is paced at if pacing is enabled. Defaults to 0, which paces
+	 * at a rate derived from the congestion window and the round trip time.
+	 */
+	public void setPacingRate(long rateBytesPerSecond) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change pacing rate while server is open.");
 			}
 		}
+		if (rateBytesPerSecond < 0) {
+			throw new IllegalArgumentException("Pacing rate must not be negative, got " + rateBytesPerSecond);
+		}
+		this.pacingRate = rateBytesPerSecond;
 	}
 
-	private void establishNewConnection(SocketAddress recvAddress, byte[] data) {
-		if (connections.containsKey(recvAddress) || pendingConnections.containsKey(recvAddress)) {
-			return;
+	/**
+	 * Sets whether each connection searches for the largest packet size the path to the client carries, by sending a few
+	 * padded probe packets after connecting. Large messages are then split into fewer, larger chunks. Packets are
+	 * kept at PacketUtils.MAX_PACKET_SIZE otherwise. Probes are never larger than the MTU of the local interface, since
+	 * the JDK cannot keep them from being fragmented. Defaults to true.
+	 */
+	public void setPathMtuDiscovery(boolean pathMtuDiscovery) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change path MTU discovery while server is open.");
+			}
 		}
-		byte versionID = data[0];
-		if (versionID != PacketUtils.VERSION_ID) {
-			return;
+		this.pathMtuDiscovery = pathMtuDiscovery;
+	}
+
+	/**
+	 * Sets the most bytes of reliable messages that may wait to be sent on each connection. Reliable sends to a client
+	 * whose queue is full fail with a RejectedExecutionException, and the handler is told through
+	 * onWritabilityChanged once the queue is half full and once it has drained again. Defaults to 16 MB.
+	 */
+	public void setSendQueueLimit(int limitBytes) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change send queue limit while server is open.");
+			}
+		}
+		if (limitBytes < 1) {
+			throw new IllegalArgumentException("Send queue limit must be positive, got " + limitBytes);
 		}
-		int remoteSeqNum = PacketUtils.getSeqNum(data);
-		int thisSeqNum = 420;
-		byte[] packetData = PacketUtils.constructSYNACKPacket(thisSeqNum, remoteSeqNum);
-		PendingConnection newConnection = new PendingConnection(recvAddress, thisSeqNum, remoteSeqNum + 1);
-		newConnection.endpoint.sendReliablePayload(packetData);
-		pendingConnections.put(recvAddress, newConnection);
+		this.sendQueueLimit = limitBytes;
+	}
 
-		synchronized (pendingConnectionTimer) {
-			pendingConnectionTimer.schedule(synackTimer(recvAddress, packetData), ConnectionEndpoint.RESEND_DELAY_MS);
+	/**
+	 * Sets how long in microseconds small messages may wait to be coalesced with later ones into one packet, which
+	 * saves a packet, its header and its acknowledgment for every message that joins another. Messages are sent once
+	 * their packet is full, the delay has passed or flush is called. The delay is rounded up to the resolution of
+	 * the event loop timer, and shorter delays send the messages once the event loop is done with its current work.
+	 * Defaults to 0, which sends every message in a packet of its own.
+	 */
+	public void setCoalescingDelay(long delayMicros) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change coalescing delay while server is open.");
+			}
+		}
+		if (delayMicros < 0) {
+			throw new IllegalArgumentException("Coalescing delay must not be negative, got " + delayMicros);
 		}
+		this.coalescingDelayMicros = delayMicros;
 	}
 
-	private TimerTask synackTimer(SocketAddress recvAddress, byte[] synAckResponse) {
-		return new TimerTask() {
-			@Override
-			public void run() {
-				PendingConnection connection = pendingConnections.get(recvAddress);
-				if (connection == null) {
-					return;
-				}
-				if (connection.timeoutCount >= ConnectionEndpoint.RESEND_COUNT) {
-					pendingConnections.remove(recvAddress);
-					connection.endpoint.close();
-					return;
+	/**
+	 * Sets whether received messages are handed to the handler's onReceive(SocketAddress, ByteBuffer) as read-only
+	 * views of a buffer that is reused for every message, instead of being copied into an array of their own each.
+	 * Handlers that parse messages in place then receive without allocating. Defaults to false.
+	 */
+	public void setPooledReceive(boolean pooledReceive) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change pooled receive while server is open.");
+			}
+		}
+		this.pooledReceive = pooledReceive;
+	}
+
+	/**
+	 * Sets the size in bytes of the largest message the clients may send. Room for a message sent in fragments is
+	 * allocated when its first fragment arrives, so the connection is closed if the client announces a larger one.
+	 * Defaults to 64 MiB.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		synchronized (isOpenLock) {
+			if (isOpen) {
+				throw new IllegalStateException("Tried to change maximum message size while server is open.");
+			}
+		}
+		if (maxMessageSize < 1) {
+			throw new IllegalArgumentException("Maximum message size must be positive, got " + maxMessageSize);
+		}
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	public void start() throws IOException {
+		if (this.handler == null) {
+			throw new IllegalStateException("No handler set.");
+		}
+		Shard[] newShards = new Shard[numShards];
+		try {
+			for (int i = 0; i < numShards; i++) {
+				newShards[i] = new Shard();
+			}
+		} catch (IOException e) {
+			for (Shard shard : newShards) {
+				if (shard != null) {
+					shard.close();
 				}
-				connection.timeoutCount++;
-				DatagramPacket response = new DatagramPacket(synAckResponse, synAckResponse.length, recvAddress);
+			}
+			throw e;
+		}
+		this.shards = newShards;
+		isOpen = true;
+		for (Shard shard : shards) {
+			shard.eventLoop.register(shard.channel, shard);
+		}
+	}
+
+	ConnectionEndpoint findEndpoint(SocketAddress address) {
+		for (Shard shard : shards) {
+			ConnectionEndpoint endpoint = shard.connections.get(address);
+			if (endpoint != null) {
+				return endpoint;
+			}
+		}
+		return null;
+	}
+
+	public void sendAllRaw(byte[] data) {
+		//without coalescing, every client is sent the same packet
+		byte[] header = coalescingDelayMicros == 0 ? PacketUtils.constructUnreliablePacket(data) : null;
+		for (Shard shard : shards) {
+			for (ConnectionEndpoint endpoint : shard.connections.values()) {
 				try {
-					sendRaw(response);
+					if (header != null) {
+						endpoint.sendRaw(header);
+					}
+					else {
+						endpoint.sendUnreliable(data);
+					}
+				} catch (SocketException | ClosedChannelException e) {
+					endpoint.close();
 				} catch (IOException e) {
 					e.printStackTrace();
-					connection.endpoint.close();
-					return;
-				}
-				synchronized (pendingConnectionTimer) {
-					pendingConnectionTimer.schedule(synackTimer(recvAddress, synAckResponse), ConnectionEndpoint.RESEND_DELAY_MS);
+					endpoint.close();
 				}
 			}
-		};
+		}
 	}
 
-	private void respondToAck(SocketAddress recvAddress, byte[] data) {
-		if (connections.containsKey(recvAddress)) {
-			return;
-		}
-		ConnectionEndpoint pendingEndpoint = pendingConnections.get(recvAddress).endpoint;
-		if (pendingEndpoint == null) {
-			return;
-		}
-		int seqNum = PacketUtils.getSeqNum(data);
-		int ackNum = PacketUtils.getAckNum(data);
-		if (ackNum == pendingEndpoint.getExpectedSequenceNumber() && seqNum == pendingEndpoint.getRemoteSequenceNumber()) {
-			pendingEndpoint.handlePacket(data);
-			pendingEndpoint.setNotifier(this);
-			connections.put(recvAddress, pendingEndpoint);
-			pendingConnections.remove(recvAddress);
-			synchronized (numConnectionsLock) {
-				numConnections++;
+	/**
+	 * Sends the data unreliably to every client as the next message of the sequenced stream of the given channel.
+	 */
+	public void sendAllRawSequenced(int channel, byte[] data) {
+		for (Shard shard : shards) {
+			for (ConnectionEndpoint endpoint : shard.connections.values()) {
+				try {
+					endpoint.sendRawSequenced(channel, data);
+				} catch (SocketException | ClosedChannelException e) {
+					endpoint.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					endpoint.close();
+				}
 			}
-			pendingEndpoint.startHeartbeat();
-			handler.onConnect(recvAddress);
 		}
 	}
 
-	public void sendAllRaw(byte[] data) {
-		byte[] header = PacketUtils.constructUnreliablePacket(data);
-		for (ConnectionEndpoint endpoint : connections.values()) {
-			DatagramPacket packet = new DatagramPacket(header, header.length, endpoint.getAddress());
-			try {
-				endpoint.sendRaw(packet);
-			} catch (SocketException e) {
-				endpoint.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-				endpoint.close();
+	public void sendAllReliable(byte[] data) {
+		sendAllReliable(0, data);
+	}
+
+	/**
+	 * Sends the data to every client on the given channel. Each channel is ordered separately, so a packet lost on
+	 * one channel does not hold back the messages of other channels.
+	 */
+	public void sendAllReliable(int channel, byte[] data) {
+		sendAllReliable(channel, data, Priority.NORMAL);
+	}
+
+	/**
+	 * Sends the data to every client on the given channel, ahead of queued messages of lower priority classes.
+	 */
+	public void sendAllReliable(int channel, byte[] data, Priority priority) {
+		for (Shard shard : shards) {
+			for (ConnectionEndpoint endpoint : shard.connections.values()) {
+				endpoint.sendReliable(channel, data, priority);
 			}
 		}
 	}
 
-	public void sendAllReliable(byte[] data) {
-		for (ConnectionEndpoint endpoint : connections.values()) {
-			endpoint.sendReliable(data);
+	/**
+	 * Sends the data reliably to every client, to be delivered as soon as it arrives rather than in order.
+	 */
+	public void sendAllReliableUnordered(byte[] data) {
+		sendAllReliableUnordered(data, Priority.NORMAL);
+	}
+
+	public void sendAllReliableUnordered(byte[] data, Priority priority) {
+		for (Shard shard : shards) {
+			for (ConnectionEndpoint endpoint : shard.connections.values()) {
+				endpoint.sendReliableUnordered(data, priority);
+			}
 		}
 	}
 
 	public void sendRaw(SocketAddress address, byte[] data) {
-		byte[] header = PacketUtils.constructUnreliablePacket(data);
-		DatagramPacket packet = new DatagramPacket(header, header.length, address);
-		ConnectionEndpoint endpoint = connections.get(address);
+		ConnectionEndpoint endpoint = findEndpoint(address);
 		try {
-			endpoint.sendRaw(packet);
-		} catch (SocketException e) {
+			endpoint.sendUnreliable(data);
+		} catch (SocketException | ClosedChannelException e) {
 			endpoint.close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -204,26 +345,226 @@ public class Server implements ConnectionNotifier, Closeable {
 		}
 	}
 
-	private synchronized void sendRaw(DatagramPacket response) throws IOException {
-		synchronized (connectionSocket) {
-			connectionSocket.send(response);
+	/**
+	 * Sends the given length of the data starting at the offset unreliably to the given client. The server socket
+	 * is shared by every client, so the slice is copied into a packet once rather than written behind the header.
+	 */
+	public void sendRaw(SocketAddress address, byte[] data, int offset, int length) {
+		ConnectionEndpoint endpoint = findEndpoint(address);
+		if (endpoint == null) {
+			return;
+		}
+		try {
+			endpoint.sendUnreliable(data, offset, length);
+		} catch (SocketException | ClosedChannelException e) {
+			endpoint.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			endpoint.close();
 		}
 	}
 
-	public void sendReliable(SocketAddress dst, byte[] data) {
-		ConnectionEndpoint endpoint = connections.get(dst);
-		if (endpoint != null) {
-			endpoint.sendReliable(data);
+	/**
+	 * Sends the bytes remaining in the buffer unreliably to the given client, and moves its position up to its
+	 * limit.
+	 */
+	public void sendRaw(SocketAddress address, ByteBuffer data) {
+		ConnectionEndpoint endpoint = findEndpoint(address);
+		if (endpoint == null) {
+			return;
+		}
+		try {
+			endpoint.sendUnreliable(data);
+		} catch (SocketException | ClosedChannelException e) {
+			endpoint.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			endpoint.close();
+		}
+	}
+
+	/**
+	 * Sends the data unreliably to the given client as the next message of the sequenced stream of the given
+	 * channel. The client drops it if a newer message of the stream arrived before it.
+	 */
+	public void sendRawSequenced(SocketAddress address, int channel, byte[] data) {
+		ConnectionEndpoint endpoint = findEndpoint(address);
+		if (endpoint == null) {
+			return;
+		}
+		try {
+			endpoint.sendRawSequenced(channel, data);
+		} catch (SocketException | ClosedChannelException e) {
+			endpoint.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			endpoint.close();
+		}
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress dst, byte[] data) {
+		return sendReliable(dst, 0, data);
+	}
+
+	/**
+	 * Sends the data to the given client on the given channel, between 0 and PacketUtils.MAX_CHANNELS - 1.
+	 */
+	public CompletableFuture<Void> sendReliable(SocketAddress dst, int channel, byte[] data) {
+		return sendReliable(dst, channel, data, Priority.NORMAL);
+	}
+
+	/**
+	 * Sends the data to the given client on the given channel. While the window is full, queued messages are sent in
+	 * the order of their priority classes. Returns a future that completes once the client acknowledged the message,
+	 * or fails if the send queue of the client is full or the connection closes first.
+	 */
+	public CompletableFuture<Void> sendReliable(SocketAddress dst, int channel, byte[] data, Priority priority) {
+		ConnectionEndpoint endpoint = findEndpoint(dst);
+		if (endpoint == null) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("No connection to " + dst));
+		}
+		return endpoint.sendReliable(channel, data, priority);
+	}
+
+	/**
+	 * Sends the given length of the data starting at the offset to the given client, without copying the slice into
+	 * an array of its own first.
+	 */
+	public CompletableFuture<Void> sendReliable(SocketAddress dst, byte[] data, int offset, int length) {
+		ConnectionEndpoint endpoint = findEndpoint(dst);
+		if (endpoint == null) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("No connection to " + dst));
+		}
+		return endpoint.sendReliable(0, data, offset, length, Priority.NORMAL);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress dst, ByteBuffer data) {
+		return sendReliable(dst, 0, data, Priority.NORMAL);
+	}
+
+	/**
+	 * Sends the bytes remaining in the buffer to the given client on the given channel, and moves its position up to
+	 * its limit. The buffer may be reused once this returns.
+	 */
+	public CompletableFuture<Void> sendReliable(SocketAddress dst, int channel, ByteBuffer data, Priority priority) {
+		ConnectionEndpoint endpoint = findEndpoint(dst);
+		if (endpoint == null) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("No connection to " + dst));
+		}
+		return endpoint.sendReliable(channel, data, priority);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress dst, byte[][] messages) {
+		return sendReliable(dst, Arrays.asList(messages));
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress dst, List<byte[]> messages) {
+		return sendReliable(dst, 0, messages, Priority.NORMAL);
+	}
+
+	/**
+	 * Sends the messages to the given client on the given channel in the order they are given, queued at once so
+	 * that they are sent together with consecutive sequence numbers. This is cheaper than sending them one by one.
+	 * Returns a future that completes once the client acknowledged every message. If the send queue has no room for
+	 * all of them, none of them is sent.
+	 */
+	public CompletableFuture<Void> sendReliable(SocketAddress dst, int channel, List<byte[]> messages, Priority priority) {
+		ConnectionEndpoint endpoint = findEndpoint(dst);
+		if (endpoint == null) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("No connection to " + dst));
+		}
+		return endpoint.sendReliable(channel, messages, priority);
+	}
+
+	/**
+	 * Sends the data reliably to the given client, to be delivered as soon as it arrives rather than after every
+	 * message sent before it.
+	 */
+	public CompletableFuture<Void> sendReliableUnordered(SocketAddress dst, byte[] data) {
+		return sendReliableUnordered(dst, data, Priority.NORMAL);
+	}
+
+	public CompletableFuture<Void> sendReliableUnordered(SocketAddress dst, byte[] data, Priority priority) {
+		ConnectionEndpoint endpoint = findEndpoint(dst);
+		if (endpoint == null) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("No connection to " + dst));
+		}
+		return endpoint.sendReliableUnordered(data, priority);
+	}
+
+	/**
+	 * Sends the small messages waiting to be coalesced with later ones to the given client right away.
+	 */
+	public void flush(SocketAddress address) {
+		ConnectionEndpoint endpoint = findEndpoint(address);
+		if (endpoint == null) {
+			return;
+		}
+		flush(endpoint);
+	}
+
+	/**
+	 * Sends the small messages waiting to be coalesced with later ones to every client right away.
+	 */
+	public void flushAll() {
+		for (Shard shard : shards) {
+			for (ConnectionEndpoint endpoint : shard.connections.values()) {
+				flush(endpoint);
+			}
+		}
+	}
+
+	private void flush(ConnectionEndpoint endpoint) {
+		try {
+			endpoint.flush();
+		} catch (SocketException | ClosedChannelException e) {
+			endpoint.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			endpoint.close();
 		}
 	}
 
 	public void disconnect(SocketAddress dst) {
-		ConnectionEndpoint endpoint = connections.get(dst);
+		ConnectionEndpoint endpoint = findEndpoint(dst);
 		if (endpoint != null) {
 			endpoint.disconnect();
 		}
 	}
 
+	/**
+	 * Returns the smoothed round trip time to the given client in milliseconds, or -1 if it has not been measured yet.
+	 */
+	public double getRoundTripTime(SocketAddress address) {
+		ConnectionEndpoint endpoint = findEndpoint(address);
+		if (endpoint == null) {
+			throw new IllegalArgumentException("No connection to " + address);
+		}
+		return endpoint.getRoundTripTime();
+	}
+
+	/**
+	 * Returns the largest packet size known to reach the given client.
+	 */
+	public int getMaxPacketSize(SocketAddress address) {
+		ConnectionEndpoint endpoint = findEndpoint(address);
+		if (endpoint == null) {
+			throw new IllegalArgumentException("No connection to " + address);
+		}
+		return endpoint.getMaxPacketSize();
+	}
+
+	/**
+	 * Returns whether the send queue of the given client has room for more messages.
+	 */
+	public boolean isWritable(SocketAddress address) {
+		ConnectionEndpoint endpoint = findEndpoint(address);
+		if (endpoint == null) {
+			throw new IllegalArgumentException("No connection to " + address);
+		}
+		return endpoint.isWritable();
+	}
+
 	public boolean isOpen() {
 		synchronized (isOpenLock) {
 			return isOpen;
@@ -238,8 +579,10 @@ public class Server implements ConnectionNotifier, Closeable {
 
 	@Override
 	public void onDisconnect(SocketAddress address) {
-		connections.remove(address);
-		pendingConnections.remove(address);
+		for (Shard shard : shards) {
+			shard.connections.remove(address);
+			shard.pendingConnections.remove(address);
+		}
 		synchronized (numConnectionsLock) {
 			numConnections--;
 		}
@@ -253,17 +596,193 @@ public class Server implements ConnectionNotifier, Closeable {
 			}
 			isOpen = false;
 		}
-		this.connectionSocket.close();
-		connections.clear();
-		pendingConnections.clear();
+		for (Shard shard : shards) {
+			shard.close();
+		}
+	}
+
+	private class Shard implements PacketListener {
+		final DatagramChannel channel;
+		final EventLoop eventLoop;
+		final boolean ownsEventLoop;
+		final Map<SocketAddress, ConnectionEndpoint> connections = new ConcurrentHashMap<>();
+		final Map<SocketAddress, PendingConnection> pendingConnections = new ConcurrentHashMap<>();
+		//endpoints with messages or an acknowledgment pending from the current batch of packets, only accessed from the
+		//event loop
+		final List<ConnectionEndpoint> pendingEndpoints = new ArrayList<>();
+
+		Shard() throws IOException {
+			this.channel = DatagramChannel.open();
+			try {
+				if (numShards > 1) {
+					if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+						throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform.");
+					}
+					channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				channel.bind(new InetSocketAddress(port));
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+			this.ownsEventLoop = Server.this.eventLoop == null;
+			this.eventLoop = ownsEventLoop ? new EventLoop() : Server.this.eventLoop;
+		}
+
+		@Override
+		public void onPacket(SocketAddress recvAddress, byte[] data) {
+			if (!PacketUtils.isValidPacket(data) ||
+				PacketUtils.isSYNACK(data)) {
+				return;
+			}
+
+			byte flags = PacketUtils.getFlags(data);
+			if ((flags & (PacketUtils.SYN_MASK | PacketUtils.ACK_MASK)) == PacketUtils.SYN_MASK) {
+				establishNewConnection(recvAddress, data);
+			}
+			else {
+				if ((flags & (PacketUtils.SYN_MASK | PacketUtils.ACK_MASK)) == PacketUtils.ACK_MASK && pendingConnections.containsKey(recvAddress)) {
+					respondToAck(recvAddress, data);
+				}
+				else {
+					ConnectionEndpoint endpoint = null;
+					if (connections.containsKey(recvAddress)) {
+						endpoint = connections.get(recvAddress);
+					}
+					else if (pendingConnections.containsKey(recvAddress)) {
+						endpoint = pendingConnections.get(recvAddress).endpoint;
+					}
+					if (endpoint != null && endpoint.handlePacket(data)) {
+						pendingEndpoints.add(endpoint);
+					}
+				}
+			}
+		}
+
+		@Override
+		public void onReadComplete() {
+			try {
+				for (int i = 0; i < pendingEndpoints.size(); i++) {
+					//a handler throwing must not keep the other connections from getting their messages and ACKs
+					try {
+						pendingEndpoints.get(i).onReadComplete();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			} finally {
+				pendingEndpoints.clear();
+			}
+		}
+
+		@Override
+		public void onClose() {
+			//the channel being closed while it's receiving is expected behaviour
+			Server.this.close();
+		}
+
+		private void establishNewConnection(SocketAddress recvAddress, byte[] data) {
+			if (connections.containsKey(recvAddress) || pendingConnections.containsKey(recvAddress)) {
+				return;
+			}
+			byte versionID = data[0];
+			if (versionID != PacketUtils.VERSION_ID) {
+				return;
+			}
+			int remoteSeqNum = PacketUtils.getSeqNum(data);
+			int thisSeqNum = 420;
+			//a wide SYN asks for 32-bit sequence numbers, which are always accepted
+			boolean isWide = PacketUtils.isWide(data);
+			PendingConnection newConnection = new PendingConnection(channel, eventLoop, recvAddress, thisSeqNum, remoteSeqNum + 1, isWide);
+			newConnection.endpoint.updateRemoteWindow(data);
+			byte[] packetData = PacketUtils.setWindow(PacketUtils.constructSYNACKPacket(thisSeqNum, remoteSeqNum, isWide),
+				newConnection.endpoint.getReceiveWindow());
+			newConnection.endpoint.sendReliablePayload(packetData);
+			pendingConnections.put(recvAddress, newConnection);
+
+			eventLoop.schedule(synackTimer(recvAddress, packetData), ConnectionEndpoint.RESEND_DELAY_MS);
+		}
+
+		private Runnable synackTimer(SocketAddress recvAddress, byte[] synAckResponse) {
+			return () -> {
+				PendingConnection connection = pendingConnections.get(recvAddress);
+				if (connection == null) {
+					return;
+				}
+				if (connection.timeoutCount >= ConnectionEndpoint.RESEND_COUNT) {
+					pendingConnections.remove(recvAddress);
+					connection.endpoint.close();
+					return;
+				}
+				connection.timeoutCount++;
+				try {
+					connection.endpoint.sendRaw(synAckResponse);
+				} catch (IOException e) {
+					e.printStackTrace();
+					connection.endpoint.close();
+					return;
+				}
+				eventLoop.schedule(synackTimer(recvAddress, synAckResponse), ConnectionEndpoint.RESEND_DELAY_MS);
+			};
+		}
+
+		private void respondToAck(SocketAddress recvAddress, byte[] data) {
+			if (connections.containsKey(recvAddress)) {
+				return;
+			}
+			ConnectionEndpoint pendingEndpoint = pendingConnections.get(recvAddress).endpoint;
+			if (pendingEndpoint == null) {
+				return;
+			}
+			int seqNum = PacketUtils.getSeqNum(data);
+			int ackNum = PacketUtils.getAckNum(data);
+			if (ackNum == pendingEndpoint.getExpectedSequenceNumber() && seqNum == pendingEndpoint.getRemoteSequenceNumber()) {
+				pendingEndpoint.setNotifier(Server.this);
+				connections.put(recvAddress, pendingEndpoint);
+				pendingConnections.remove(recvAddress);
+				synchronized (numConnectionsLock) {
+					numConnections++;
+				}
+				pendingEndpoint.startHeartbeat();
+				if (pathMtuDiscovery) {
+					pendingEndpoint.startPathMtuDiscovery();
+				}
+				handler.onConnect(recvAddress);
+				//if the handshake ACK was lost, this is the client's first message with the ACK piggybacked on it
+				if (pendingEndpoint.handlePacket(data)) {
+					pendingEndpoints.add(pendingEndpoint);
+				}
+			}
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			connections.clear();
+			pendingConnections.clear();
+			if (ownsEventLoop) {
+				eventLoop.close();
+			}
+		}
 	}
 
 	private class PendingConnection {
 		ConnectionEndpoint endpoint;
 		int timeoutCount;
 
-		PendingConnection(SocketAddress address, int localSeqNum, int remoteSeqNum) {
-			endpoint = new ConnectionEndpoint(connectionSocket, address, localSeqNum, remoteSeqNum, handler);
+		PendingConnection(DatagramChannel channel, EventLoop eventLoop, SocketAddress address, int localSeqNum, int remoteSeqNum, boolean isWide) {
+			endpoint = new ConnectionEndpoint(channel, eventLoop, address, localSeqNum, remoteSeqNum, isWide, receiveWindow, handler);
+			endpoint.setCongestionControl(congestionControlFactory.get());
+			endpoint.setSendQueueLimit(sendQueueLimit);
+			endpoint.setCoalescingDelay(coalescingDelayMicros);
+			endpoint.setPooledReceive(pooledReceive);
+			endpoint.setMaxMessageSize(maxMessageSize);
+			if (pacing) {
+				endpoint.setPacer(new Pacer(pacingRate));
+			}
 			this.timeoutCount = 0;
 		}
 	}
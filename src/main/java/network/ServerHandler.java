@@ -1,6 +1,9 @@
 package network;
 
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class ServerHandler implements Handler {
 	Server server;
@@ -13,18 +16,102 @@ public abstract class ServerHandler implements Handler {
 		server.sendRaw(address, data);
 	}
 
-	public void sendReliable(SocketAddress address, byte[] data) {
-		server.sendReliable(address, data);
+	public void sendRaw(SocketAddress address, byte[] data, int offset, int length) {
+		server.sendRaw(address, data, offset, length);
+	}
+
+	public void sendRaw(SocketAddress address, ByteBuffer data) {
+		server.sendRaw(address, data);
+	}
+
+	public void sendRawSequenced(SocketAddress address, int channel, byte[] data) {
+		server.sendRawSequenced(address, channel, data);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress address, byte[] data) {
+		return server.sendReliable(address, data);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress address, int channel, byte[] data) {
+		return server.sendReliable(address, channel, data);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress address, int channel, byte[] data, Priority priority) {
+		return server.sendReliable(address, channel, data, priority);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress address, byte[] data, int offset, int length) {
+		return server.sendReliable(address, data, offset, length);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress address, ByteBuffer data) {
+		return server.sendReliable(address, data);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress address, int channel, ByteBuffer data, Priority priority) {
+		return server.sendReliable(address, channel, data, priority);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress address, byte[][] messages) {
+		return server.sendReliable(address, messages);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress address, List<byte[]> messages) {
+		return server.sendReliable(address, messages);
+	}
+
+	public CompletableFuture<Void> sendReliable(SocketAddress address, int channel, List<byte[]> messages, Priority priority) {
+		return server.sendReliable(address, channel, messages, priority);
+	}
+
+	public CompletableFuture<Void> sendReliableUnordered(SocketAddress address, byte[] data) {
+		return server.sendReliableUnordered(address, data);
+	}
+
+	public CompletableFuture<Void> sendReliableUnordered(SocketAddress address, byte[] data, Priority priority) {
+		return server.sendReliableUnordered(address, data, priority);
 	}
 
 	public void sendAllRaw(byte[] data) {
 		server.sendAllRaw(data);
 	}
 
+	public void sendAllRawSequenced(int channel, byte[] data) {
+		server.sendAllRawSequenced(channel, data);
+	}
+
 	public void sendAllReliable(byte[] data) {
 		server.sendAllReliable(data);
 	}
 
+	public void sendAllReliable(int channel, byte[] data) {
+		server.sendAllReliable(channel, data);
+	}
+
+	public void sendAllReliable(int channel, byte[] data, Priority priority) {
+		server.sendAllReliable(channel, data, priority);
+	}
+
+	public void sendAllReliableUnordered(byte[] data) {
+		server.sendAllReliableUnordered(data);
+	}
+
+	public void sendAllReliableUnordered(byte[] data, Priority priority) {
+		server.sendAllReliableUnordered(data, priority);
+	}
+
+	public boolean isWritable(SocketAddress address) {
+		return server.isWritable(address);
+	}
+
+	public void flush(SocketAddress address) {
+		server.flush(address);
+	}
+
+	public void flushAll() {
+		server.flushAll();
+	}
+
 	public void disconnect(SocketAddress address) {
 		server.disconnect(address);
 	}
@@ -0,0 +1,141 @@
+package network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel. Timeouts are hashed into buckets by the tick they expire on, so scheduling and cancelling
+ * are O(1) and a single thread can serve the timers of any number of connections.
+ * Scheduling and cancelling may be done from any thread, advancing the wheel should only be done from one.
+ */
+public class TimingWheel {
+	private final Timeout[] buckets;
+	private final int mask;
+	private final long tickMs;
+	private final long startTimeMs;
+	private long lastTick = 0;
+	private int size = 0;
+
+	private final List<Timeout> expired = new ArrayList<>();
+
+	public TimingWheel(int numBuckets, long tickMs, long startTimeMs) {
+		if (Integer.bitCount(numBuckets) != 1) {
+			throw new IllegalArgumentException("Number of buckets " + numBuckets + " is not a power of two.");
+		}
+		this.buckets = new Timeout[numBuckets];
+		for (int i = 0; i < numBuckets; i++) {
+			buckets[i] = new Timeout(null, null, 0);
+			buckets[i].prev = buckets[i];
+			buckets[i].next = buckets[i];
+		}
+		this.mask = numBuckets - 1;
+		this.tickMs = tickMs;
+		this.startTimeMs = startTimeMs;
+	}
+
+	public synchronized Timeout schedule(Runnable task, long delayMs, long currentTimeMs) {
+		long deadlineTick = (currentTimeMs + delayMs - startTimeMs + tickMs - 1) / tickMs;
+		if (deadlineTick <= lastTick) {
+			deadlineTick = lastTick + 1;
+		}
+		Timeout timeout = new Timeout(this, task, deadlineTick);
+		Timeout head = buckets[(int) (deadlineTick & mask)];
+		timeout.prev = head.prev;
+		timeout.next = head;
+		head.prev.next = timeout;
+		head.prev = timeout;
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Runs every task whose deadline has passed by the given time.
+	 */
+	public void advance(long currentTimeMs) {
+		synchronized (this) {
+			long currentTick = (currentTimeMs - startTimeMs) / tickMs;
+			//no need to visit a bucket more than once per call
+			long firstTick = Math.max(lastTick + 1, currentTick - mask);
+			for (long tick = firstTick; tick <= currentTick && size > 0; tick++) {
+				Timeout head = buckets[(int) (tick & mask)];
+				for (Timeout timeout = head.next; timeout != head; ) {
+					Timeout next = timeout.next;
+					if (timeout.deadlineTick <= currentTick) {
+						unlink(timeout);
+						expired.add(timeout);
+					}
+					timeout = next;
+				}
+			}
+			lastTick = Math.max(lastTick, currentTick);
+		}
+		for (int i = 0; i < expired.size(); i++) {
+			try {
+				expired.get(i).task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		expired.clear();
+	}
+
+	/**
+	 * Returns how long until the wheel next needs to be advanced, or 0 if there are no timeouts scheduled.
+	 */
+	public synchronized long getDelayUntilNextTick(long currentTimeMs) {
+		if (size == 0) {
+			return 0;
+		}
+		long nextTickTime = startTimeMs + (lastTick + 1) * tickMs;
+		return Math.max(1, nextTickTime - currentTimeMs);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	private void unlink(Timeout timeout) {
+		timeout.prev.next = timeout.next;
+		timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		size--;
+	}
+
+	public static class Timeout {
+		private final TimingWheel wheel;
+		private final Runnable task;
+		private final long deadlineTick;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(TimingWheel wheel, Runnable task, long deadlineTick) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+
+		/**
+		 * Removes the timeout from its wheel. Returns false if it already expired or was cancelled.
+		 */
+		public boolean cancel() {
+			synchronized (wheel) {
+				if (next == null) {
+					return false;
+				}
+				wheel.unlink(this);
+				return true;
+			}
+		}
+
+		public boolean isPending() {
+			synchronized (wheel) {
+				return next != null;
+			}
+		}
+	}
+}
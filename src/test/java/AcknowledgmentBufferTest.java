@@ -1,4 +1,5 @@
 import network.AcknowledgmentBuffer;
+import network.PacketUtils;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -228,4 +229,136 @@ class AcknowledgmentBufferTest {
 		assertTrue(buffer.isAcked(30));
 		assertFalse(buffer.isAcked(31));
 	}
-}
\ No newline at end of file
+
+	@Test
+	void signalAckRange() {
+		AcknowledgmentBuffer buffer = new AcknowledgmentBuffer(8, 0xFFFE);
+		byte[][] data = {
+			{(byte) 0xAA, 0, (byte) 0xFF, (byte) 0xFE, 0, 0},
+			{(byte) 0xAA, 0, (byte) 0xFF, (byte) 0xFF, 0, 0},
+			{(byte) 0xAA, 0, (byte) 0x00, (byte) 0x00, 0, 0},
+			{(byte) 0xAA, 0, (byte) 0x00, (byte) 0x01, 0, 0},
+			{(byte) 0xAA, 0, (byte) 0x00, (byte) 0x02, 0, 0},
+			{(byte) 0xAA, 0, (byte) 0x00, (byte) 0x03, 0, 0},
+		};
+		for (int i = 0; i < data.length; i++) {
+			buffer.add(data[i], 100 + i);
+		}
+		buffer.findData(0xFFFF);	//counts as a retransmission
+
+		// [FFFE-, FFFF-, 0-, 1-, 2-, 3-], acks FFFE cumulatively, 0 and 2 selectively
+		assertEquals(buffer.signalAcks(0xFFFE, 0b101), 104);
+		assertEquals(buffer.size(), 5);
+		assertTrue(buffer.isAcked(0xFFFE));
+		assertFalse(buffer.isAcked(0xFFFF));
+		assertTrue(buffer.isAcked(0));
+		assertFalse(buffer.isAcked(1));
+		assertTrue(buffer.isAcked(2));
+		assertFalse(buffer.isAcked(3));
+
+		//a stale ack changes nothing
+		assertEquals(buffer.signalAcks(0xFFFD, 0), -1);
+		assertEquals(buffer.size(), 5);
+
+		//the retransmitted packet gives no sample, the later one does
+		assertEquals(buffer.signalAcks(1, 0), 103);
+		assertEquals(buffer.size(), 1);
+		assertEquals(buffer.getExpectedSequenceNumber(), 3);
+
+		//sequence numbers that are not in flight are ignored
+		assertEquals(buffer.signalAcks(1, 0xFFFFFFFE), -1);
+		assertEquals(buffer.size(), 1);
+		assertEquals(buffer.signalAcks(3, 0), 105);
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	void grow() {
+		AcknowledgmentBuffer buffer = new AcknowledgmentBuffer(2, 8, 0xFFFE);
+		byte[][] data = new byte[9][];
+		for (int i = 0; i < data.length; i++) {
+			int seq = (0xFFFE + i) & 0xFFFF;
+			data[i] = new byte[] {(byte) 0xAA, 0, (byte) (seq >> 8), (byte) seq, 0, 0};
+		}
+		buffer.add(data[0]);
+		buffer.add(data[1]);
+		buffer.signalAck(0xFFFE);	// [nnn, FFFF-]
+		buffer.add(data[2]);		// [0-, FFFF-], wrapped around
+		buffer.add(data[3]);		// [FFFF-, 0-, 1-, nnn]
+		assertEquals(buffer.size(), 3);
+		assertEquals(buffer.findData(1), data[3]);
+
+		for (int i = 4; i < data.length; i++) {
+			buffer.add(data[i]);
+		}
+		assertTrue(buffer.isFull());
+		assertEquals(buffer.getMaxCapacity(), 8);
+		assertEquals(buffer.findData(0), data[2]);
+
+		buffer.signalAcks(3, 0);
+		assertEquals(buffer.getNumNewlyAcked(), 5);
+		assertEquals(buffer.size(), 3);
+		assertEquals(buffer.getExpectedSequenceNumber(), 4);
+		assertEquals(buffer.findData(6), data[8]);
+	}
+
+	@Test
+	void wideSequenceNumbers() {
+		AcknowledgmentBuffer buffer = new AcknowledgmentBuffer(4, 4, 0xFFFFFFFE, true);
+		byte[][] data = new byte[4][];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = PacketUtils.constructReliablePacket(new byte[0], 0xFFFFFFFE + i, 0, true);
+		}
+		for (byte[] packet : data) {
+			buffer.add(packet);
+		}
+		assertTrue(buffer.isFull());
+		assertEquals(buffer.findData(1), data[3]);
+
+		// [FFFFFFFE-, FFFFFFFF-, 0-, 1-], acks FFFFFFFF cumulatively and 1 selectively
+		buffer.signalAcks(0xFFFFFFFF, 0b1);
+		assertEquals(buffer.size(), 2);
+		assertEquals(buffer.getExpectedSequenceNumber(), 0);
+		assertFalse(buffer.isAcked(0));
+		assertTrue(buffer.isAcked(1));
+
+		//16-bit wraparound means nothing for wide sequence numbers
+		assertThrows(IllegalArgumentException.class, () -> {
+			buffer.add(PacketUtils.constructReliablePacket(new byte[0], 0x10002, 0, true));
+		});
+		buffer.signalAcks(1, 0);
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	void findLost() {
+		AcknowledgmentBuffer buffer = new AcknowledgmentBuffer(8, 0);
+		byte[][] data = new byte[8][];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = PacketUtils.constructReliablePacket(new byte[0], i, 0);
+			buffer.add(data[i]);
+		}
+		assertEquals(buffer.getNextSequenceNumber(), 8);
+
+		// [0a, 1-, 2a, 3a, 4-, 5a, 6-, 7-], only 1 has three later packets acknowledged
+		buffer.signalAcks(0, 0b1011);
+		assertEquals(buffer.findLost(3).length, 1);
+		assertEquals(buffer.findLost(3).length, 0);
+		assertSame(buffer.findData(1), data[1]);
+
+		// [1-, 2a, 3a, 4-, 5a, 6a, 7-], now 4 is missing as well
+		buffer.signalAcks(0, 0b10000);
+		int[] lost = buffer.findLost(2);
+		assertEquals(lost.length, 1);
+		assertEquals(lost[0], 4);
+
+		//the newest unacknowledged packet is the one to probe with
+		assertSame(buffer.findNewestUnacked(), data[7]);
+		buffer.signalAcks(0, 0b100000);
+		assertSame(buffer.findNewestUnacked(), data[4]);
+		buffer.signalAcks(7, 0);
+		assertTrue(buffer.isEmpty());
+		assertNull(buffer.findNewestUnacked());
+		assertEquals(buffer.findLost(1).length, 0);
+	}
+}
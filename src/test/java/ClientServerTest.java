@@ -1,16 +1,25 @@
 import network.*;
 import org.junit.jupiter.api.Test;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class ClientServerTest {
+	//ConnectionEndpoint.DELAYED_ACK_MS, less the millisecond the timing wheel's clock may be off by
+	private static final long DELAYED_ACK_NANOS = TimeUnit.MILLISECONDS.toNanos(9);
+
 	@Test
 	void pingPong() {
 		System.out.println("=== PING PONG ===");
@@ -563,6 +572,81 @@ public class ClientServerTest {
 		}
 	}
 
+	@Test
+	public void sequenced() {
+		System.out.println("=== SEQUENCED ===");
+		int numChannels = 2;
+		final List<List<Integer>> dataReceived = new ArrayList<>();
+		for (int i = 0; i < numChannels; i++) {
+			dataReceived.add(new ArrayList<>());
+		}
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (dataReceived) {
+					dataReceived.get(data[0]).add((int) data[1]);
+					if (dataReceived.get(0).size() + dataReceived.get(1).size() > 20) {
+						disconnect();
+					}
+				}
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.connect();
+			int serverCount = 0;
+			while (client.isOpen()) {
+				Thread.sleep(10);
+				int channel = serverCount % numChannels;
+				server.sendAllRawSequenced(channel, new byte[]{(byte) channel, (byte) serverCount});
+				serverCount++;
+			}
+			synchronized (dataReceived) {
+				//no stream ever delivers a message older than one it already delivered
+				for (List<Integer> received : dataReceived) {
+					for (int i = 1; i < received.size(); i++) {
+						assertTrue(received.get(i) > received.get(i - 1));
+					}
+				}
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
 	@Test
 	public void largeMessage() {
 		System.out.println("=== LARGE MESSAGE ===");
@@ -632,8 +716,9 @@ public class ClientServerTest {
 	}
 
 	@Test
-	public void dataTooLarge() {
+	public void veryLargeMessage() {
 		System.out.println("=== VERY LARGE MESSAGE ===");
+		final byte[][] dataReceived = new byte[1][];
 
 		ServerHandler serverHandler = new ServerHandler() {
 			@Override
@@ -649,6 +734,9 @@ public class ClientServerTest {
 			@Override
 			public void onReceive(SocketAddress address, byte[] data) {
 				System.out.println("[SERVER] Received packet of length " + data.length);
+				synchronized (dataReceived) {
+					dataReceived[0] = data;
+				}
 				disconnect(address);
 			}
 		};
@@ -675,24 +763,2476 @@ public class ClientServerTest {
 		try (Server server = new Server(2678, serverHandler);
 			 Client client = new Client(address, 2678, clientHandler)) {
 			server.start();
+			client.setPathMtuDiscovery(false);
 			client.connect();
 
-			byte[] largeData;
-			try {
-				largeData = Files.readAllBytes(Paths.get("src/test/resources/sticksinner.jpg"));
-			} catch (IOException e) {
-				System.out.println("Could not get large data.");
-				return;
+			//far more than 256 chunks of the default packet size
+			byte[] largeData = new byte[4 * 1024 * 1024];
+			new Random(42).nextBytes(largeData);
+			System.out.println("Large data length: " + largeData.length);
+			client.sendReliable(largeData);
+			while (client.isOpen()) {
+				Thread.sleep(100);
 			}
+			synchronized (dataReceived) {
+				assertTrue(Arrays.equals(dataReceived[0], largeData));
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
 
-			System.out.println("Large data length: " + largeData.length);
+	@Test
+	public void throwingHandler() {
+		System.out.println("=== THROWING HANDLER ===");
+		List<String> serverReceived = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				String message = new String(data, StandardCharsets.UTF_8);
+				synchronized (serverReceived) {
+					serverReceived.add(message);
+				}
+				if (message.equals("throw")) {
+					throw new IllegalStateException("Thrown from the handler on purpose.");
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.connect();
+
+			//the message is still acknowledged, and later ones still delivered
+			client.sendReliable("throw".getBytes(StandardCharsets.UTF_8)).get(5, TimeUnit.SECONDS);
+			client.sendReliable("after".getBytes(StandardCharsets.UTF_8)).get(5, TimeUnit.SECONDS);
+			synchronized (serverReceived) {
+				assertEquals(serverReceived, List.of("throw", "after"));
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void maxMessageSize() {
+		System.out.println("=== MAX MESSAGE SIZE ===");
+		List<Integer> lengthsReceived = new ArrayList<>();
+		CompletableFuture<SocketAddress> disconnected = new CompletableFuture<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+				disconnected.complete(address);
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (lengthsReceived) {
+					lengthsReceived.add(data.length);
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.setMaxMessageSize(100000);
+			assertThrows(IllegalArgumentException.class, () -> server.setMaxMessageSize(0));
+			server.start();
+			assertThrows(IllegalStateException.class, () -> server.setMaxMessageSize(200000));
+			client.setPathMtuDiscovery(false);
+			client.connect();
+
+			client.sendReliable(new byte[50000]).get(5, TimeUnit.SECONDS);
+			//the server closes the connection on the first fragment instead of allocating the message
+			client.sendReliable(new byte[200000]);
+			disconnected.get(5, TimeUnit.SECONDS);
+			synchronized (lengthsReceived) {
+				assertEquals(lengthsReceived, List.of(50000));
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void fragmentLengthMismatch() {
+		System.out.println("=== FRAGMENT LENGTH MISMATCH ===");
+		List<Integer> lengthsReceived = new ArrayList<>();
+		CompletableFuture<SocketAddress> disconnected = new CompletableFuture<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+				disconnected.complete(address);
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (lengthsReceived) {
+					lengthsReceived.add(data.length);
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
 
-			assertThrows(IllegalArgumentException.class, () -> {
-				client.sendReliable(largeData);
+			//a later fragment claims the message is one byte longer than the first one did
+			relay.setToServer(data -> {
+				if (PacketUtils.isFragment(data) && PacketUtils.getFragmentOffset(data) > 0) {
+					int headerSize = PacketUtils.getHeaderSize(data);
+					byte[] message = new byte[PacketUtils.getMessageLength(data) + 1];
+					byte[] fragment = PacketUtils.constructReliableFragmentPacket(message, PacketUtils.getFragmentOffset(data),
+						data.length - headerSize, PacketUtils.getMessageId(data), PacketUtils.getSeqNum(data), PacketUtils.isWide(data));
+					if (PacketUtils.isACK(data)) {
+						PacketUtils.setPiggybackedAck(fragment, PacketUtils.getAckNum(data));
+					}
+					System.arraycopy(fragment, 0, data, 0, data.length);
+				}
+				return true;
 			});
+			client.sendReliable(new byte[5000]);
+			//the server closes the connection instead of throwing from the event loop
+			disconnected.get(5, TimeUnit.SECONDS);
+			synchronized (lengthsReceived) {
+				assertTrue(lengthsReceived.isEmpty());
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		}
+	}
 
-		} catch (IOException e) {
+	@Test
+	public void interleavedMessages() {
+		System.out.println("=== INTERLEAVED MESSAGES ===");
+		final List<byte[]> dataReceived = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				System.out.println("[SERVER] Received packet of length " + data.length);
+				synchronized (dataReceived) {
+					dataReceived.add(data);
+					if (dataReceived.size() == 2) {
+						disconnect(address);
+					}
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
+
+			byte[] largeData = new byte[1024 * 1024];
+			new Random(42).nextBytes(largeData);
+			byte[] smallData = "small".getBytes(StandardCharsets.UTF_8);
+			client.sendReliable(largeData);
+			client.sendReliable(smallData);
+			while (client.isOpen()) {
+				Thread.sleep(100);
+			}
+			synchronized (dataReceived) {
+				assertEquals(dataReceived.size(), 2);
+				//the small message is sent between fragments of the large one rather than after all of them
+				assertTrue(Arrays.equals(dataReceived.get(0), smallData));
+				assertTrue(Arrays.equals(dataReceived.get(1), largeData));
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void channels() {
+		System.out.println("=== CHANNELS ===");
+		int numChannels = 3;
+		int sendLimit = 90;
+		final List<List<Integer>> dataReceived = new ArrayList<>();
+		for (int i = 0; i < numChannels; i++) {
+			dataReceived.add(new ArrayList<>());
+		}
+		final byte[][] largeReceived = new byte[1][];
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (dataReceived) {
+					if (data.length > 2) {
+						largeReceived[0] = data;
+					}
+					else {
+						dataReceived.get(data[0]).add((int) data[1]);
+					}
+					int numReceived = 0;
+					for (List<Integer> channel : dataReceived) {
+						numReceived += channel.size();
+					}
+					if (numReceived == sendLimit && largeReceived[0] != null) {
+						disconnect(address);
+					}
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.connect();
+
+			byte[] largeData = new byte[64 * 1024];
+			new Random(42).nextBytes(largeData);
+			client.sendReliable(1, largeData);
+			for (int i = 0; i < sendLimit; i++) {
+				client.sendReliable(i % numChannels, new byte[]{(byte) (i % numChannels), (byte) i});
+			}
+			while (client.isOpen()) {
+				Thread.sleep(100);
+			}
+			synchronized (dataReceived) {
+				//every channel delivers its own messages in the order they were sent
+				for (int channel = 0; channel < numChannels; channel++) {
+					List<Integer> received = dataReceived.get(channel);
+					assertEquals(received.size(), sendLimit / numChannels);
+					for (int i = 0; i < received.size(); i++) {
+						assertEquals((int) received.get(i), i * numChannels + channel);
+					}
+				}
+				assertTrue(Arrays.equals(largeReceived[0], largeData));
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void reliableUnordered() {
+		System.out.println("=== RELIABLE UNORDERED ===");
+		int sendLimit = 50;
+		final Set<Integer> dataReceived = new HashSet<>();
+		final int[] numReceived = {0};
+		final byte[][] largeReceived = new byte[1][];
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (dataReceived) {
+					numReceived[0]++;
+					if (data.length > 1) {
+						largeReceived[0] = data;
+					}
+					else {
+						dataReceived.add((int) data[0]);
+					}
+					if (numReceived[0] == sendLimit + 1) {
+						disconnect(address);
+					}
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.connect();
+
+			byte[] largeData = new byte[64 * 1024];
+			new Random(42).nextBytes(largeData);
+			client.sendReliableUnordered(largeData);
+			for (int i = 0; i < sendLimit; i++) {
+				client.sendReliableUnordered(new byte[]{(byte) i});
+			}
+			while (client.isOpen()) {
+				Thread.sleep(100);
+			}
+			synchronized (dataReceived) {
+				//every message arrives exactly once, in whatever order
+				assertEquals(numReceived[0], sendLimit + 1);
+				assertEquals(dataReceived.size(), sendLimit);
+				assertTrue(Arrays.equals(largeReceived[0], largeData));
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void priorities() {
+		System.out.println("=== PRIORITIES ===");
+		int numNormal = 20;
+		final List<Integer> dataReceived = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (dataReceived) {
+					//-1 for the bulk message, -2 for the urgent one
+					dataReceived.add(data.length > 1 ? -1 : (int) data[0]);
+					if (dataReceived.size() == numNormal + 2) {
+						disconnect(address);
+					}
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
+
+			client.sendReliableUnordered(new byte[1024 * 1024], Priority.BULK);
+			for (int i = 0; i < numNormal; i++) {
+				client.sendReliableUnordered(new byte[]{(byte) i}, Priority.NORMAL);
+			}
+			client.sendReliableUnordered(new byte[]{-2}, Priority.URGENT);
+			while (client.isOpen()) {
+				Thread.sleep(100);
+			}
+			synchronized (dataReceived) {
+				assertEquals(dataReceived.size(), numNormal + 2);
+				//the urgent message overtakes the normal ones still queued, and neither waits for the bulk one
+				assertTrue(dataReceived.indexOf(-2) < dataReceived.indexOf(numNormal - 1));
+				assertEquals((int) dataReceived.get(dataReceived.size() - 1), -1);
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void backpressure() {
+		System.out.println("=== BACKPRESSURE ===");
+		final int[] numReceived = {0};
+		final List<Boolean> writabilityChanges = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (numReceived) {
+					numReceived[0]++;
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+
+			@Override
+			public void onWritabilityChanged(SocketAddress address, boolean isWritable) {
+				synchronized (writabilityChanges) {
+					writabilityChanges.add(isWritable);
+				}
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.setSendQueueLimit(64 * 1024);
+			client.connect();
+
+			int numAccepted = 0;
+			boolean wasRejected = false;
+			for (int i = 0; i < 1000; i++) {
+				if (!client.sendReliable(new byte[1000]).isCompletedExceptionally()) {
+					numAccepted++;
+				}
+				else {
+					wasRejected = true;
+				}
+			}
+			assertTrue(wasRejected);
+			for (int i = 0; i < 100 && client.isOpen(); i++) {
+				synchronized (numReceived) {
+					if (numReceived[0] == numAccepted) {
+						break;
+					}
+				}
+				Thread.sleep(100);
+			}
+			synchronized (numReceived) {
+				//every accepted message arrives, and the rejected ones were never queued
+				assertEquals(numReceived[0], numAccepted);
+			}
+			synchronized (writabilityChanges) {
+				//the queue may fill up again while the loop is still sending, but every change flips the last one
+				assertTrue(writabilityChanges.size() >= 2);
+				for (int i = 0; i < writabilityChanges.size(); i++) {
+					assertEquals(writabilityChanges.get(i), i % 2 == 1);
+				}
+				assertTrue(writabilityChanges.get(writabilityChanges.size() - 1));
+			}
+			assertTrue(client.isWritable());
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void completions() {
+		System.out.println("=== COMPLETIONS ===");
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		CompletableFuture<Void> pending;
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.start();
+			client.connect();
+
+			List<CompletableFuture<Void>> completions = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				completions.add(client.sendReliable(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+			}
+			completions.add(client.sendReliable(new byte[256 * 1024]));
+			completions.add(client.sendReliableUnordered(new byte[]{1}));
+			CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+			//a server without a connection to the address fails right away
+			CompletableFuture<Void> unknown = server.sendReliable(new InetSocketAddress(address, 1), new byte[1]);
+			assertTrue(unknown.isCompletedExceptionally());
+
+			//never acknowledged, so it is still waiting when the client is closed
+			relay.setToServer(data -> false);
+			pending = client.sendReliable(new byte[1]);
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		}
+		//messages still waiting for their acknowledgment fail once the connection closes
+		ExecutionException exception = assertThrows(ExecutionException.class, () -> pending.get(1, TimeUnit.SECONDS));
+		assertTrue(exception.getCause() instanceof IllegalStateException);
+		System.out.println("Done\n");
+	}
+
+	@Test
+	public void coalescing() {
+		System.out.println("=== COALESCING ===");
+		List<String> received = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (received) {
+					received.add(data.length > 100 ? "large" : new String(data, StandardCharsets.UTF_8));
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			//long enough that only a full packet or an explicit flush sends anything
+			client.setCoalescingDelay(60_000_000);
+			client.connect();
+
+			List<CompletableFuture<Void>> completions = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				completions.add(client.sendReliable(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+				client.sendRaw(("raw" + i).getBytes(StandardCharsets.UTF_8));
+			}
+			Thread.sleep(200);
+			synchronized (received) {
+				assertEquals(received.size(), 0);
+			}
+			client.flush();
+			CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+
+			//a message too large to be bundled is sent after the messages bundled before it
+			client.sendReliable("20".getBytes(StandardCharsets.UTF_8));
+			client.sendReliable(new byte[PacketUtils.MAX_PROBE_PACKET_SIZE]).get(5, TimeUnit.SECONDS);
+			for (int i = 0; i < 50; i++) {
+				synchronized (received) {
+					if (received.size() == 42) {
+						break;
+					}
+				}
+				Thread.sleep(100);
+			}
+
+			synchronized (received) {
+				assertEquals(received.size(), 42);
+				List<String> reliable = new ArrayList<>();
+				int numRaw = 0;
+				for (String message : received) {
+					if (message.startsWith("raw")) {
+						numRaw++;
+					}
+					else {
+						reliable.add(message);
+					}
+				}
+				assertEquals(numRaw, 20);
+				for (int i = 0; i <= 20; i++) {
+					assertEquals(reliable.get(i), String.valueOf(i));
+				}
+				assertEquals(reliable.get(21), "large");
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void batches() {
+		System.out.println("=== BATCHES ===");
+		List<String> received = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (received) {
+					received.add(data.length > 100 ? "large" + data.length : new String(data, StandardCharsets.UTF_8));
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.setSendQueueLimit(64 * 1024);
+			client.connect();
+
+			byte[][] batch = new byte[100][];
+			for (int i = 0; i < batch.length; i++) {
+				batch[i] = i == 50 ? new byte[20000] : String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+			}
+			client.sendReliable(batch).get(5, TimeUnit.SECONDS);
+
+			synchronized (received) {
+				assertEquals(received.size(), 100);
+				assertTrue(received.contains("large20000"));
+				//messages that fit in a packet keep their order around the fragmented one
+				List<String> small = new ArrayList<>(received);
+				small.remove("large20000");
+				for (int i = 0; i < small.size(); i++) {
+					assertEquals(small.get(i), String.valueOf(i < 50 ? i : i + 1));
+				}
+				received.clear();
+			}
+
+			//a batch that does not fit next to what is queued is rejected as a whole
+			List<byte[]> padding = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				padding.add(new byte[1000]);
+			}
+			int numAccepted = 0;
+			CompletableFuture<Void> last = null;
+			for (int i = 0; i < 1000; i++) {
+				CompletableFuture<Void> completion = client.sendReliable(padding);
+				if (completion.isCompletedExceptionally()) {
+					ExecutionException exception = assertThrows(ExecutionException.class, completion::get);
+					assertTrue(exception.getCause() instanceof RejectedExecutionException);
+					break;
+				}
+				numAccepted++;
+				last = completion;
+			}
+			assertTrue(numAccepted < 1000);
+			last.get(10, TimeUnit.SECONDS);
+			Thread.sleep(100);
+			synchronized (received) {
+				assertEquals(received.size(), numAccepted * padding.size());
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void receiveBatches() {
+		System.out.println("=== RECEIVE BATCHES ===");
+		List<String> received = new ArrayList<>();
+		final int[] maxBatchSize = {0};
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				throw new IllegalStateException("Messages should be received in batches.");
+			}
+
+			@Override
+			public void onReceiveBatch(SocketAddress address, List<byte[]> messages) {
+				synchronized (received) {
+					for (byte[] message : messages) {
+						received.add(new String(message, StandardCharsets.UTF_8));
+					}
+					maxBatchSize[0] = Math.max(maxBatchSize[0], messages.size());
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.setCoalescingDelay(60_000_000);
+			client.connect();
+
+			//the messages of one bundle are received in one batch
+			List<byte[]> messages = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				messages.add(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+			}
+			CompletableFuture<Void> completion = client.sendReliable(messages);
+			client.flush();
+			completion.get(5, TimeUnit.SECONDS);
+			for (int i = 10; i < 20; i++) {
+				client.sendReliable(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+				client.flush();
+			}
+			for (int i = 0; i < 50; i++) {
+				synchronized (received) {
+					if (received.size() == 20) {
+						break;
+					}
+				}
+				Thread.sleep(100);
+			}
+
+			synchronized (received) {
+				assertEquals(received.size(), 20);
+				for (int i = 0; i < received.size(); i++) {
+					assertEquals(received.get(i), String.valueOf(i));
+				}
+				assertTrue(maxBatchSize[0] >= 10);
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void pooledReceive() {
+		System.out.println("=== POOLED RECEIVE ===");
+		List<String> received = new ArrayList<>();
+		final boolean[] isReadOnly = {true};
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				throw new IllegalStateException("Messages should be received as views.");
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, ByteBuffer data) {
+				synchronized (received) {
+					isReadOnly[0] &= data.isReadOnly();
+					received.add(data.remaining() > 100 ? "large" + data.remaining() : StandardCharsets.UTF_8.decode(data).toString());
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.setPooledReceive(true);
+			server.start();
+			client.setCoalescingDelay(60_000_000);
+			client.connect();
+
+			//single messages, a bundle and a message reassembled from fragments
+			client.sendReliable("0".getBytes(StandardCharsets.UTF_8));
+			client.flush();
+			client.sendReliable(Arrays.asList("1".getBytes(StandardCharsets.UTF_8), "22".getBytes(StandardCharsets.UTF_8)));
+			client.sendReliable(new byte[100000]).get(5, TimeUnit.SECONDS);
+			for (int i = 0; i < 50; i++) {
+				synchronized (received) {
+					if (received.size() == 4) {
+						break;
+					}
+				}
+				Thread.sleep(100);
+			}
+
+			synchronized (received) {
+				assertEquals(received, Arrays.asList("0", "1", "22", "large100000"));
+				assertTrue(isReadOnly[0]);
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void roundTripTime() {
+		System.out.println("=== ROUND TRIP TIME ===");
+		int sendLimit = 20;
+		final int[] receiveCount = {0};
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (receiveCount) {
+					receiveCount[0]++;
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.connect();
+			for (int i = 0; i < sendLimit; i++) {
+				client.sendReliable(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+			}
+			while (true) {
+				Thread.sleep(100);
+				synchronized (receiveCount) {
+					if (receiveCount[0] >= sendLimit) {
+						break;
+					}
+				}
+			}
+			Thread.sleep(100);
+			double rtt = client.getRoundTripTime();
+			System.out.println("[CLIENT] Round trip time: " + rtt + " ms");
+			assertTrue(rtt > 0);
+			assertTrue(rtt < 500);
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void wideSequenceNumbers() {
+		System.out.println("=== WIDE SEQUENCE NUMBERS ===");
+		final int sendLimit = 100;
+		final List<byte[]> received = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				sendReliable(address, data);
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (received) {
+					received.add(data);
+				}
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.setWideSequenceNumbers(true);
+			client.connect();
+			assertTrue(client.isWide());
+
+			//large enough to be split into chunks with the wide header
+			byte[] large = new byte[3 * PacketUtils.MAX_DATA_PER_WIDE_CHUNK + 7];
+			for (int i = 0; i < large.length; i++) {
+				large[i] = (byte) i;
+			}
+			for (int i = 0; i < sendLimit; i++) {
+				client.sendReliable(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+			}
+			client.sendReliable(large);
+			while (true) {
+				Thread.sleep(100);
+				synchronized (received) {
+					if (received.size() >= sendLimit + 1) {
+						break;
+					}
+				}
+			}
+			synchronized (received) {
+				for (int i = 0; i < sendLimit; i++) {
+					assertEquals(new String(received.get(i), StandardCharsets.UTF_8), String.valueOf(i));
+				}
+				assertTrue(Arrays.equals(received.get(sendLimit), large));
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void smallReceiveWindow() {
+		System.out.println("=== SMALL RECEIVE WINDOW ===");
+		final int sendLimit = 500;
+		final List<String> received = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (received) {
+					received.add(new String(data, StandardCharsets.UTF_8));
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.setReceiveWindow(4);
+			server.start();
+			client.connect();
+			for (int i = 0; i < sendLimit; i++) {
+				client.sendReliable(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+			}
+			while (true) {
+				Thread.sleep(100);
+				synchronized (received) {
+					if (received.size() >= sendLimit) {
+						break;
+					}
+				}
+			}
+			synchronized (received) {
+				for (int i = 0; i < sendLimit; i++) {
+					assertEquals(received.get(i), String.valueOf(i));
+				}
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void advertisedWindow() {
+		System.out.println("=== ADVERTISED WINDOW ===");
+		final int sendLimit = 10;
+		final List<String> received = new ArrayList<>();
+		AtomicInteger dropped = new AtomicInteger();
+		AtomicInteger minWindow = new AtomicInteger(Integer.MAX_VALUE);
+		AtomicInteger lastWindow = new AtomicInteger();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (received) {
+					received.add(new String(data, StandardCharsets.UTF_8));
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.setReceiveWindow(64);
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
+			warmUp(client);
+			synchronized (received) {
+				received.clear();
+			}
+
+			//the first message is lost once, so the ones after it are held by the server until it is retransmitted
+			relay.setToServer(data -> !(PacketUtils.isValidPacket(data) && PacketUtils.isReliable(data) && !PacketUtils.isSYN(data) &&
+				data.length > PacketUtils.getHeaderSize(data) && dropped.getAndIncrement() == 0));
+			relay.setToClient(data -> {
+				if (isStandaloneAck(data) && PacketUtils.getWindow(data) > 0) {
+					minWindow.accumulateAndGet(PacketUtils.getWindow(data), Math::min);
+					lastWindow.set(PacketUtils.getWindow(data));
+				}
+				return true;
+			});
+			CompletableFuture<?>[] completions = new CompletableFuture<?>[sendLimit];
+			for (int i = 0; i < sendLimit; i++) {
+				completions[i] = client.sendReliable(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+			}
+			CompletableFuture.allOf(completions).get(5, TimeUnit.SECONDS);
+
+			//the held messages take up part of the window until the gap is filled
+			assertTrue(minWindow.get() < 64);
+			assertTrue(minWindow.get() >= 64 - (sendLimit - 1));
+			assertEquals(lastWindow.get(), 64);
+			synchronized (received) {
+				for (int i = 0; i < sendLimit; i++) {
+					assertEquals(received.get(i), String.valueOf(i));
+				}
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void pacing() {
+		System.out.println("=== PACING ===");
+		final int sendLimit = 200;
+		final List<String> received = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (received) {
+					received.add(new String(data, StandardCharsets.UTF_8));
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.setPacing(true);
+			client.setPacingRate(20_000);
+			client.connect();
+			byte[] padding = new byte[94];
+			long startTime = System.nanoTime();
+			for (int i = 0; i < sendLimit; i++) {
+				client.sendReliable(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+				client.sendReliable(padding);
+			}
+			while (true) {
+				Thread.sleep(50);
+				synchronized (received) {
+					if (received.size() >= 2 * sendLimit) {
+						break;
+					}
+				}
+			}
+			//at 20 kB/s, 400 packets of about 50 bytes on average take about a second
+			long elapsedMs = (System.nanoTime() - startTime) / 1_000_000;
+			System.out.println("Sent paced packets in " + elapsedMs + " ms");
+			assertTrue(elapsedMs > 700);
+			synchronized (received) {
+				for (int i = 0; i < sendLimit; i++) {
+					assertEquals(received.get(2 * i), String.valueOf(i));
+				}
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void pacingWithHeartbeats() {
+		System.out.println("=== PACING WITH HEARTBEATS ===");
+		final int sendLimit = 200;
+		final List<String> received = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (received) {
+					received.add(new String(data, StandardCharsets.UTF_8));
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.setPacing(true);
+			client.setPacingRate(5_000);
+			client.connect();
+			//sends faster than the pacing rate for longer than the heartbeat interval, so heartbeats are sent while
+			//packets are held back by the pacer
+			byte[] padding = new byte[100];
+			CompletableFuture<Void> last = null;
+			for (int i = 0; i < sendLimit; i++) {
+				client.sendReliable(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+				last = client.sendReliable(padding);
+				Thread.sleep(20);
+			}
+			last.get(10, TimeUnit.SECONDS);
+
+			synchronized (received) {
+				assertEquals(received.size(), 2 * sendLimit);
+				for (int i = 0; i < sendLimit; i++) {
+					assertEquals(received.get(2 * i), String.valueOf(i));
+				}
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void pathMtuDiscovery() {
+		System.out.println("=== PATH MTU DISCOVERY ===");
+		final byte[][] dataReceived = new byte[1][];
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (dataReceived) {
+					dataReceived[0] = data;
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.connect();
+			//loopback carries every probe size
+			for (int i = 0; i < 50 && client.getMaxPacketSize() < PacketUtils.MAX_PROBE_PACKET_SIZE; i++) {
+				Thread.sleep(20);
+			}
+			System.out.println("[CLIENT] Packet size: " + client.getMaxPacketSize());
+			assertEquals(client.getMaxPacketSize(), PacketUtils.MAX_PROBE_PACKET_SIZE);
+
+			//too large for 256 chunks of the default packet size
+			byte[] large = new byte[2 * PacketUtils.MAX_PAYLOAD_SIZE];
+			for (int i = 0; i < large.length; i++) {
+				large[i] = (byte) (i * 31);
+			}
+			client.sendReliable(large);
+			while (true) {
+				Thread.sleep(50);
+				synchronized (dataReceived) {
+					if (dataReceived[0] != null) {
+						break;
+					}
+				}
+			}
+			assertTrue(Arrays.equals(dataReceived[0], large));
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Test
+	public void blackHole() {
+		System.out.println("=== BLACK HOLE ===");
+		final List<byte[]> received = new ArrayList<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (received) {
+					received.add(data);
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.start();
+			client.connect();
+			for (int i = 0; i < 50 && client.getMaxPacketSize() < PacketUtils.MAX_PROBE_PACKET_SIZE; i++) {
+				Thread.sleep(20);
+			}
+			assertEquals(client.getMaxPacketSize(), PacketUtils.MAX_PROBE_PACKET_SIZE);
+
+			//the path stops carrying large packets while a large message and a message of one large packet are in flight
+			relay.setMaxSize(PacketUtils.MAX_PACKET_SIZE);
+			byte[] large = new byte[200000];
+			for (int i = 0; i < large.length; i++) {
+				large[i] = (byte) (i * 31);
+			}
+			byte[] single = new byte[5000];
+			Arrays.fill(single, (byte) 7);
+			byte[] after = "after".getBytes(StandardCharsets.UTF_8);
+			CompletableFuture<Void> largeSent = client.sendReliable(large);
+			CompletableFuture<Void> singleSent = client.sendReliable(single);
+			CompletableFuture<Void> afterSent = client.sendReliable(after);
+			CompletableFuture.allOf(largeSent, singleSent, afterSent).get(20, TimeUnit.SECONDS);
+
+			assertEquals(client.getMaxPacketSize(), PacketUtils.MAX_PACKET_SIZE);
+			synchronized (received) {
+				assertEquals(received.size(), 3);
+				int largeIndex = -1;
+				int singleIndex = -1;
+				int afterIndex = -1;
+				for (int i = 0; i < received.size(); i++) {
+					if (received.get(i).length == large.length) {
+						largeIndex = i;
+					}
+					else if (received.get(i).length == single.length) {
+						singleIndex = i;
+					}
+					else {
+						afterIndex = i;
+					}
+				}
+				assertTrue(Arrays.equals(received.get(largeIndex), large));
+				assertTrue(Arrays.equals(received.get(singleIndex), single));
+				assertTrue(Arrays.equals(received.get(afterIndex), after));
+				//the message sent after the packet that was resent in pieces is still delivered after it
+				assertTrue(singleIndex < afterIndex);
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void blackHoleLostAck() {
+		System.out.println("=== BLACK HOLE LOST ACK ===");
+		final List<byte[]> received = new ArrayList<>();
+		AtomicInteger piecesReceived = new AtomicInteger();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (received) {
+					received.add(data);
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.start();
+			client.connect();
+			for (int i = 0; i < 50 && client.getMaxPacketSize() < PacketUtils.MAX_PROBE_PACKET_SIZE; i++) {
+				Thread.sleep(20);
+			}
+			assertEquals(client.getMaxPacketSize(), PacketUtils.MAX_PROBE_PACKET_SIZE);
+			relay.setToServer(data -> {
+				if (PacketUtils.isPiece(data)) {
+					piecesReceived.incrementAndGet();
+				}
+				return true;
+			});
+
+			//a message of large packets arrives, but its acknowledgments are lost until the path stopped carrying them
+			relay.setToClient(data -> false);
+			byte[] large = new byte[20000];
+			for (int i = 0; i < large.length; i++) {
+				large[i] = (byte) (i * 31);
+			}
+			CompletableFuture<Void> largeSent = client.sendReliable(large);
+			for (int i = 0; i < 100; i++) {
+				synchronized (received) {
+					if (!received.isEmpty()) {
+						break;
+					}
+				}
+				Thread.sleep(10);
+			}
+			relay.setMaxSize(PacketUtils.MAX_PACKET_SIZE);
+			byte[] after = "after".getBytes(StandardCharsets.UTF_8);
+			CompletableFuture<Void> afterSent = client.sendReliable(after);
+			for (int i = 0; i < 200 && client.getMaxPacketSize() > PacketUtils.MAX_PACKET_SIZE; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(client.getMaxPacketSize(), PacketUtils.MAX_PACKET_SIZE);
+			relay.setToClient(data -> true);
+			CompletableFuture.allOf(largeSent, afterSent).get(5, TimeUnit.SECONDS);
+			byte[] last = "last".getBytes(StandardCharsets.UTF_8);
+			client.sendReliable(last).get(5, TimeUnit.SECONDS);
+
+			//the pieces are recognized as duplicates, so nothing is delivered twice or out of order
+			assertTrue(piecesReceived.get() > 0);
+			synchronized (received) {
+				assertEquals(received.size(), 3);
+				assertTrue(Arrays.equals(received.get(0), large));
+				assertTrue(Arrays.equals(received.get(1), after));
+				assertTrue(Arrays.equals(received.get(2), last));
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			e.printStackTrace();
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void partialMessageLimit() {
+		System.out.println("=== PARTIAL MESSAGE LIMIT ===");
+		List<Integer> lengthsReceived = new ArrayList<>();
+		CompletableFuture<SocketAddress> disconnected = new CompletableFuture<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+				disconnected.complete(address);
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (lengthsReceived) {
+					lengthsReceived.add(data.length);
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.setReceiveWindow(64);
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
+
+			client.sendReliable(new byte[200000]).get(5, TimeUnit.SECONDS);
+			//give every fragment a message of its own, far more than a sender ever has under way
+			int[] nextMessageId = {1000000};
+			relay.setToServer(data -> {
+				if (!PacketUtils.isFragment(data)) {
+					return true;
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				for (int i = 0; i + 12 <= data.length; i++) {
+					if (buffer.getInt(i) == PacketUtils.getMessageId(data) && buffer.getInt(i + 4) == PacketUtils.getMessageLength(data)
+						&& buffer.getInt(i + 8) == PacketUtils.getFragmentOffset(data)) {
+						buffer.putInt(i, nextMessageId[0]++);
+						return true;
+					}
+				}
+				return true;
+			});
+			client.sendReliable(new byte[200000]);
+			disconnected.get(5, TimeUnit.SECONDS);
+			synchronized (lengthsReceived) {
+				assertEquals(lengthsReceived, List.of(200000));
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void requestResponseAck() {
+		System.out.println("=== REQUEST RESPONSE ACK ===");
+		BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				sendReliable(address, data);
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				responses.add(new String(data, StandardCharsets.UTF_8));
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.setPathMtuDiscovery(false);
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
+			//the heartbeats sent on connecting are acknowledged first
+			Thread.sleep(100);
+			AtomicInteger standaloneAcks = new AtomicInteger();
+			relay.setToClient(data -> {
+				if (isStandaloneAck(data)) {
+					standaloneAcks.incrementAndGet();
+				}
+				return true;
+			});
+
+			for (int i = 0; i < 20; i++) {
+				client.sendReliable(("request" + i).getBytes(StandardCharsets.UTF_8));
+				assertEquals(responses.poll(5, TimeUnit.SECONDS), "request" + i);
+			}
+			//every request is acknowledged by the response to it
+			assertEquals(standaloneAcks.get(), 0);
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void delayedAck() {
+		System.out.println("=== DELAYED ACK ===");
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.setPathMtuDiscovery(false);
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
+			warmUp(client);
+			long[] sentNanos = {0};
+			CompletableFuture<Long> ackDelay = new CompletableFuture<>();
+			relay.setToServer(data -> {
+				if (data.length > 500) {
+					sentNanos[0] = System.nanoTime();
+				}
+				return true;
+			});
+			relay.setToClient(data -> {
+				if (sentNanos[0] != 0 && isStandaloneAck(data)) {
+					ackDelay.complete(System.nanoTime() - sentNanos[0]);
+				}
+				return true;
+			});
+
+			//nothing is sent in response, so the ACK goes out on its own once the delay is up
+			client.sendReliable(new byte[800]).get(5, TimeUnit.SECONDS);
+			assertTrue(ackDelay.get(5, TimeUnit.SECONDS) >= DELAYED_ACK_NANOS);
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void outOfOrderAck() {
+		System.out.println("=== OUT OF ORDER ACK ===");
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.setPathMtuDiscovery(false);
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
+			warmUp(client);
+			int[] numSent = {0};
+			long[] sentNanos = {0};
+			CompletableFuture<Long> ackDelay = new CompletableFuture<>();
+			relay.setToServer(data -> {
+				if (data.length <= 500) {
+					return true;
+				}
+				numSent[0]++;
+				if (numSent[0] == 2) {
+					sentNanos[0] = System.nanoTime();
+				}
+				//the first message is lost, so the second arrives out of order
+				return numSent[0] != 1;
+			});
+			relay.setToClient(data -> {
+				if (sentNanos[0] != 0 && isStandaloneAck(data)) {
+					ackDelay.complete(System.nanoTime() - sentNanos[0]);
+				}
+				return true;
+			});
+
+			CompletableFuture<Void> first = client.sendReliable(new byte[800]);
+			CompletableFuture<Void> second = client.sendReliable(new byte[800]);
+			assertTrue(ackDelay.get(5, TimeUnit.SECONDS) < DELAYED_ACK_NANOS);
+			CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void duplicateAck() {
+		System.out.println("=== DUPLICATE ACK ===");
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			server.setPathMtuDiscovery(false);
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
+			warmUp(client);
+			int[] numSent = {0};
+			int[] numAcks = {0};
+			long[] sentNanos = {0};
+			CompletableFuture<Long> ackDelay = new CompletableFuture<>();
+			relay.setToServer(data -> {
+				if (data.length > 500 && ++numSent[0] == 2) {
+					sentNanos[0] = System.nanoTime();
+				}
+				return true;
+			});
+			relay.setToClient(data -> {
+				if (!isStandaloneAck(data) || numSent[0] == 0) {
+					return true;
+				}
+				if (numSent[0] > 1) {
+					ackDelay.complete(System.nanoTime() - sentNanos[0]);
+				}
+				//losing the ACK for the message makes the client send it again
+				return ++numAcks[0] != 1;
+			});
+
+			CompletableFuture<Void> completion = client.sendReliable(new byte[800]);
+			assertTrue(ackDelay.get(5, TimeUnit.SECONDS) < DELAYED_ACK_NANOS);
+			completion.get(5, TimeUnit.SECONDS);
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Test
+	public void piggybackedHandshakeAck() {
+		System.out.println("=== PIGGYBACKED HANDSHAKE ACK ===");
+		CompletableFuture<SocketAddress> connected = new CompletableFuture<>();
+		CompletableFuture<String> received = new CompletableFuture<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+				connected.complete(address);
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				received.complete(new String(data, StandardCharsets.UTF_8));
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Relay relay = new Relay(2679, new InetSocketAddress(address, 2678));
+			 Client client = new Client(address, 2679, clientHandler)) {
+			AtomicInteger acksLost = new AtomicInteger();
+			//the handshake can only be completed by the ACK on the client's first message
+			relay.setToServer(data -> {
+				if (isStandaloneAck(data)) {
+					acksLost.incrementAndGet();
+					return false;
+				}
+				return true;
+			});
+			server.setPathMtuDiscovery(false);
+			server.start();
+			client.setPathMtuDiscovery(false);
+			client.connect();
+
+			client.sendReliable("hello".getBytes(StandardCharsets.UTF_8)).get(5, TimeUnit.SECONDS);
+			connected.get(5, TimeUnit.SECONDS);
+			assertEquals(received.get(5, TimeUnit.SECONDS), "hello");
+			assertTrue(acksLost.get() > 0);
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Exchanges enough messages for the timing of acknowledgments to be down to the connection rather than to the JIT,
+	 * and waits for the heartbeats sent on connecting to be acknowledged.
+	 */
+	private static void warmUp(Client client) throws InterruptedException, ExecutionException, TimeoutException {
+		CompletableFuture<Void> last = null;
+		for (int i = 0; i < 500; i++) {
+			last = client.sendReliable(new byte[100]);
+		}
+		last.get(5, TimeUnit.SECONDS);
+		Thread.sleep(100);
+	}
+
+	/**
+	 * Returns whether the datagram is an ACK that carries nothing else.
+	 */
+	private static boolean isStandaloneAck(byte[] data) {
+		return PacketUtils.isValidPacket(data) && PacketUtils.isACK(data) && !PacketUtils.isReliable(data)
+			&& !PacketUtils.isFINACK(data) && !PacketUtils.isProbe(data);
+	}
+
+	/**
+	 * Relays datagrams between the server and the first other address that sends to it, dropping those larger than
+	 * the maximum size.
+	 */
+	private static class Relay implements Closeable {
+		private final DatagramSocket socket;
+		private final SocketAddress server;
+		private final Thread thread;
+		private volatile int maxSize = Integer.MAX_VALUE;
+		private volatile Predicate<byte[]> toServer = data -> true;
+		private volatile Predicate<byte[]> toClient = data -> true;
+
+		Relay(int port, SocketAddress server) throws SocketException {
+			this.socket = new DatagramSocket(port, InetAddress.getLoopbackAddress());
+			this.server = server;
+			this.thread = new Thread(this::run);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * Sets the filter datagrams to the server go through, which may change them in place and returns whether to
+		 * pass them on. Filters are called from the relay's thread.
+		 */
+		void setToServer(Predicate<byte[]> toServer) {
+			this.toServer = toServer;
+		}
+
+		/**
+		 * Sets the filter datagrams to the client go through, like {@link #setToServer}.
+		 */
+		void setToClient(Predicate<byte[]> toClient) {
+			this.toClient = toClient;
+		}
+
+		private void run() {
+			byte[] buffer = new byte[65536];
+			SocketAddress client = null;
+			while (true) {
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				try {
+					socket.receive(packet);
+					if (packet.getLength() > maxSize) {
+						continue;
+					}
+					byte[] data = Arrays.copyOf(buffer, packet.getLength());
+					SocketAddress destination = server;
+					boolean pass;
+					if (packet.getSocketAddress().equals(server)) {
+						destination = client;
+						pass = toClient.test(data);
+					}
+					else {
+						client = packet.getSocketAddress();
+						pass = toServer.test(data);
+					}
+					if (pass && destination != null) {
+						socket.send(new DatagramPacket(data, data.length, destination));
+					}
+				} catch (IOException e) {
+					//closed
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			socket.close();
+			//the port is only released once the thread is no longer receiving on it
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Test
+	public void slices() {
+		System.out.println("=== SLICES ===");
+		Set<String> serverReceived = new HashSet<>();
+		Set<String> clientReceived = new HashSet<>();
+
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (serverReceived) {
+					serverReceived.add(data.length > 100 ? "large" + data.length : new String(data, StandardCharsets.UTF_8));
+				}
+				if (data.length == 3) {
+					sendRaw(address, data, 1, 2);
+					sendReliable(address, ByteBuffer.wrap(data, 0, 1));
+				}
+			}
+		};
+
+		ClientHandler clientHandler = new ClientHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				synchronized (clientReceived) {
+					clientReceived.add(new String(data, StandardCharsets.UTF_8));
+				}
+			}
+		};
+
+		InetAddress address = InetAddress.getLoopbackAddress();
+
+		try (Server server = new Server(2678, serverHandler);
+			 Client client = new Client(address, 2678, clientHandler)) {
+			server.start();
+			client.connect();
+
+			client.sendReliable("xxABCxx".getBytes(StandardCharsets.UTF_8), 2, 3);
+			ByteBuffer heap = ByteBuffer.wrap("..DEF".getBytes(StandardCharsets.UTF_8));
+			heap.position(2);
+			client.sendReliable(heap);
+			assertEquals(heap.remaining(), 0);
+			ByteBuffer direct = ByteBuffer.allocateDirect(100000);
+			direct.put("GH".getBytes(StandardCharsets.UTF_8)).flip();
+			client.sendReliable(direct);
+			assertEquals(direct.remaining(), 0);
+			direct.clear();
+			client.sendReliable(direct).get(5, TimeUnit.SECONDS);
+			client.sendRaw("..JK..".getBytes(StandardCharsets.UTF_8), 2, 2);
+			direct.clear();
+			direct.put("LMN".getBytes(StandardCharsets.UTF_8)).flip();
+			client.sendRaw(direct);
+			assertEquals(direct.remaining(), 0);
+			assertThrows(IllegalArgumentException.class, () -> client.sendRaw(new byte[2], 1, 2));
+
+			Set<String> expectedServer = new HashSet<>(Arrays.asList("ABC", "DEF", "GH", "large100000", "JK", "LMN"));
+			Set<String> expectedClient = new HashSet<>(Arrays.asList("BC", "A", "EF", "D", "MN", "L"));
+			for (int i = 0; i < 50; i++) {
+				synchronized (serverReceived) {
+					synchronized (clientReceived) {
+						if (serverReceived.size() == expectedServer.size() && clientReceived.size() == expectedClient.size()) {
+							break;
+						}
+					}
+				}
+				Thread.sleep(100);
+			}
+
+			synchronized (serverReceived) {
+				assertEquals(serverReceived, expectedServer);
+			}
+			synchronized (clientReceived) {
+				assertEquals(clientReceived, expectedClient);
+			}
+			System.out.println("Done\n");
+		} catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
 			e.printStackTrace();
+			throw new AssertionError(e);
 		}
 	}
 }
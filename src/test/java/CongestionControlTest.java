@@ -0,0 +1,76 @@
+import network.CongestionControl;
+import network.CubicCongestionControl;
+import network.NewRenoCongestionControl;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CongestionControlTest {
+	static final long RTT_NANOS = 10_000_000;
+
+	@Test
+	void newRenoSlowStartAndAvoidance() {
+		CongestionControl cc = new NewRenoCongestionControl();
+		assertEquals(cc.getCongestionWindow(), 10);
+		cc.onAck(10, RTT_NANOS, 0);
+		assertEquals(cc.getCongestionWindow(), 20);
+
+		//the threshold becomes half the window, slow start resumes from one packet
+		cc.onTimeout();
+		assertEquals(cc.getCongestionWindow(), 1);
+		cc.onAck(1, RTT_NANOS, 0);
+		cc.onAck(2, RTT_NANOS, 0);
+		cc.onAck(4, RTT_NANOS, 0);
+		assertEquals(cc.getCongestionWindow(), 8);
+		cc.onAck(2, RTT_NANOS, 0);
+		assertEquals(cc.getCongestionWindow(), 10);
+
+		//past the threshold, a full window of acknowledgments grows the window by about one packet
+		for (int i = 0; i < 10; i++) {
+			cc.onAck(1, RTT_NANOS, 0);
+		}
+		assertEquals(cc.getCongestionWindow(), 10);
+		cc.onAck(1, RTT_NANOS, 0);
+		assertEquals(cc.getCongestionWindow(), 11);
+	}
+
+	@Test
+	void cubicRecoversToPreviousWindow() {
+		CongestionControl cc = new CubicCongestionControl();
+		cc.onAck(90, RTT_NANOS, 0);
+		assertEquals(cc.getCongestionWindow(), 100);
+
+		cc.onTimeout();
+		assertEquals(cc.getCongestionWindow(), 1);
+		long time = 0;
+		int window = 1;
+		//one window of acknowledgments per round trip until the window is back where the timeout happened
+		while (window < 100) {
+			cc.onAck(window, RTT_NANOS, time);
+			time += RTT_NANOS;
+			int newWindow = cc.getCongestionWindow();
+			assertTrue(newWindow >= window);
+			window = newWindow;
+			assertTrue(time < 10_000_000_000L);
+		}
+		//growth flattens out around the previous maximum
+		cc.onAck(window, RTT_NANOS, time);
+		assertTrue(cc.getCongestionWindow() - window < 5);
+	}
+
+	@Test
+	void lossHalvesWindow() {
+		CongestionControl newReno = new NewRenoCongestionControl();
+		newReno.onAck(30, RTT_NANOS, 0);
+		newReno.onLoss(0);
+		assertEquals(newReno.getCongestionWindow(), 20);
+		//growth continues from the reduced window without slow start
+		newReno.onAck(20, RTT_NANOS, 0);
+		assertEquals(newReno.getCongestionWindow(), 21);
+
+		CongestionControl cubic = new CubicCongestionControl();
+		cubic.onAck(90, RTT_NANOS, 0);
+		cubic.onLoss(0);
+		assertEquals(cubic.getCongestionWindow(), 70);
+	}
+}
@@ -0,0 +1,53 @@
+import network.Pacer;
+import network.PacketUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacerTest {
+	static final long MS = 1_000_000;
+
+	@Test
+	void fixedRate() {
+		//100 bytes per millisecond, the bucket holds two full packets
+		Pacer pacer = new Pacer(100_000);
+		long time = 0;
+		assertEquals(pacer.acquire(PacketUtils.MAX_PACKET_SIZE, time), 0);
+		assertEquals(pacer.acquire(PacketUtils.MAX_PACKET_SIZE, time), 0);
+		//the bucket may go into debt for one packet
+		assertEquals(pacer.acquire(100, time), 0);
+		assertEquals(pacer.acquire(100, time), 1 * MS);
+
+		time += MS;
+		assertEquals(pacer.acquire(100, time), 0);
+		assertTrue(pacer.acquire(100, time) > 0);
+
+		//tokens stop accumulating once the bucket is full
+		time += 1000 * MS;
+		assertEquals(pacer.acquire(2 * PacketUtils.MAX_PACKET_SIZE + 1, time), 0);
+		assertTrue(pacer.acquire(1, time) > 0);
+
+		//a fixed rate is not changed by the congestion window
+		pacer.updateRate(1, PacketUtils.MAX_PACKET_SIZE, MS);
+		assertEquals(pacer.getRate(), 100_000.0);
+	}
+
+	@Test
+	void congestionDerivedRate() {
+		Pacer pacer = new Pacer(0);
+		//nothing is held back until the round trip time is known
+		for (int i = 0; i < 100; i++) {
+			assertEquals(pacer.acquire(PacketUtils.MAX_PACKET_SIZE, 0), 0);
+		}
+		pacer.updateRate(10, PacketUtils.MAX_PACKET_SIZE, -1);
+		assertEquals(pacer.getRate(), 0.0);
+
+		//ten packets per 10 ms round trip, with some headroom
+		pacer.updateRate(10, PacketUtils.MAX_PACKET_SIZE, 10 * MS);
+		assertEquals(pacer.getRate(), 1.25 * 10 * PacketUtils.MAX_PACKET_SIZE * 100, 1e-6);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(pacer.acquire(PacketUtils.MAX_PACKET_SIZE, 0), 0);
+		}
+		assertTrue(pacer.acquire(PacketUtils.MAX_PACKET_SIZE, 0) > 0);
+	}
+}
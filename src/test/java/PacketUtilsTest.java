@@ -0,0 +1,217 @@
+import network.PacketUtils;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PacketUtilsTest {
+
+	@Test
+	void windowExtension() {
+		byte[] data = {1, 2, 3};
+		byte[] packet = PacketUtils.constructReliablePacket(data, 17, 4);
+		assertEquals(PacketUtils.getWindow(packet), -1);
+
+		byte[] withWindow = PacketUtils.setWindow(packet, 300);
+		assertTrue(PacketUtils.isValidPacket(withWindow));
+		assertEquals(PacketUtils.getWindow(withWindow), 300);
+		assertEquals(PacketUtils.getSeqNum(withWindow), 17);
+		assertEquals(PacketUtils.getHeaderSize(withWindow), packet.length - data.length + 5);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(withWindow, PacketUtils.getHeaderSize(withWindow), withWindow.length), data));
+
+		//setting it again reuses the field
+		assertSame(PacketUtils.setWindow(withWindow, 5), withWindow);
+		assertEquals(PacketUtils.getWindow(withWindow), 5);
+	}
+
+	@Test
+	void windowAfterSelectiveAck() {
+		byte[] ack = PacketUtils.constructACKPacket(3, 0xFFFF, 0b1011, true);
+		byte[] withWindow = PacketUtils.setWindow(ack, 1 << 18);
+		assertEquals(withWindow.length, ack.length + 4);
+		assertEquals(PacketUtils.getAckBitmap(withWindow), 0b1011);
+		assertEquals(PacketUtils.getAckNum(withWindow), 0xFFFF);
+		assertEquals(PacketUtils.getWindow(withWindow), 1 << 18);
+		assertEquals(PacketUtils.getHeaderSize(withWindow), withWindow.length);
+	}
+
+	@Test
+	void probePackets() {
+		byte[] probe = PacketUtils.constructProbePacket(1472);
+		assertEquals(probe.length, 1472);
+		assertTrue(PacketUtils.isProbe(probe));
+		assertFalse(PacketUtils.isReliable(probe));
+		assertEquals(PacketUtils.getSeqNum(probe), 1472);
+
+		byte[] probeAck = PacketUtils.constructProbeACKPacket(probe.length);
+		assertTrue(PacketUtils.isProbe(probeAck));
+		assertEquals(PacketUtils.getSeqNum(probeAck), 1472);
+
+		byte[] heartbeat = PacketUtils.constructHeartbeatPacket(1, 2);
+		assertFalse(PacketUtils.isProbe(heartbeat));
+	}
+
+	@Test
+	void chunkToPacketSize() {
+		byte[] data = new byte[3 * (1472 - 6)];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		byte[][] chunks = PacketUtils.constructReliableChunkedPackets(data, 5, false, 1472);
+		assertEquals(chunks.length, 3);
+		for (int i = 0; i < chunks.length; i++) {
+			assertEquals(chunks[i].length, 1472);
+			assertEquals(PacketUtils.getNumChunks(chunks[i]), 3);
+			assertEquals(PacketUtils.getChunkIndex(chunks[i]), i);
+		}
+		assertTrue(Arrays.equals(PacketUtils.assembleDataFromChunks(chunks, chunks.length), data));
+	}
+
+	@Test
+	void fragments() {
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		byte[] fragment = PacketUtils.constructReliableFragmentPacket(data, 40, 30, 7, 0, true);
+		assertTrue(PacketUtils.isValidPacket(fragment));
+		assertTrue(PacketUtils.isFragment(fragment));
+		assertEquals(PacketUtils.getHeaderSize(fragment), PacketUtils.getFragmentHeaderSize(true));
+		assertEquals(PacketUtils.getMessageId(fragment), 7);
+		assertEquals(PacketUtils.getMessageLength(fragment), 100);
+		assertEquals(PacketUtils.getFragmentOffset(fragment), 40);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(fragment, PacketUtils.getHeaderSize(fragment), fragment.length),
+			Arrays.copyOfRange(data, 40, 70)));
+
+		//unlike chunks, fragments have room for a piggybacked acknowledgment
+		PacketUtils.setSeqNum(fragment, 0x12345678);
+		assertTrue(PacketUtils.canPiggybackAck(fragment));
+		PacketUtils.setPiggybackedAck(fragment, 0x9ABCDEF0);
+		assertEquals(PacketUtils.getSeqNum(fragment), 0x12345678);
+		assertEquals(PacketUtils.getAckNum(fragment), 0x9ABCDEF0);
+		assertEquals(PacketUtils.getFragmentOffset(fragment), 40);
+		assertFalse(PacketUtils.canPiggybackAck(PacketUtils.constructReliableChunkedPackets(data, 0)[0]));
+	}
+
+	@Test
+	void channels() {
+		byte[] data = {1, 2, 3};
+		byte[] packet = PacketUtils.constructReliablePacket(data, 5, 0, false, 7);
+		assertTrue(PacketUtils.isValidPacket(packet));
+		assertEquals(PacketUtils.getChannel(packet), 7);
+		assertEquals(PacketUtils.getSeqNum(packet), 5);
+		PacketUtils.setChannelSeqNum(packet, 0xFFFE);
+		assertEquals(PacketUtils.getChannelSeqNum(packet), 0xFFFE);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(packet, PacketUtils.getHeaderSize(packet), packet.length), data));
+		assertTrue(PacketUtils.canPiggybackAck(packet));
+		PacketUtils.setPiggybackedAck(packet, 42);
+		assertEquals(PacketUtils.getAckNum(packet), 42);
+		assertEquals(PacketUtils.getChannelSeqNum(packet), 0xFFFE);
+
+		//the default channel has no extension
+		assertEquals(PacketUtils.getChannel(PacketUtils.constructReliablePacket(data, 5, 0, false, 0)), 0);
+		assertThrows(IllegalArgumentException.class, () -> PacketUtils.constructReliablePacket(data, 5, 0, false, PacketUtils.MAX_CHANNELS));
+
+		byte[] fragment = PacketUtils.constructReliableFragmentPacket(new byte[100], 40, 30, 9, 0, true, 3);
+		assertEquals(PacketUtils.getHeaderSize(fragment), PacketUtils.getFragmentHeaderSize(true, 3));
+		assertEquals(PacketUtils.getChannel(fragment), 3);
+		assertEquals(PacketUtils.getMessageId(fragment), 9);
+		assertEquals(PacketUtils.getFragmentOffset(fragment), 40);
+		assertEquals(fragment.length - PacketUtils.getHeaderSize(fragment), 30);
+	}
+
+	@Test
+	void unordered() {
+		byte[] data = {1, 2, 3};
+		byte[] packet = PacketUtils.constructReliablePacket(data, 5, 0, false, PacketUtils.UNORDERED_CHANNEL);
+		assertTrue(PacketUtils.isValidPacket(packet));
+		assertTrue(PacketUtils.isReliable(packet));
+		assertEquals(PacketUtils.getChannel(packet), PacketUtils.UNORDERED_CHANNEL);
+		assertEquals(PacketUtils.getHeaderSize(packet), PacketUtils.getReliableHeaderSize(false, PacketUtils.UNORDERED_CHANNEL));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(packet, PacketUtils.getHeaderSize(packet), packet.length), data));
+
+		byte[] fragment = PacketUtils.constructReliableFragmentPacket(new byte[100], 40, 30, 9, 0, false, PacketUtils.UNORDERED_CHANNEL);
+		assertEquals(PacketUtils.getChannel(fragment), PacketUtils.UNORDERED_CHANNEL);
+		assertEquals(PacketUtils.getMessageId(fragment), 9);
+		assertEquals(fragment.length - PacketUtils.getHeaderSize(fragment), 30);
+	}
+
+	@Test
+	void sequencedPackets() {
+		byte[] data = {1, 2, 3};
+		byte[] packet = PacketUtils.constructSequencedPacket(data, 4, 0xFFFFFFFF);
+		assertTrue(PacketUtils.isValidPacket(packet));
+		assertFalse(PacketUtils.isReliable(packet));
+		assertEquals(PacketUtils.getChannel(packet), 4);
+		assertEquals(PacketUtils.getChannelSeqNum(packet), 0xFFFFFFFF);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(packet, PacketUtils.getHeaderSize(packet), packet.length), data));
+		//the stream wraps around without the first messages after it looking stale
+		assertTrue(PacketUtils.sequenceGreaterThan(0, 0xFFFFFFFF, 0xFFFFFFFF));
+	}
+
+	@Test
+	void bundles() {
+		//two messages of lengths 2 and 0, then one of length 3 cut off by the end of the packet
+		byte[] bundle = {0, 2, 7, 8, 0, 0, 0, 3, 9};
+		byte[] packet = PacketUtils.constructReliableBundlePacket(bundle, 5, 6, true, 3);
+		assertTrue(PacketUtils.isValidPacket(packet));
+		assertTrue(PacketUtils.isReliable(packet));
+		assertTrue(PacketUtils.isBundle(packet));
+		assertEquals(PacketUtils.getHeaderSize(packet), PacketUtils.getBundleHeaderSize(true, 3));
+		assertEquals(PacketUtils.getChannel(packet), 3);
+		assertEquals(PacketUtils.getSeqNum(packet), 5);
+		byte[][] messages = PacketUtils.getBundledMessages(packet);
+		assertEquals(messages.length, 2);
+		assertTrue(Arrays.equals(messages[0], new byte[]{7, 8}));
+		assertEquals(messages[1].length, 0);
+
+		byte[] unordered = PacketUtils.constructReliableBundlePacket(bundle, 0, 0, false, PacketUtils.UNORDERED_CHANNEL);
+		assertEquals(PacketUtils.getChannel(unordered), PacketUtils.UNORDERED_CHANNEL);
+		assertTrue(PacketUtils.isBundle(unordered));
+
+		byte[] unreliable = PacketUtils.constructUnreliableBundlePacket(bundle);
+		assertFalse(PacketUtils.isReliable(unreliable));
+		assertTrue(PacketUtils.isBundle(unreliable));
+		assertEquals(PacketUtils.getChannel(unreliable), 0);
+		assertEquals(PacketUtils.getBundledMessages(unreliable).length, 2);
+		assertFalse(PacketUtils.isBundle(PacketUtils.constructUnreliablePacket(bundle)));
+	}
+
+	@Test
+	void slices() {
+		byte[] data = {1, 2, 3, 4, 5};
+		assertTrue(Arrays.equals(PacketUtils.constructReliablePacket(data, 1, 3, 9, 4, false, 0), PacketUtils.constructReliablePacket(new byte[]{2, 3, 4}, 9, 4, false, 0)));
+		assertTrue(Arrays.equals(PacketUtils.constructReliablePacket(data, 1, 3, 9, 4, true, 3), PacketUtils.constructReliablePacket(new byte[]{2, 3, 4}, 9, 4, true, 3)));
+		assertTrue(Arrays.equals(PacketUtils.constructUnreliablePacket(data, 4, 1), PacketUtils.constructUnreliablePacket(new byte[]{5})));
+		assertThrows(IllegalArgumentException.class, () -> PacketUtils.constructUnreliablePacket(data, 3, 3));
+		assertThrows(IllegalArgumentException.class, () -> PacketUtils.constructReliablePacket(data, -1, 2, 0, 0, false, 0));
+	}
+
+	@Test
+	void cutIntoPieces() {
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		byte[] packet = PacketUtils.constructReliableFragmentPacket(data, 10, 90, 7, 3, true, 2);
+		PacketUtils.setPiggybackedAck(packet, 70000);
+		byte[][] pieces = PacketUtils.cutIntoPieces(packet, 60);
+		byte[] whole = new byte[packet.length];
+		for (int i = 0; i < pieces.length; i++) {
+			assertTrue(pieces[i].length <= 60);
+			assertTrue(PacketUtils.isPiece(pieces[i]));
+			assertTrue(PacketUtils.isReliable(pieces[i]));
+			assertTrue(PacketUtils.isWide(pieces[i]));
+			assertFalse(PacketUtils.isFragment(pieces[i]));
+			assertEquals(PacketUtils.getSeqNum(pieces[i]), 3);
+			assertEquals(PacketUtils.getAckNum(pieces[i]), 70000);
+			assertEquals(PacketUtils.getPacketLength(pieces[i]), packet.length);
+			int headerSize = PacketUtils.getHeaderSize(pieces[i]);
+			System.arraycopy(pieces[i], headerSize, whole, PacketUtils.getPieceOffset(pieces[i]), pieces[i].length - headerSize);
+		}
+		assertEquals(pieces.length, (packet.length + 40) / 41);
+		assertTrue(Arrays.equals(whole, packet));
+		assertFalse(PacketUtils.isPiece(packet));
+	}
+}
@@ -0,0 +1,71 @@
+import network.PacketUtils;
+import network.PathMtu;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PathMtuTest {
+
+	@Test
+	void searchUntilLost() {
+		PathMtu pathMtu = new PathMtu();
+		assertEquals(pathMtu.getPacketSize(), PacketUtils.MAX_PACKET_SIZE);
+
+		assertEquals(pathMtu.nextProbe(), 1232);
+		//a stale or truncated acknowledgment confirms nothing
+		assertFalse(pathMtu.onProbeAcked(1000));
+		assertTrue(pathMtu.onProbeAcked(1232));
+		assertEquals(pathMtu.getPacketSize(), 1232);
+
+		assertEquals(pathMtu.nextProbe(), 1472);
+		assertTrue(pathMtu.onProbeAcked(1472));
+
+		//every probe of the last size is lost
+		for (int i = 0; i < 3; i++) {
+			assertTrue(pathMtu.isSearching());
+			assertEquals(pathMtu.nextProbe(), PacketUtils.MAX_PROBE_PACKET_SIZE);
+		}
+		assertFalse(pathMtu.isSearching());
+		assertEquals(pathMtu.nextProbe(), -1);
+		assertEquals(pathMtu.getPacketSize(), 1472);
+	}
+
+	@Test
+	void blackHole() {
+		PathMtu pathMtu = new PathMtu();
+		assertFalse(pathMtu.onBlackHole());
+		pathMtu.nextProbe();
+		pathMtu.onProbeAcked(1232);
+		assertTrue(pathMtu.onBlackHole());
+		assertEquals(pathMtu.getPacketSize(), PacketUtils.MAX_PACKET_SIZE);
+		assertEquals(pathMtu.nextProbe(), -1);
+	}
+
+	@Test
+	void cappedByInterface() {
+		PathMtu pathMtu = new PathMtu();
+		//an Ethernet interface fragments anything larger than 1472 bytes of UDP payload
+		pathMtu.setMaxPacketSize(1472);
+		assertEquals(pathMtu.nextProbe(), 1232);
+		assertTrue(pathMtu.onProbeAcked(1232));
+		assertEquals(pathMtu.nextProbe(), 1472);
+		assertTrue(pathMtu.onProbeAcked(1472));
+		assertFalse(pathMtu.isSearching());
+		assertEquals(pathMtu.nextProbe(), -1);
+		assertEquals(pathMtu.getPacketSize(), 1472);
+
+		PathMtu unknown = new PathMtu();
+		unknown.setMaxPacketSize(PacketUtils.MAX_PACKET_SIZE);
+		assertEquals(unknown.nextProbe(), -1);
+	}
+
+	@Test
+	void interfacePacketSize() {
+		//loopback interfaces carry at least jumbo frames
+		assertTrue(PathMtu.getInterfacePacketSize(new InetSocketAddress(InetAddress.getLoopbackAddress(), 2678)) >= PacketUtils.MAX_PROBE_PACKET_SIZE);
+		assertEquals(PathMtu.getInterfacePacketSize(InetSocketAddress.createUnresolved("example.invalid", 2678)), PacketUtils.MAX_PACKET_SIZE);
+	}
+}
@@ -2,6 +2,9 @@ import network.PacketUtils;
 import network.ReceiveBuffer;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class ReceiveBufferTest {
@@ -81,4 +84,46 @@ class ReceiveBufferTest {
 		}
 		assertTrue(buffer.isEmpty());
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void ackBitmap() {
+		int startSequenceNumber = 0xFFFE;
+		ReceiveBuffer buffer = new ReceiveBuffer(8, startSequenceNumber);
+		byte[][] packets = constructHeaders(startSequenceNumber, 8);
+		assertEquals(buffer.getCumulativeAck(), 0xFFFD);
+		assertEquals(buffer.getAckBitmap(), 0);
+
+		buffer.add(packets[1]);
+		buffer.add(packets[3]);
+		buffer.add(packets[7]);
+		assertEquals(buffer.getCumulativeAck(), 0xFFFD);
+		assertEquals(buffer.getAckBitmap(), 0b1000101);
+
+		buffer.add(packets[0]);
+		buffer.flush();
+		assertEquals(buffer.getCumulativeAck(), 0xFFFF);
+		assertEquals(buffer.getAckBitmap(), 0b10001);
+	}
+
+	@Test
+	public void flushIntoList() {
+		ReceiveBuffer buffer = new ReceiveBuffer(4, 16, 0xFFFE, false);
+		byte[][] packets = constructHeaders(0xFFFE, 6);
+		buffer.add(packets[1]);
+		buffer.add(packets[3]);
+		List<byte[]> flushed = new ArrayList<>();
+		assertEquals(buffer.flush(flushed), 0);
+		buffer.add(packets[0]);
+		assertEquals(buffer.flush(flushed), 2);
+		buffer.add(packets[2]);
+		buffer.add(packets[5]);
+		//flushed packets are appended after the ones already in the list
+		assertEquals(buffer.flush(flushed), 2);
+		assertEquals(flushed.size(), 4);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(flushed.get(i), packets[i]);
+		}
+		assertEquals(buffer.size(), 1);
+		assertEquals(buffer.getExpectedSequenceNumber(), 2);
+	}
+}
@@ -0,0 +1,108 @@
+import network.*;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many unreliable datagrams per second a server delivers to its handler for an increasing number of
+ * SO_REUSEPORT shards. Run with {@code gradle receiveBenchmark}, optionally passing the largest shard count to try
+ * with {@code --args}; it defaults to the number of available processors.
+ */
+public class ReceiveShardingBenchmark {
+	private static final int PORT = 2679;
+	private static final int NUM_CLIENTS = 8;
+	private static final int PAYLOAD_SIZE = 64;
+	private static final long WARMUP_MS = 1000;
+	private static final long MEASURE_MS = 3000;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		System.out.println("shards, packets/s");
+		for (int numShards = 1; numShards <= maxShards; numShards *= 2) {
+			System.out.println(numShards + ", " + measure(numShards));
+		}
+	}
+
+	private static long measure(int numShards) throws IOException, InterruptedException {
+		final AtomicLong received = new AtomicLong();
+		ServerHandler serverHandler = new ServerHandler() {
+			@Override
+			public void onConnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onDisconnect(SocketAddress address) {
+
+			}
+
+			@Override
+			public void onReceive(SocketAddress address, byte[] data) {
+				received.incrementAndGet();
+			}
+		};
+
+		Server server = new Server(PORT, serverHandler);
+		server.setNumShards(numShards);
+		server.start();
+
+		EventLoop clientLoop = new EventLoop();
+		Client[] clients = new Client[NUM_CLIENTS];
+		Thread[] senders = new Thread[NUM_CLIENTS];
+		final boolean[] isRunning = {true};
+		for (int i = 0; i < NUM_CLIENTS; i++) {
+			clients[i] = new Client(InetAddress.getLoopbackAddress(), PORT, new ClientHandler() {
+				@Override
+				public void onConnect(SocketAddress address) {
+
+				}
+
+				@Override
+				public void onDisconnect(SocketAddress address) {
+
+				}
+
+				@Override
+				public void onReceive(SocketAddress address, byte[] data) {
+
+				}
+			});
+			clients[i].setEventLoop(clientLoop);
+			clients[i].connect();
+			Client client = clients[i];
+			senders[i] = new Thread(() -> {
+				byte[] payload = new byte[PAYLOAD_SIZE];
+				while (true) {
+					synchronized (isRunning) {
+						if (!isRunning[0]) {
+							break;
+						}
+					}
+					for (int j = 0; j < 256; j++) {
+						client.sendRaw(payload);
+					}
+				}
+			});
+			senders[i].start();
+		}
+
+		Thread.sleep(WARMUP_MS);
+		long start = received.get();
+		Thread.sleep(MEASURE_MS);
+		long end = received.get();
+
+		synchronized (isRunning) {
+			isRunning[0] = false;
+		}
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		for (Client client : clients) {
+			client.close();
+		}
+		clientLoop.close();
+		server.close();
+		return (end - start) * 1000 / MEASURE_MS;
+	}
+}
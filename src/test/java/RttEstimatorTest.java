@@ -0,0 +1,51 @@
+import network.RttEstimator;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RttEstimatorTest {
+	static final long MS = 1_000_000;
+
+	@Test
+	void initialTimeout() {
+		RttEstimator estimator = new RttEstimator(500);
+		assertFalse(estimator.hasSample());
+		assertEquals(estimator.getSmoothedRttNanos(), -1);
+		assertEquals(estimator.getRetransmissionTimeoutMs(), 500);
+		estimator.backOff();
+		assertEquals(estimator.getRetransmissionTimeoutMs(), 1000);
+	}
+
+	@Test
+	void smoothing() {
+		RttEstimator estimator = new RttEstimator(500);
+		estimator.addSample(100 * MS);
+		assertEquals(estimator.getSmoothedRttNanos(), 100 * MS);
+		assertEquals(estimator.getRttVarianceNanos(), 50 * MS);
+		assertEquals(estimator.getRetransmissionTimeoutMs(), 300);		// 100 + 4 * 50
+
+		estimator.addSample(200 * MS);
+		assertEquals(estimator.getRttVarianceNanos(), 62500000);		// (3 * 50 + 100) / 4
+		assertEquals(estimator.getSmoothedRttNanos(), 112500000);		// (7 * 100 + 200) / 8
+		assertEquals(estimator.getRetransmissionTimeoutMs(), 363);		// 112.5 + 4 * 62.5
+	}
+
+	@Test
+	void clampAndBackoff() {
+		RttEstimator estimator = new RttEstimator(500);
+		estimator.addSample(MS / 10);
+		assertEquals(estimator.getRetransmissionTimeoutMs(), 20);
+
+		estimator.backOff();
+		estimator.backOff();
+		assertEquals(estimator.getRetransmissionTimeoutMs(), 80);
+		for (int i = 0; i < 16; i++) {
+			estimator.backOff();
+		}
+		assertEquals(estimator.getRetransmissionTimeoutMs(), 8000);
+
+		//a new sample undoes the backoff
+		estimator.addSample(MS / 10);
+		assertEquals(estimator.getRetransmissionTimeoutMs(), 20);
+	}
+}
@@ -0,0 +1,101 @@
+import network.TimingWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+
+	@Test
+	void expiresInOrder() {
+		TimingWheel wheel = new TimingWheel(8, 10, 1000);
+		List<Integer> fired = new ArrayList<>();
+		wheel.schedule(() -> fired.add(1), 15, 1000);	// tick 2
+		wheel.schedule(() -> fired.add(2), 40, 1000);	// tick 4
+		wheel.schedule(() -> fired.add(3), 5, 1000);	// tick 1
+		assertEquals(wheel.size(), 3);
+
+		wheel.advance(1009);
+		assertTrue(fired.isEmpty());
+		wheel.advance(1010);
+		assertEquals(fired, List.of(3));
+		wheel.advance(1035);
+		assertEquals(fired, List.of(3, 1));
+		wheel.advance(1040);
+		assertEquals(fired, List.of(3, 1, 2));
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	void multipleRotations() {
+		TimingWheel wheel = new TimingWheel(4, 10, 0);
+		List<Integer> fired = new ArrayList<>();
+		wheel.schedule(() -> fired.add(1), 10, 0);		// tick 1, bucket 1
+		wheel.schedule(() -> fired.add(2), 50, 0);		// tick 5, bucket 1
+		wheel.schedule(() -> fired.add(3), 130, 0);	// tick 13, bucket 1
+
+		wheel.advance(10);
+		assertEquals(fired, List.of(1));
+		wheel.advance(49);
+		assertEquals(fired, List.of(1));
+		wheel.advance(50);
+		assertEquals(fired, List.of(1, 2));
+
+		//a stalled caller still sees every expired timeout exactly once
+		wheel.advance(500);
+		assertEquals(fired, List.of(1, 2, 3));
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	void cancel() {
+		TimingWheel wheel = new TimingWheel(8, 10, 0);
+		List<Integer> fired = new ArrayList<>();
+		TimingWheel.Timeout t1 = wheel.schedule(() -> fired.add(1), 10, 0);
+		TimingWheel.Timeout t2 = wheel.schedule(() -> fired.add(2), 10, 0);
+		TimingWheel.Timeout t3 = wheel.schedule(() -> fired.add(3), 10, 0);
+		assertTrue(t2.cancel());
+		assertFalse(t2.cancel());
+		assertFalse(t2.isPending());
+		assertTrue(t1.isPending());
+		assertEquals(wheel.size(), 2);
+
+		wheel.advance(10);
+		assertEquals(fired, List.of(1, 3));
+		assertFalse(t1.cancel());
+		assertFalse(t3.isPending());
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	void rescheduleFromTask() {
+		TimingWheel wheel = new TimingWheel(8, 10, 0);
+		int[] count = {0};
+		Runnable[] task = new Runnable[1];
+		task[0] = () -> {
+			count[0]++;
+			if (count[0] < 3) {
+				wheel.schedule(task[0], 10, count[0] * 10);
+			}
+		};
+		wheel.schedule(task[0], 10, 0);
+		wheel.advance(10);
+		wheel.advance(20);
+		wheel.advance(30);
+		wheel.advance(40);
+		assertEquals(count[0], 3);
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	void delayUntilNextTick() {
+		TimingWheel wheel = new TimingWheel(8, 10, 0);
+		assertEquals(wheel.getDelayUntilNextTick(3), 0);
+		wheel.schedule(() -> {}, 25, 3);
+		assertEquals(wheel.getDelayUntilNextTick(3), 7);
+		wheel.advance(10);
+		assertEquals(wheel.getDelayUntilNextTick(12), 8);
+	}
+}